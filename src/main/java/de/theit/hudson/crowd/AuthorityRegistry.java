@@ -0,0 +1,184 @@
+/*
+ * @(#)AuthorityRegistry.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import hudson.security.SecurityRealm;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.GrantedAuthorityImpl;
+
+/**
+ * Interns granted authorities and sets of granted authorities. Users share
+ * the same few group names and often identical sets of groups, so equal
+ * authorities and equal sets are represented by one instance each instead of
+ * one instance per user and session.
+ * <p>
+ * Users and sessions only keep the array of granted authorities of a set, so
+ * the registry holds the canonical sets strongly; otherwise a set would be
+ * discarded while its array is still in use and sharing would silently stop.
+ * To bound the memory, all sets are discarded once there are more than
+ * {@value #MAX_SETS} of them.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 20.10.2011
+ * @version $Id$
+ */
+final class AuthorityRegistry {
+	/** The interned authorities by their names. */
+	private final ConcurrentMap<String, GrantedAuthority> authorities = new ConcurrentHashMap<String, GrantedAuthority>();
+
+	/** The maximum number of canonical sets. */
+	static final int MAX_SETS = 10000;
+
+	/** The canonical sets by the sorted names of their authorities. */
+	private final ConcurrentMap<List<String>, AuthoritySet> sets = new ConcurrentHashMap<List<String>, AuthoritySet>();
+
+	/**
+	 * Returns the interned authority with the given name.
+	 * 
+	 * @param name
+	 *            The name of the authority. May not be <code>null</code>.
+	 * @return The interned authority. Never <code>null</code>.
+	 */
+	GrantedAuthority intern(String name) {
+		GrantedAuthority retval = this.authorities.get(name);
+		if (null == retval) {
+			GrantedAuthority authority = new GrantedAuthorityImpl(name);
+			retval = this.authorities.putIfAbsent(name, authority);
+			if (null == retval) {
+				retval = authority;
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * Returns the canonical set that contains the authorities with the given
+	 * names.
+	 * 
+	 * @param names
+	 *            The names of the authorities. May not be <code>null</code>.
+	 * @return The canonical, immutable set of authorities sorted by name.
+	 *         Never <code>null</code>.
+	 */
+	AuthoritySet internSet(Collection<String> names) {
+		String[] sorted = names.toArray(new String[names.size()]);
+		Arrays.sort(sorted);
+		List<String> key = Arrays.asList(sorted);
+
+		AuthoritySet retval = this.sets.get(key);
+		if (null == retval) {
+			GrantedAuthority[] granted = new GrantedAuthority[sorted.length + 1];
+			granted[0] = SecurityRealm.AUTHENTICATED_AUTHORITY;
+			for (int i = 0; i < sorted.length; i++) {
+				granted[i + 1] = intern(sorted[i]);
+			}
+			if (this.sets.size() >= MAX_SETS) {
+				// users that still hold the old arrays keep working; they
+				// just don't share them with new users anymore
+				this.sets.clear();
+			}
+			AuthoritySet created = new AuthoritySet(key, granted);
+			retval = this.sets.putIfAbsent(key, created);
+			if (null == retval) {
+				retval = created;
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * Returns the number of interned authorities.
+	 * 
+	 * @return The number of interned authorities.
+	 */
+	int getAuthorityCount() {
+		return this.authorities.size();
+	}
+
+	/**
+	 * Returns the number of canonical sets.
+	 * 
+	 * @return The number of canonical sets.
+	 */
+	int getSetCount() {
+		return this.sets.size();
+	}
+
+	/**
+	 * An immutable set of authorities sorted by name. In addition to the
+	 * authorities retrieved from Crowd, it provides the array of all granted
+	 * authorities of a user which is shared by all users with the same
+	 * groups.
+	 */
+	static final class AuthoritySet extends AbstractList<GrantedAuthority> {
+		/** The sorted names of the authorities. */
+		private final List<String> names;
+
+		/**
+		 * The "authenticated" authority followed by the authorities of the
+		 * set.
+		 */
+		private final GrantedAuthority[] granted;
+
+		/**
+		 * Creates a new set.
+		 * 
+		 * @param pNames
+		 *            The sorted names of the authorities. May not be
+		 *            <code>null</code>.
+		 * @param pGranted
+		 *            The "authenticated" authority followed by the
+		 *            authorities of the set. May not be <code>null</code>.
+		 */
+		AuthoritySet(List<String> pNames, GrantedAuthority[] pGranted) {
+			this.names = pNames;
+			this.granted = pGranted;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * @see java.util.AbstractList#get(int)
+		 */
+		@Override
+		public GrantedAuthority get(int index) {
+			if (index < 0 || index >= this.names.size()) {
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			}
+			return this.granted[index + 1];
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * @see java.util.AbstractCollection#size()
+		 */
+		@Override
+		public int size() {
+			return this.names.size();
+		}
+
+		/**
+		 * Returns all granted authorities of a user with this set of
+		 * authorities, i.e. the "authenticated" authority followed by the
+		 * authorities of this set. The array is shared and must not be
+		 * modified.
+		 * 
+		 * @return The granted authorities. Never <code>null</code>.
+		 */
+		GrantedAuthority[] getGrantedAuthorities() {
+			return this.granted;
+		}
+	}
+}
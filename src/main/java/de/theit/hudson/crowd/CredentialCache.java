@@ -0,0 +1,235 @@
+/*
+ * @(#)CredentialCache.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import static de.theit.hudson.crowd.ErrorMessages.credentialsNotHashed;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.acegisecurity.GrantedAuthority;
+
+import com.atlassian.crowd.model.user.User;
+
+/**
+ * Caches recently verified credentials for a short time so that repeated
+ * logins with the same password, e.g. scripts that call the remote API with
+ * HTTP basic authentication, don't need the remote Crowd server.
+ * <p>
+ * Passwords are never stored. Only a salted PBKDF2 hash of the password is
+ * kept in memory; a new salt is used for every entry.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 21.10.2011
+ * @version $Id$
+ */
+final class CredentialCache {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CredentialCache.class
+			.getName());
+
+	/** The algorithm used to hash the passwords. */
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+
+	/** The number of iterations of the hash function. */
+	private static final int ITERATIONS = 10000;
+
+	/** The length of the salt in bytes. */
+	private static final int SALT_LENGTH = 16;
+
+	/** The length of the hash in bits. */
+	private static final int HASH_LENGTH = 160;
+
+	/** Creates the salts. */
+	private final SecureRandom random = new SecureRandom();
+
+	/** The verified credentials by the user names. */
+	private final TimedCache<String, Entry> entries;
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param maxSize
+	 *            The maximum number of users whose credentials are cached.
+	 */
+	CredentialCache(int maxSize) {
+		this.entries = new TimedCache<String, Entry>(maxSize);
+	}
+
+	/**
+	 * Returns the cached result of a login if the password matches the one
+	 * that was verified recently. If the password doesn't match, the entry is
+	 * discarded.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param password
+	 *            The password of the user. May not be <code>null</code>.
+	 * @return The cached result or <code>null</code> if the credentials were
+	 *         not verified recently.
+	 */
+	Entry get(String username, String password) {
+		Entry entry = this.entries.get(username);
+		if (null == entry) {
+			return null;
+		}
+		byte[] hash = hash(password, entry.salt);
+		if (null == hash || !MessageDigest.isEqual(hash, entry.hash)) {
+			this.entries.remove(username);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Remembers successfully verified credentials.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param password
+	 *            The password of the user. May not be <code>null</code>.
+	 * @param user
+	 *            The user object. May not be <code>null</code>.
+	 * @param authorities
+	 *            The granted authorities of the user. May not be
+	 *            <code>null</code>.
+	 * @param lifetime
+	 *            The time in milliseconds the credentials are cached.
+	 */
+	void put(String username, String password, User user,
+			GrantedAuthority[] authorities, long lifetime) {
+		byte[] salt = new byte[SALT_LENGTH];
+		this.random.nextBytes(salt);
+		byte[] hash = hash(password, salt);
+		if (null != hash) {
+			this.entries.put(username, new Entry(salt, hash, user,
+					authorities), lifetime);
+		}
+	}
+
+	/**
+	 * Discards the cached credentials of a user.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 */
+	void remove(String username) {
+		this.entries.remove(username);
+	}
+
+	/**
+	 * Discards all cached credentials.
+	 */
+	void clear() {
+		this.entries.clear();
+	}
+
+	/**
+	 * Returns the underlying cache. Used for statistics only.
+	 * 
+	 * @return The cache of verified credentials. Never <code>null</code>.
+	 */
+	TimedCache<String, Entry> getEntries() {
+		return this.entries;
+	}
+
+	/**
+	 * Returns the number of logins that were answered from the cache.
+	 * 
+	 * @return The number of cache hits.
+	 */
+	long getHits() {
+		return this.entries.getHits();
+	}
+
+	/**
+	 * Hashes a password.
+	 * 
+	 * @param password
+	 *            The password. May not be <code>null</code>.
+	 * @param salt
+	 *            The salt. May not be <code>null</code>.
+	 * @return The hash or <code>null</code> if the hash function is not
+	 *         available.
+	 */
+	private static byte[] hash(String password, byte[] salt) {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
+				ITERATIONS, HASH_LENGTH);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec)
+					.getEncoded();
+		} catch (GeneralSecurityException ex) {
+			LOG.log(Level.WARNING, credentialsNotHashed(), ex);
+			return null;
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	/**
+	 * The cached result of a successful login.
+	 */
+	static final class Entry {
+		/** The salt of the hash. */
+		private final byte[] salt;
+
+		/** The salted hash of the password. */
+		private final byte[] hash;
+
+		/** The user object. */
+		private final User user;
+
+		/** The granted authorities of the user. */
+		private final GrantedAuthority[] authorities;
+
+		/**
+		 * Creates a new entry.
+		 * 
+		 * @param pSalt
+		 *            The salt of the hash. May not be <code>null</code>.
+		 * @param pHash
+		 *            The salted hash of the password. May not be
+		 *            <code>null</code>.
+		 * @param pUser
+		 *            The user object. May not be <code>null</code>.
+		 * @param pAuthorities
+		 *            The granted authorities of the user. May not be
+		 *            <code>null</code>.
+		 */
+		Entry(byte[] pSalt, byte[] pHash, User pUser,
+				GrantedAuthority[] pAuthorities) {
+			this.salt = pSalt;
+			this.hash = pHash;
+			this.user = pUser;
+			this.authorities = pAuthorities;
+		}
+
+		/**
+		 * Returns the user object.
+		 * 
+		 * @return The user object. Never <code>null</code>.
+		 */
+		User getUser() {
+			return this.user;
+		}
+
+		/**
+		 * Returns the granted authorities of the user. The array is shared
+		 * and must not be modified.
+		 * 
+		 * @return The granted authorities. Never <code>null</code>.
+		 */
+		GrantedAuthority[] getAuthorities() {
+			return this.authorities;
+		}
+	}
+}
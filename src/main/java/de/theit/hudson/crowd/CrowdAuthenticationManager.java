@@ -13,10 +13,9 @@ import static de.theit.hudson.crowd.ErrorMessages.hudsonUserNotValid;
 import static de.theit.hudson.crowd.ErrorMessages.invalidAuthentication;
 import static de.theit.hudson.crowd.ErrorMessages.operationFailed;
 import static de.theit.hudson.crowd.ErrorMessages.userNotFound;
-import hudson.security.SecurityRealm;
+import static de.theit.hudson.crowd.ErrorMessages.wrongPassword;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collection;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,6 +28,7 @@ import org.acegisecurity.BadCredentialsException;
 import org.acegisecurity.CredentialsExpiredException;
 import org.acegisecurity.GrantedAuthority;
 import org.acegisecurity.InsufficientAuthenticationException;
+import org.acegisecurity.ui.WebAuthenticationDetails;
 
 import com.atlassian.crowd.exception.ApplicationPermissionException;
 import com.atlassian.crowd.exception.ExpiredCredentialException;
@@ -36,6 +36,7 @@ import com.atlassian.crowd.exception.InactiveAccountException;
 import com.atlassian.crowd.exception.InvalidAuthenticationException;
 import com.atlassian.crowd.exception.OperationFailedException;
 import com.atlassian.crowd.exception.UserNotFoundException;
+import com.atlassian.crowd.model.user.User;
 
 /**
  * This class implements the authentication manager for Hudson.
@@ -87,22 +88,79 @@ public class CrowdAuthenticationManager implements AuthenticationManager {
 
 		String password = authentication.getCredentials().toString();
 
-		// ensure that the group is available, active and that the user
-		// is a member of it
+		// reject clients that keep retrying wrong credentials without
+		// asking the remote Crowd server
+		String address = null;
+		if (authentication.getDetails() instanceof WebAuthenticationDetails) {
+			address = ((WebAuthenticationDetails) authentication.getDetails())
+					.getRemoteAddress();
+		}
+		this.configuration.loginThrottle.check(username, address);
+
+		// count the requests sent to the remote Crowd server for this login
+		CrowdCallCounter.start();
+		try {
+			Authentication retval = authenticate(username, password);
+			this.configuration.loginThrottle.recordSuccess(username);
+			return retval;
+		} catch (AuthenticationException ex) {
+			// any failure drops the recently verified credentials
+			this.configuration.forgetCredentials(username);
+			if (LoginThrottle.isCredentialFailure(ex)) {
+				this.configuration.loginThrottle.recordFailure(username,
+						address);
+			}
+			throw ex;
+		} finally {
+			this.configuration.recordLogin(username, CrowdCallCounter.stop(),
+					true);
+		}
+	}
+
+	/**
+	 * Authenticates the user against the remote Crowd server. The group
+	 * membership of the user is derived from the authorities that are
+	 * retrieved anyway instead of asking the remote Crowd server separately.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param password
+	 *            The password of the user. May not be <code>null</code>.
+	 * @return The authentication token. Never <code>null</code>.
+	 * @throws AuthenticationException
+	 *             If the user cannot be authenticated.
+	 */
+	private Authentication authenticate(String username, String password)
+			throws AuthenticationException {
+		// ensure that the group is available and active
 		if (!this.configuration.isGroupActive()) {
 			throw new InsufficientAuthenticationException(
 					hudsonUserGroupNotFound());
 		}
 
-		if (!this.configuration.isGroupMember(username)) {
+		// credentials verified recently => no need to ask Crowd again
+		CredentialCache.Entry cached = this.configuration
+				.getVerifiedCredentials(username, password);
+		if (null != cached) {
+			return new CrowdAuthenticationToken(username, password,
+					cached.getAuthorities(), null, cached.getUser()
+							.getDisplayName());
+		}
+
+		// reject non-members early if the group members are indexed
+		if (this.configuration.isKnownNonMember(username)) {
 			throw new InsufficientAuthenticationException(hudsonUserNotValid());
 		}
 
+		User user;
 		try {
 			// authenticate user
-			this.configuration.crowdClient.authenticateUser(username, password);
+			user = this.configuration.crowdClient.authenticateUser(username,
+					password);
 		} catch (UserNotFoundException ex) {
-			LOG.log(Level.INFO, userNotFound(), ex);
+			// wrong credentials are expected => no stack trace
+			LOG.info(userNotFound());
+			LOG.log(Level.FINE, userNotFound(), ex);
 			throw new BadCredentialsException(userNotFound(), ex);
 		} catch (ExpiredCredentialException ex) {
 			LOG.log(Level.WARNING, expiredCredentials(), ex);
@@ -115,6 +173,12 @@ public class CrowdAuthenticationManager implements AuthenticationManager {
 			throw new AuthenticationServiceException(applicationPermission(),
 					ex);
 		} catch (InvalidAuthenticationException ex) {
+			if (this.configuration.isApplicationAuthenticated()) {
+				// the application is accepted => the password is wrong
+				LOG.info(wrongPassword());
+				LOG.log(Level.FINE, wrongPassword(), ex);
+				throw new BadCredentialsException(wrongPassword(), ex);
+			}
 			LOG.log(Level.WARNING, invalidAuthentication(), ex);
 			throw new AuthenticationServiceException(invalidAuthentication(),
 					ex);
@@ -125,16 +189,29 @@ public class CrowdAuthenticationManager implements AuthenticationManager {
 
 		// user successfully authenticated
 		// => retrieve the list of groups the user is a member of
-		List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
+		Collection<GrantedAuthority> userAuthorities = this.configuration
+				.getAuthoritiesForUser(username);
+
+		// the groups also tell whether the user is a member of the Hudson
+		// user group
+		if (!this.configuration.isGroupMember(userAuthorities)) {
+			throw new InsufficientAuthenticationException(hudsonUserNotValid());
+		}
+
+		// the "authenticated" authority and all authorities retrieved from
+		// the Crowd server; shared by all users with the same groups
+		GrantedAuthority[] authorities = this.configuration
+				.getGrantedAuthorities(userAuthorities);
 
-		// add the "authenticated" authority to the list of granted
-		// authorities...
-		authorities.add(SecurityRealm.AUTHENTICATED_AUTHORITY);
-		// ..and finally all authorities retrieved from the Crowd server
-		authorities.addAll(this.configuration.getAuthoritiesForUser(username));
+		// repeated logins with the same credentials skip Crowd for a while
+		this.configuration.cacheCredentials(username, password, user,
+				authorities);
 
 		// user successfully authenticated => create authentication
 		// token
-		return new CrowdAuthenticationToken(username, password, authorities);
+		CrowdAuthenticationToken retval = new CrowdAuthenticationToken(
+				username, password, authorities, null, user.getDisplayName());
+		retval.setPasswordVerified();
+		return retval;
 	}
 }
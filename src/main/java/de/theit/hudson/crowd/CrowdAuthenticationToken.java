@@ -34,6 +34,12 @@ public class CrowdAuthenticationToken extends AbstractAuthenticationToken {
 	/** The display name of the user. */
 	private String displayName;
 
+	/**
+	 * Whether the remote Crowd server verified the password for this token.
+	 * Only valid during the login that created the token.
+	 */
+	private transient boolean passwordVerified;
+
 	/**
 	 * Creates a new authorization token.
 	 * 
@@ -73,7 +79,35 @@ public class CrowdAuthenticationToken extends AbstractAuthenticationToken {
 	public CrowdAuthenticationToken(String pPrincipal, String pCredentials,
 			List<GrantedAuthority> authorities, String pSsoToken,
 			String pDisplayName) {
-		super(authorities.toArray(new GrantedAuthority[authorities.size()]));
+		this(pPrincipal, pCredentials, authorities
+				.toArray(new GrantedAuthority[authorities.size()]), pSsoToken,
+				pDisplayName);
+	}
+
+	/**
+	 * Creates a new authorization token.
+	 * 
+	 * @param pPrincipal
+	 *            The name of the authenticated Crowd user. May not be
+	 *            <code>null</code>.
+	 * @param pCredentials
+	 *            The credentials. Normally the users password. May only be
+	 *            <code>null</code> when the SSO token is given.
+	 * @param authorities
+	 *            The granted authorities for the user. May not be
+	 *            <code>null</code>. The array is not copied and may be shared
+	 *            with other users that have the same authorities, so it must
+	 *            not be modified afterwards.
+	 * @param pSsoToken
+	 *            The Crowd SSO token. May be <code>null</code> if the token is
+	 *            not (yet) available.
+	 * @param pDisplayName
+	 *            The display name of the user. May be <code>null</code>.
+	 */
+	public CrowdAuthenticationToken(String pPrincipal, String pCredentials,
+			GrantedAuthority[] authorities, String pSsoToken,
+			String pDisplayName) {
+		super(authorities);
 		this.principal = pPrincipal;
 		this.credentials = pCredentials;
 		this.ssoToken = pSsoToken;
@@ -100,6 +134,25 @@ public class CrowdAuthenticationToken extends AbstractAuthenticationToken {
 		return this.principal;
 	}
 
+	/**
+	 * Checks whether the remote Crowd server verified the password of the
+	 * user during the login that created this token. This is not the case if
+	 * the login was answered from recently verified credentials.
+	 * 
+	 * @return <code>true</code> if Crowd verified the password.
+	 *         <code>false</code> else.
+	 */
+	boolean isPasswordVerified() {
+		return this.passwordVerified;
+	}
+
+	/**
+	 * Marks that the remote Crowd server verified the password of the user.
+	 */
+	void setPasswordVerified() {
+		this.passwordVerified = true;
+	}
+
 	/**
 	 * Returns the SSO token.
 	 * 
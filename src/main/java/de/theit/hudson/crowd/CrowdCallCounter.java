@@ -0,0 +1,126 @@
+/*
+ * @(#)CrowdCallCounter.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * Counts the requests that are sent to the remote Crowd server on behalf of
+ * the current thread. Used to measure how many Crowd requests a single login
+ * needs.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 19.10.2011
+ * @version $Id$
+ */
+final class CrowdCallCounter implements InvocationHandler {
+	/** The counter of the current thread. */
+	private static final ThreadLocal<AtomicInteger> CURRENT = new ThreadLocal<AtomicInteger>();
+
+	/** The Crowd client that executes the requests. */
+	private final CrowdClient target;
+
+	/**
+	 * Creates a new instance.
+	 * 
+	 * @param pTarget
+	 *            The Crowd client that executes the requests. May not be
+	 *            <code>null</code>.
+	 */
+	private CrowdCallCounter(CrowdClient pTarget) {
+		this.target = pTarget;
+	}
+
+	/**
+	 * Wraps a Crowd client so that its requests are counted.
+	 * 
+	 * @param client
+	 *            The Crowd client. May not be <code>null</code>.
+	 * @return The wrapped Crowd client. Never <code>null</code>.
+	 */
+	static CrowdClient wrap(CrowdClient client) {
+		return (CrowdClient) Proxy.newProxyInstance(
+				CrowdClient.class.getClassLoader(),
+				new Class<?>[] { CrowdClient.class }, new CrowdCallCounter(
+						client));
+	}
+
+	/**
+	 * Starts counting the requests of the current thread.
+	 * 
+	 * @return The counter. Never <code>null</code>.
+	 */
+	static AtomicInteger start() {
+		AtomicInteger counter = new AtomicInteger();
+		CURRENT.set(counter);
+		return counter;
+	}
+
+	/**
+	 * Stops counting the requests of the current thread.
+	 * 
+	 * @return The number of requests counted since {@link #start()} or
+	 *         {@link #attach(AtomicInteger)}.
+	 */
+	static int stop() {
+		AtomicInteger counter = CURRENT.get();
+		CURRENT.remove();
+		return null == counter ? 0 : counter.get();
+	}
+
+	/**
+	 * Returns the counter of the current thread.
+	 * 
+	 * @return The counter or <code>null</code> if the requests of the current
+	 *         thread aren't counted.
+	 */
+	static AtomicInteger current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Counts the requests of the current thread with the given counter. Used
+	 * to count requests that a worker thread sends on behalf of another
+	 * thread.
+	 * 
+	 * @param counter
+	 *            The counter. May be <code>null</code>.
+	 */
+	static void attach(AtomicInteger counter) {
+		if (null == counter) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(counter);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+	 *      java.lang.reflect.Method, java.lang.Object[])
+	 */
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		AtomicInteger counter = CURRENT.get();
+		if (null != counter) {
+			counter.incrementAndGet();
+		}
+
+		try {
+			return method.invoke(this.target, args);
+		} catch (InvocationTargetException ex) {
+			throw ex.getCause();
+		}
+	}
+}
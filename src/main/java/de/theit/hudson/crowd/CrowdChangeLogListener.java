@@ -0,0 +1,53 @@
+/*
+ * @(#)CrowdChangeLogListener.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Hudson;
+import hudson.model.listeners.SCMListener;
+import hudson.scm.ChangeLogSet;
+import hudson.security.SecurityRealm;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This class resolves the email addresses of all authors of a changelog in
+ * one go as soon as the changelog is parsed. The membership of the authors
+ * in the Hudson user group is checked in the same pass and cached with the
+ * addresses. When the build result is mailed to the culprits later, neither
+ * the email address nor the membership of a culprit needs a request to the
+ * remote Crowd server on its own.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 20.10.2011
+ * @version $Id$
+ */
+public class CrowdChangeLogListener extends SCMListener {
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see hudson.model.listeners.SCMListener#onChangeLogParsed(hudson.model.AbstractBuild,
+	 *      hudson.model.BuildListener, hudson.scm.ChangeLogSet)
+	 */
+	@Override
+	public void onChangeLogParsed(AbstractBuild<?, ?> build,
+			BuildListener listener, ChangeLogSet<?> changelog) throws Exception {
+		SecurityRealm realm = Hudson.getInstance().getSecurityRealm();
+		if (!(realm instanceof CrowdSecurityRealm)) {
+			return;
+		}
+
+		Set<String> authors = new HashSet<String>();
+		for (ChangeLogSet.Entry entry : changelog) {
+			authors.add(entry.getAuthor().getId());
+		}
+		if (!authors.isEmpty()) {
+			((CrowdSecurityRealm) realm).resolveMailAddresses(authors);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * @(#)CrowdCircuitBreaker.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import static de.theit.hudson.crowd.ErrorMessages.circuitClosed;
+import static de.theit.hudson.crowd.ErrorMessages.circuitOpened;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * A circuit breaker around the requests that are sent to the remote Crowd
+ * server. After a number of consecutive failed requests the circuit opens and
+ * further requests fail immediately with an {@link OperationFailedException}
+ * instead of waiting for the HTTP timeout, so that callers can fall back to
+ * cached data. After a while, a single trial request is let through; if it
+ * succeeds, the circuit closes again.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 21.10.2011
+ * @version $Id$
+ */
+final class CrowdCircuitBreaker implements InvocationHandler {
+	/**
+	 * The states of the circuit.
+	 */
+	enum State {
+		/** Requests are sent to the remote Crowd server. */
+		CLOSED,
+		/** Requests fail immediately. */
+		OPEN,
+		/** A trial request is sent to the remote Crowd server. */
+		HALF_OPEN
+	}
+
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger
+			.getLogger(CrowdCircuitBreaker.class.getName());
+
+	/** The Crowd client that executes the requests. */
+	private final CrowdClient target;
+
+	/** The Crowd client whose requests pass the circuit breaker. */
+	private final CrowdClient client;
+
+	/** The number of consecutive failed requests that open the circuit. */
+	private final int failureThreshold;
+
+	/** The time in milliseconds after which a trial request is let through. */
+	private final long retryInterval;
+
+	/** The number of consecutive failed requests. */
+	private final AtomicInteger failures = new AtomicInteger();
+
+	/** The time when the circuit was opened. <code>0</code> if it is closed. */
+	private volatile long openedAt;
+
+	/** Set while a trial request is in progress. */
+	private final AtomicBoolean trialPending = new AtomicBoolean();
+
+	/** Counts the requests that failed immediately. */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Creates a new instance.
+	 * 
+	 * @param pTarget
+	 *            The Crowd client that executes the requests. May not be
+	 *            <code>null</code>.
+	 * @param pFailureThreshold
+	 *            The number of consecutive failed requests that open the
+	 *            circuit.
+	 * @param pRetryInterval
+	 *            The time in milliseconds after which a trial request is let
+	 *            through while the circuit is open.
+	 */
+	CrowdCircuitBreaker(CrowdClient pTarget, int pFailureThreshold,
+			long pRetryInterval) {
+		this.target = pTarget;
+		this.failureThreshold = pFailureThreshold;
+		this.retryInterval = pRetryInterval;
+		this.client = (CrowdClient) Proxy.newProxyInstance(
+				CrowdClient.class.getClassLoader(),
+				new Class<?>[] { CrowdClient.class }, this);
+	}
+
+	/**
+	 * Returns the Crowd client whose requests pass the circuit breaker.
+	 * 
+	 * @return The wrapped Crowd client. Never <code>null</code>.
+	 */
+	CrowdClient getClient() {
+		return this.client;
+	}
+
+	/**
+	 * Returns the current state of the circuit.
+	 * 
+	 * @return The state. Never <code>null</code>.
+	 */
+	State getState() {
+		if (0 == this.openedAt) {
+			return State.CLOSED;
+		}
+		return this.trialPending.get() ? State.HALF_OPEN : State.OPEN;
+	}
+
+	/**
+	 * Returns the number of requests that failed immediately because the
+	 * circuit was open.
+	 * 
+	 * @return The number of rejected requests.
+	 */
+	long getRejected() {
+		return this.rejected.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+	 *      java.lang.reflect.Method, java.lang.Object[])
+	 */
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		boolean trial = false;
+		if (0 != this.openedAt && canFail(method)) {
+			trial = System.currentTimeMillis() - this.openedAt >= this.retryInterval
+					&& this.trialPending.compareAndSet(false, true);
+			if (!trial) {
+				this.rejected.incrementAndGet();
+				throw new OperationFailedException(
+						"Crowd server not available (circuit open)");
+			}
+		}
+
+		try {
+			Object retval = method.invoke(this.target, args);
+			recordSuccess();
+			return retval;
+		} catch (InvocationTargetException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof OperationFailedException
+					|| cause instanceof RuntimeException) {
+				recordFailure(trial);
+			} else {
+				// the server answered, e.g. that a user doesn't exist
+				recordSuccess();
+			}
+			throw cause;
+		} finally {
+			if (trial) {
+				this.trialPending.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the method may fail with an
+	 * {@link OperationFailedException}. Other methods, e.g. for shutting down
+	 * the client, are never rejected.
+	 * 
+	 * @param method
+	 *            The method. May not be <code>null</code>.
+	 * @return <code>true</code> if the method declares an
+	 *         {@link OperationFailedException}. <code>false</code> else.
+	 */
+	private static boolean canFail(Method method) {
+		for (Class<?> type : method.getExceptionTypes()) {
+			if (type.isAssignableFrom(OperationFailedException.class)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records a successful request and closes the circuit.
+	 */
+	private void recordSuccess() {
+		this.failures.set(0);
+		if (0 != this.openedAt) {
+			this.openedAt = 0;
+			LOG.info(circuitClosed());
+		}
+	}
+
+	/**
+	 * Records a failed request and opens the circuit when the threshold is
+	 * reached or the trial request failed.
+	 * 
+	 * @param trial
+	 *            <code>true</code> if the failed request was a trial request.
+	 */
+	private void recordFailure(boolean trial) {
+		if (trial) {
+			// still not available => wait for the next trial
+			this.openedAt = System.currentTimeMillis();
+		} else if (this.failures.incrementAndGet() >= this.failureThreshold
+				&& 0 == this.openedAt) {
+			this.openedAt = System.currentTimeMillis();
+			LOG.warning(circuitOpened(this.failureThreshold));
+		}
+	}
+}
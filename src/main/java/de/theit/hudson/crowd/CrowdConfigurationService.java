@@ -6,23 +6,54 @@
 package de.theit.hudson.crowd;
 
 import static de.theit.hudson.crowd.ErrorMessages.applicationPermission;
+import static de.theit.hudson.crowd.ErrorMessages.emailNotMember;
+import static de.theit.hudson.crowd.ErrorMessages.eventTokenExpired;
+import static de.theit.hudson.crowd.ErrorMessages.eventsNotAvailable;
 import static de.theit.hudson.crowd.ErrorMessages.groupNotFound;
 import static de.theit.hudson.crowd.ErrorMessages.invalidAuthentication;
+import static de.theit.hudson.crowd.ErrorMessages.loginRequests;
+import static de.theit.hudson.crowd.ErrorMessages.membersIndexed;
 import static de.theit.hudson.crowd.ErrorMessages.operationFailed;
+import static de.theit.hudson.crowd.ErrorMessages.operationTimedOut;
 import static de.theit.hudson.crowd.ErrorMessages.specifyGroup;
+import static de.theit.hudson.crowd.ErrorMessages.ssoRequests;
 import static de.theit.hudson.crowd.ErrorMessages.userNotFound;
+import hudson.util.DaemonThreadFactory;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.TreeSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.acegisecurity.GrantedAuthority;
-import org.acegisecurity.GrantedAuthorityImpl;
 
+import com.atlassian.crowd.embedded.api.SearchRestriction;
+import com.atlassian.crowd.event.EventTokenExpiredException;
+import com.atlassian.crowd.event.Events;
+import com.atlassian.crowd.event.IncrementalSynchronisationNotAvailableException;
 import com.atlassian.crowd.exception.ApplicationPermissionException;
 import com.atlassian.crowd.exception.GroupNotFoundException;
 import com.atlassian.crowd.exception.InvalidAuthenticationException;
@@ -30,10 +61,27 @@ import com.atlassian.crowd.exception.OperationFailedException;
 import com.atlassian.crowd.exception.UserNotFoundException;
 import com.atlassian.crowd.integration.http.CrowdHttpAuthenticator;
 import com.atlassian.crowd.integration.http.util.CrowdHttpTokenHelper;
+import com.atlassian.crowd.model.authentication.CookieConfiguration;
+import com.atlassian.crowd.model.event.GroupEvent;
+import com.atlassian.crowd.model.event.GroupMembershipEvent;
+import com.atlassian.crowd.model.event.Operation;
+import com.atlassian.crowd.model.event.OperationEvent;
+import com.atlassian.crowd.model.event.UserEvent;
+import com.atlassian.crowd.model.event.UserMembershipEvent;
 import com.atlassian.crowd.model.group.Group;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.search.query.entity.restriction.BooleanRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.BooleanRestrictionImpl;
+import com.atlassian.crowd.search.query.entity.restriction.MatchMode;
+import com.atlassian.crowd.search.query.entity.restriction.TermRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.constants.GroupTermKeys;
+import com.atlassian.crowd.search.query.entity.restriction.constants.UserTermKeys;
 import com.atlassian.crowd.service.client.ClientProperties;
 import com.atlassian.crowd.service.client.CrowdClient;
 
+import de.theit.hudson.crowd.AuthorityRegistry.AuthoritySet;
+import de.theit.hudson.crowd.CrowdRequestClassifier.RequestClass;
+
 /**
  * This class contains all objects that are necessary to access the REST
  * services on the remote Crowd server. In addition to this it contains some
@@ -54,6 +102,92 @@ public class CrowdConfigurationService {
 	 */
 	private static final int MAX_GROUPS = 500;
 
+	/** The maximum number of users whose data is cached. */
+	private static final int MAX_CACHED_USERS = 5000;
+
+	/**
+	 * The lifetime in seconds of cached negative results, i.e. a user is not
+	 * a member of a group. Kept short so that users added to a group in Crowd
+	 * can login quickly.
+	 */
+	private static final int NEGATIVE_CACHE_TTL = 60;
+
+	/**
+	 * The default interval in seconds after which the index of inactive groups
+	 * is refreshed if the group refresh interval is disabled.
+	 */
+	private static final int DEFAULT_INDEX_REFRESH_INTERVAL = 300;
+
+	/**
+	 * The maximum time in seconds that the retrieval of the groups of a user
+	 * may take.
+	 */
+	private static final int FETCH_TIMEOUT = 60;
+
+	/**
+	 * The maximum number of users that can be fetched from the Crowd server in
+	 * one request.
+	 */
+	private static final int MAX_USERS = 1000;
+
+	/** The number of threads that retrieve the groups of users. */
+	private static final int FETCH_THREADS = 8;
+
+	/**
+	 * The fraction of the lifetime after which cached authorities are
+	 * refreshed in the background.
+	 */
+	private static final float REFRESH_AHEAD_FACTOR = 0.75f;
+
+	/**
+	 * The maximum number of concurrent HTTP connections to the remote Crowd
+	 * server if none is configured.
+	 */
+	static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+	/**
+	 * The time in seconds after which a trial request is sent to the remote
+	 * Crowd server while the circuit breaker is open.
+	 */
+	static final int CIRCUIT_RETRY_INTERVAL = 30;
+
+	/** The maximum number of email addresses that are cached. */
+	private static final int MAX_CACHED_EMAILS = 20000;
+
+	/** The lifetime in seconds of cached email addresses. */
+	private static final int EMAIL_CACHE_TTL = 3600;
+
+	/**
+	 * The lifetime in seconds of cached lookups of unknown users, users
+	 * without an email address and users that are not members of the Hudson
+	 * user group.
+	 */
+	private static final int NEGATIVE_EMAIL_CACHE_TTL = 600;
+
+	/**
+	 * The maximum number of users whose email addresses are retrieved with
+	 * one search request.
+	 */
+	private static final int MAX_USERS_PER_SEARCH = 100;
+
+	/** The maximum number of rejected user names that are cached. */
+	private static final int MAX_REJECTED_USERS = 10000;
+
+	/**
+	 * The lifetime in seconds of cached user names that don't exist or are not
+	 * members of the Hudson user group.
+	 */
+	private static final int REJECTED_USER_TTL = 300;
+
+	/** Marks users without an email address in the cache. */
+	private static final EmailAddress NO_EMAIL = new EmailAddress(null);
+
+	/**
+	 * Marks users in the cache of email addresses that are not members of the
+	 * Hudson user group.
+	 */
+	private static final EmailAddress NOT_MEMBER = new EmailAddress(null);
+
 	/** Holds the Crowd client properties. */
 	ClientProperties clientProperties;
 
@@ -69,12 +203,272 @@ public class CrowdConfigurationService {
 	 */
 	CrowdHttpAuthenticator crowdHttpAuthenticator;
 
+	/**
+	 * Keeps track of whether the remote Crowd server is reachable.
+	 * <code>null</code> if the Crowd client is not watched.
+	 */
+	CrowdHealthMonitor healthMonitor;
+
+	/**
+	 * The time in seconds after the remote Crowd server became unreachable
+	 * during which the last known good data is served. A value
+	 * <code>&lt;= 0</code> disables the degraded mode.
+	 */
+	int degradedGracePeriod;
+
+	/**
+	 * Lets requests to the remote Crowd server fail immediately after a number
+	 * of consecutive failures. <code>null</code> if the circuit breaker is
+	 * disabled.
+	 */
+	CrowdCircuitBreaker circuitBreaker;
+
+	/**
+	 * Limits the concurrent requests to the size of the HTTP connection pool
+	 * and keeps track of its usage. <code>null</code> if the Crowd client is
+	 * not pooled.
+	 */
+	CrowdConnectionPool connectionPool;
+
+	/**
+	 * Spreads the requests across several Crowd nodes. <code>null</code> if
+	 * only one Crowd node is configured.
+	 */
+	CrowdLoadBalancer loadBalancer;
+
+	/**
+	 * Measures the requests sent to the remote Crowd server. <code>null</code>
+	 * if the requests are not measured.
+	 */
+	CrowdMetrics metrics;
+
+	/**
+	 * Classifies the requests seen by the {@link CrowdServletFilter}.
+	 * <code>null</code> until the servlet filter is created.
+	 */
+	volatile CrowdRequestClassifier requestClassifier;
+
+	/**
+	 * The SSO service whose caches of SSO tokens are reported by
+	 * {@link #getCaches()}. <code>null</code> until the security components
+	 * are created.
+	 */
+	volatile CrowdRememberMeServices rememberMe;
+
 	/** The group name a user must belong to to be allowed to login into Hudson. */
 	private String groupName;
 
 	/** Specifies whether nested groups may be used. */
 	private boolean nestedGroups;
 
+	/**
+	 * The interval in seconds after which the cached status of the Hudson user
+	 * group is refreshed. A value <code>&lt;= 0</code> disables the cache.
+	 */
+	int groupRefreshInterval;
+
+	/**
+	 * The cached status of the Hudson user group. <code>null</code> if the
+	 * status is not yet known or was invalidated.
+	 */
+	private volatile Boolean groupActive;
+
+	/** The time when the status of the Hudson user group was last retrieved. */
+	private volatile long groupActiveTimestamp;
+
+	/** Set while a refresh of the group status is in progress. */
+	private final AtomicBoolean groupRefreshPending = new AtomicBoolean();
+
+	/**
+	 * The lifetime in seconds of cached user data. A value <code>&lt;= 0</code>
+	 * disables the caches.
+	 */
+	int cacheTtl;
+
+	/**
+	 * The interval in seconds during which a successfully validated SSO
+	 * session is not validated again. A value <code>&lt;= 0</code> validates
+	 * the SSO session on every request.
+	 */
+	int sessionValidationInterval;
+
+	/**
+	 * The time in seconds successfully verified credentials are cached. A
+	 * value <code>&lt;= 0</code> disables the cache.
+	 */
+	int credentialCacheTtl;
+
+	/** Caches whether users are direct members of the Hudson user group. */
+	private final TimedCache<String, Boolean> directMemberships = new TimedCache<String, Boolean>(
+			MAX_CACHED_USERS);
+
+	/** Caches whether users are nested members of the Hudson user group. */
+	private final TimedCache<String, Boolean> nestedMemberships = new TimedCache<String, Boolean>(
+			MAX_CACHED_USERS);
+
+	/** Caches the authorities of the users. */
+	private final TimedCache<String, Collection<GrantedAuthority>> userAuthorities = new TimedCache<String, Collection<GrantedAuthority>>(
+			MAX_CACHED_USERS);
+
+	/** Coalesces concurrent membership checks of the same user. */
+	private final SingleFlight<String, Boolean> membershipFlights = new SingleFlight<String, Boolean>();
+
+	/** Coalesces concurrent retrievals of the authorities of the same user. */
+	private final SingleFlight<String, Collection<GrantedAuthority>> authorityFlights = new SingleFlight<String, Collection<GrantedAuthority>>();
+
+	/**
+	 * Coalesces concurrent retrievals of the same user object. Used by the
+	 * {@link CrowdUserDetailsService}.
+	 */
+	final SingleFlight<String, User> userFlights = new SingleFlight<String, User>();
+
+	/**
+	 * Caches the names of users that were rejected by the
+	 * {@link CrowdUserDetailsService}: {@link Boolean#TRUE} if the user doesn't
+	 * exist, {@link Boolean#FALSE} if the user is not a member of the Hudson
+	 * user group.
+	 */
+	private final TimedCache<String, Boolean> rejectedUsers = new TimedCache<String, Boolean>(
+			MAX_REJECTED_USERS);
+
+	/**
+	 * Keeps the last known good user objects for the degraded mode. Entries
+	 * are only retained while the degraded mode is enabled.
+	 */
+	private final TimedCache<String, User> knownUsers = new TimedCache<String, User>(
+			MAX_CACHED_USERS);
+
+	/**
+	 * Caches the email addresses of the users. Only members of the Hudson user
+	 * group have an address; the other users are cached as
+	 * {@link #NOT_MEMBER}, so their membership is not checked again.
+	 */
+	private final TimedCache<String, EmailAddress> emailAddresses = new TimedCache<String, EmailAddress>(
+			MAX_CACHED_EMAILS);
+
+	/** Coalesces concurrent lookups of the email address of the same user. */
+	private final SingleFlight<String, EmailAddress> emailFlights = new SingleFlight<String, EmailAddress>();
+
+	/** Rejects logins after too many failed logins. */
+	final LoginThrottle loginThrottle = new LoginThrottle();
+
+	/** Caches recently verified credentials. */
+	private final CredentialCache credentials = new CredentialCache(
+			MAX_CACHED_USERS);
+
+	/** Interns the authorities of the users. */
+	private final AuthorityRegistry authorityRegistry = new AuthorityRegistry();
+
+	/** Counts the logins. */
+	private final AtomicLong logins = new AtomicLong();
+
+	/** Counts the requests sent to the remote Crowd server during logins. */
+	private final AtomicLong loginCalls = new AtomicLong();
+
+	/** The names of the users whose authorities are currently refreshed. */
+	private final Set<String> pendingAuthorityRefreshes = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Specifies whether only the names of the groups of a user are retrieved.
+	 * The active status of the groups is then taken from the index of inactive
+	 * groups.
+	 */
+	boolean groupNamesOnly;
+
+	/**
+	 * The names of all inactive groups on the remote Crowd server.
+	 * <code>null</code> if the index is not (yet) available.
+	 */
+	private volatile Set<String> inactiveGroups;
+
+	/**
+	 * The interval in seconds after which the index of the members of the
+	 * Hudson user group is reloaded. A value <code>&lt;= 0</code> disables the
+	 * index.
+	 */
+	int membershipIndexInterval;
+
+	/**
+	 * The lower-case names of all (nested) members of the Hudson user group.
+	 * <code>null</code> if the index is not (yet) available. A reload builds a
+	 * new set and replaces the reference, so readers never block.
+	 */
+	private volatile Set<String> groupMembers;
+
+	/** The time when the index of the group members was last loaded. */
+	private volatile long groupMembersTimestamp;
+
+	/**
+	 * The interval in seconds after which new events are retrieved from the
+	 * remote Crowd server. A value <code>&lt;= 0</code> disables the
+	 * synchronisation with events.
+	 */
+	int eventSyncInterval;
+
+	/**
+	 * The token of the last event that was applied. <code>null</code> if the
+	 * local data is not synchronised with events.
+	 */
+	private volatile String eventToken;
+
+	/** Set when the local data must be reloaded completely. */
+	private volatile boolean fullReloadRequired;
+
+	/** Guards the replacement of the indexes. */
+	private final Object indexLock = new Object();
+
+	/**
+	 * The changes of the index of inactive groups by events while the index
+	 * is reloaded. Maps the group names to <code>true</code> if the group was
+	 * deactivated and to <code>false</code> if it was activated.
+	 * <code>null</code> if no reload is in progress. Guarded by
+	 * {@link #indexLock}.
+	 */
+	private Map<String, Boolean> inactiveGroupChanges;
+
+	/**
+	 * The number of reloads of the index of inactive groups in progress.
+	 * Guarded by {@link #indexLock}.
+	 */
+	private int inactiveGroupReloads;
+
+	/**
+	 * The changes of the index of the group members by events while the
+	 * index is reloaded. Maps the lower-case user names to <code>true</code>
+	 * if the user was added and to <code>false</code> if the user was
+	 * removed. <code>null</code> if no reload is in progress. Guarded by
+	 * {@link #indexLock}.
+	 */
+	private Map<String, Boolean> groupMemberChanges;
+
+	/**
+	 * The number of reloads of the index of the group members in progress.
+	 * Guarded by {@link #indexLock}.
+	 */
+	private int groupMemberReloads;
+
+	/** Set while a reload of the index of the group members is pending. */
+	private final AtomicBoolean membershipReloadPending = new AtomicBoolean();
+
+	/**
+	 * The cookie configuration of the remote Crowd server. <code>null</code>
+	 * until it is first needed.
+	 */
+	private volatile CookieConfiguration cookieConfiguration;
+
+	/**
+	 * Executes background tasks like refreshing the cached group status.
+	 * <code>null</code> until {@link #start()} is called.
+	 */
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Retrieves the direct and nested groups of users concurrently.
+	 * <code>null</code> until {@link #start()} is called.
+	 */
+	private volatile ExecutorService fetchExecutor;
+
 	/**
 	 * Creates a new Crowd configuration object.
 	 * 
@@ -104,16 +498,38 @@ public class CrowdConfigurationService {
 	 *         the user is either a direct group member or, if nested groups may
 	 *         be used, a nested group member. <code>false</code> else.
 	 */
-	public boolean isGroupMember(String username) {
+	public boolean isGroupMember(final String username) {
+		Set<String> members = this.groupMembers;
+		if (null != members) {
+			// answered locally from the index of the group members
+			return members.contains(username.toLowerCase(Locale.ENGLISH));
+		}
+
+		// concurrent checks for the same user share one remote lookup
+		return this.membershipFlights.execute(username, new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return Boolean.valueOf(loadGroupMember(username));
+			}
+		}).booleanValue();
+	}
+
+	/**
+	 * Checks whether the user is a direct or, if nested groups may be used, a
+	 * nested member of the Hudson user group.
+	 * 
+	 * @param username
+	 *            The name of the user to check. May not be <code>null</code>.
+	 * @return <code>true</code> if the user is a member of the group.
+	 *         <code>false</code> else.
+	 */
+	private boolean loadGroupMember(String username) {
 		boolean retval = false;
 
 		try {
-			if (this.crowdClient.isUserDirectGroupMember(username,
-					this.groupName)) {
+			if (isDirectGroupMember(username)) {
 				retval = true;
-			} else if (this.nestedGroups
-					&& this.crowdClient.isUserNestedGroupMember(username,
-							this.groupName)) {
+			} else if (this.nestedGroups && isNestedGroupMember(username)) {
 				retval = true;
 			}
 		} catch (ApplicationPermissionException ex) {
@@ -121,123 +537,1963 @@ public class CrowdConfigurationService {
 		} catch (InvalidAuthenticationException ex) {
 			LOG.log(Level.WARNING, invalidAuthentication(), ex);
 		} catch (OperationFailedException ex) {
-			LOG.log(Level.SEVERE, operationFailed(), ex);
+			Boolean stale = getStaleMembership(username);
+			if (null == stale) {
+				LOG.log(Level.SEVERE, operationFailed(), ex);
+			} else {
+				LOG.log(Level.FINE, operationFailed(), ex);
+				retval = stale.booleanValue();
+			}
 		}
 
 		return retval;
 	}
 
 	/**
-	 * Checks if the group exists on the remote Crowd server and is active.
+	 * Returns the last known good membership of the user in the Hudson user
+	 * group if the degraded mode is active.
 	 * 
-	 * @return <code>true</code> if and only if:
-	 *         <ul>
-	 *         <li>The group name is empty or</li>
-	 *         <li>The group name is not empty, does exist on the remote Crowd
-	 *         server and is active.</li>
-	 *         </ul>
-	 *         <code>false</code> else.
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return The last known membership or <code>null</code> if it is not
+	 *         known or the degraded mode is not active.
 	 */
-	public boolean isGroupActive() {
-		boolean retval = false;
-		try {
-			Group group = this.crowdClient.getGroup(this.groupName);
-			if (null != group) {
-				retval = group.isActive();
-			}
-		} catch (GroupNotFoundException ex) {
-			LOG.log(Level.INFO, groupNotFound(), ex);
-		} catch (InvalidAuthenticationException ex) {
-			LOG.log(Level.WARNING, invalidAuthentication(), ex);
-		} catch (ApplicationPermissionException ex) {
-			LOG.log(Level.WARNING, applicationPermission(), ex);
-		} catch (OperationFailedException ex) {
-			LOG.log(Level.SEVERE, operationFailed(), ex);
+	private Boolean getStaleMembership(String username) {
+		if (!isServingStale()) {
+			return null;
 		}
 
-		return retval;
+		Boolean direct = this.directMemberships.getStale(username);
+		Boolean nested = this.nestedGroups ? this.nestedMemberships
+				.getStale(username) : Boolean.FALSE;
+		if (Boolean.TRUE.equals(direct) || Boolean.TRUE.equals(nested)) {
+			return Boolean.TRUE;
+		}
+		if (null != direct && null != nested) {
+			return Boolean.FALSE;
+		}
+		return null;
 	}
 
 	/**
-	 * Retrieves the list of all (nested) groups from the Crowd server that the
-	 * user is a member of.
+	 * Checks whether the remote Crowd server is currently unreachable.
 	 * 
-	 * @param username
-	 *            The name of the user. May not be <code>null</code>.
-	 * @return The list of all groups that the user is a member of. Always
-	 *         non-null.
+	 * @return <code>true</code> if the last request to the remote Crowd server
+	 *         failed. <code>false</code> else.
 	 */
-	public Collection<GrantedAuthority> getAuthoritiesForUser(String username) {
-		Collection<GrantedAuthority> authorities = new TreeSet<GrantedAuthority>(
-				new Comparator<GrantedAuthority>() {
-					@Override
-					public int compare(GrantedAuthority ga1,
-							GrantedAuthority ga2) {
-						return ga1.getAuthority().compareTo(ga2.getAuthority());
-					}
-				});
+	public boolean isDegraded() {
+		return null != this.healthMonitor && this.healthMonitor.isFailing();
+	}
 
-		HashSet<String> groupNames = new HashSet<String>();
+	/**
+	 * Returns the time when the remote Crowd server became unreachable.
+	 * 
+	 * @return The time in milliseconds or <code>0</code> if the server is
+	 *         reachable.
+	 */
+	public long getDegradedSince() {
+		return null == this.healthMonitor ? 0 : this.healthMonitor
+				.getFailingSince();
+	}
 
-		// load the names of all groups the user is a direct member of
-		try {
-			int index = 0;
-			while (true) {
-				List<Group> groups = this.crowdClient.getGroupsForUser(
-						username, index, MAX_GROUPS);
-				if (null == groups || groups.isEmpty()) {
-					break;
-				}
-				for (Group group : groups) {
-					if (group.isActive()) {
-						groupNames.add(group.getName());
-					}
-				}
-				index += MAX_GROUPS;
-			}
-		} catch (UserNotFoundException ex) {
-			LOG.log(Level.INFO, userNotFound(), ex);
-		} catch (InvalidAuthenticationException ex) {
-			LOG.log(Level.WARNING, invalidAuthentication(), ex);
-		} catch (ApplicationPermissionException ex) {
-			LOG.log(Level.WARNING, applicationPermission(), ex);
-		} catch (OperationFailedException ex) {
-			LOG.log(Level.SEVERE, operationFailed(), ex);
-		}
+	/**
+	 * Checks whether requests to the remote Crowd server currently fail
+	 * immediately because of too many consecutive failures.
+	 * 
+	 * @return <code>true</code> if the circuit breaker is open or half-open.
+	 *         <code>false</code> else.
+	 */
+	public boolean isCircuitOpen() {
+		return null != this.circuitBreaker
+				&& CrowdCircuitBreaker.State.CLOSED != this.circuitBreaker
+						.getState();
+	}
 
-		// load the names of all groups the user is a nester member of
-		if (this.nestedGroups) {
-			try {
-				int index = 0;
-				while (true) {
-					List<Group> groups = this.crowdClient
-							.getGroupsForNestedUser(username, index, MAX_GROUPS);
-					if (null == groups || groups.isEmpty()) {
-						break;
-					}
-					for (Group group : groups) {
-						if (group.isActive()) {
-							groupNames.add(group.getName());
-						}
-					}
-					index += MAX_GROUPS;
-				}
-			} catch (UserNotFoundException ex) {
-				LOG.log(Level.INFO, userNotFound(), ex);
-			} catch (InvalidAuthenticationException ex) {
-				LOG.log(Level.WARNING, invalidAuthentication(), ex);
-			} catch (ApplicationPermissionException ex) {
-				LOG.log(Level.WARNING, applicationPermission(), ex);
-			} catch (OperationFailedException ex) {
-				LOG.log(Level.SEVERE, operationFailed(), ex);
-			}
-		}
+	/**
+	 * Returns the number of requests that failed immediately because the
+	 * circuit breaker was open.
+	 * 
+	 * @return The number of rejected requests.
+	 */
+	public long getCircuitRejections() {
+		return null == this.circuitBreaker ? 0 : this.circuitBreaker
+				.getRejected();
+	}
 
-		// now create the list of authorities
-		for (String str : groupNames) {
-			authorities.add(new GrantedAuthorityImpl(str));
-		}
+	/**
+	 * Returns the maximum number of concurrent HTTP connections to the remote
+	 * Crowd server.
+	 * 
+	 * @return The size of the connection pool.
+	 */
+	public int getPoolMaxConnections() {
+		return null == this.connectionPool ? 0 : this.connectionPool
+				.getMaxConnections();
+	}
 
-		return authorities;
+	/**
+	 * Returns the number of HTTP connections that are currently in use.
+	 * 
+	 * @return The number of leased connections.
+	 */
+	public int getPoolLeased() {
+		return null == this.connectionPool ? 0 : this.connectionPool
+				.getLeased();
+	}
+
+	/**
+	 * Returns the number of requests that currently wait for a free HTTP
+	 * connection.
+	 * 
+	 * @return The number of pending requests.
+	 */
+	public int getPoolPending() {
+		return null == this.connectionPool ? 0 : this.connectionPool
+				.getPending();
+	}
+
+	/**
+	 * Returns the number of HTTP connections that are currently not in use.
+	 * 
+	 * @return The number of available connections.
+	 */
+	public int getPoolAvailable() {
+		return null == this.connectionPool ? 0 : this.connectionPool
+				.getAvailable();
+	}
+
+	/**
+	 * Returns the number of requests that didn't get a free HTTP connection
+	 * within the connection timeout.
+	 * 
+	 * @return The number of timed out requests.
+	 */
+	public long getPoolTimeouts() {
+		return null == this.connectionPool ? 0 : this.connectionPool
+				.getTimeouts();
+	}
+
+	/**
+	 * Checks whether the last known good data is served because the remote
+	 * Crowd server is unreachable for no longer than the grace period.
+	 * 
+	 * @return <code>true</code> if the last known good data is served.
+	 *         <code>false</code> else.
+	 */
+	public boolean isServingStale() {
+		long since = getDegradedSince();
+		long grace = this.degradedGracePeriod * 1000L;
+		return grace > 0 && 0 != since
+				&& System.currentTimeMillis() - since <= grace;
+	}
+
+	/**
+	 * Remembers a user object as last known good value for the degraded mode.
+	 * 
+	 * @param user
+	 *            The user object. May not be <code>null</code>.
+	 */
+	void rememberUser(User user) {
+		this.knownUsers.put(user.getName(), user, 0);
+	}
+
+	/**
+	 * Returns the last known good user object if the degraded mode is active.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return The last known user object or <code>null</code> if it is not
+	 *         known or the degraded mode is not active.
+	 */
+	User getStaleUser(String username) {
+		return isServingStale() ? this.knownUsers.getStale(username) : null;
+	}
+
+	/**
+	 * Checks whether the user is a direct member of the Hudson user group. The
+	 * result is cached.
+	 * 
+	 * @param username
+	 *            The name of the user to check. May not be <code>null</code>.
+	 * @return <code>true</code> if the user is a direct member of the group.
+	 *         <code>false</code> else.
+	 * @throws ApplicationPermissionException
+	 *             If the application is not permitted to perform the request.
+	 * @throws InvalidAuthenticationException
+	 *             If the application name and/or password are not valid.
+	 * @throws OperationFailedException
+	 *             If the request to the remote Crowd server failed.
+	 */
+	private boolean isDirectGroupMember(String username)
+			throws ApplicationPermissionException,
+			InvalidAuthenticationException, OperationFailedException {
+		Boolean cached = this.directMemberships.get(username);
+		if (null != cached) {
+			return cached.booleanValue();
+		}
+
+		boolean retval = this.crowdClient.isUserDirectGroupMember(username,
+				this.groupName);
+		cacheMembership(this.directMemberships, username, retval);
+		return retval;
+	}
+
+	/**
+	 * Checks whether the user is a nested member of the Hudson user group. The
+	 * result is cached.
+	 * 
+	 * @param username
+	 *            The name of the user to check. May not be <code>null</code>.
+	 * @return <code>true</code> if the user is a nested member of the group.
+	 *         <code>false</code> else.
+	 * @throws ApplicationPermissionException
+	 *             If the application is not permitted to perform the request.
+	 * @throws InvalidAuthenticationException
+	 *             If the application name and/or password are not valid.
+	 * @throws OperationFailedException
+	 *             If the request to the remote Crowd server failed.
+	 */
+	private boolean isNestedGroupMember(String username)
+			throws ApplicationPermissionException,
+			InvalidAuthenticationException, OperationFailedException {
+		Boolean cached = this.nestedMemberships.get(username);
+		if (null != cached) {
+			return cached.booleanValue();
+		}
+
+		boolean retval = this.crowdClient.isUserNestedGroupMember(username,
+				this.groupName);
+		cacheMembership(this.nestedMemberships, username, retval);
+		return retval;
+	}
+
+	/**
+	 * Stores a membership result in the given cache. Positive results are
+	 * cached for the configured lifetime, negative results only for a short
+	 * time.
+	 * 
+	 * @param cache
+	 *            The cache to use. May not be <code>null</code>.
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param member
+	 *            Whether the user is a member of the group.
+	 */
+	private void cacheMembership(TimedCache<String, Boolean> cache,
+			String username, boolean member) {
+		int ttl = member ? this.cacheTtl : Math.min(this.cacheTtl,
+				NEGATIVE_CACHE_TTL);
+		cache.put(username, Boolean.valueOf(member), ttl * 1000L);
+	}
+
+	/**
+	 * Returns the number of remote lookups that were saved because concurrent
+	 * requests for the same user shared one lookup.
+	 * 
+	 * @return The number of coalesced lookups.
+	 */
+	public long getCoalescedLookups() {
+		return this.membershipFlights.getCoalesced()
+				+ this.authorityFlights.getCoalesced()
+				+ this.userFlights.getCoalesced();
+	}
+
+	/**
+	 * Checks whether the membership of users in the Hudson user group is
+	 * answered from the index of the group members.
+	 * 
+	 * @return <code>true</code> if the index is available. <code>false</code>
+	 *         else.
+	 */
+	public boolean isMembershipIndexed() {
+		return null != this.groupMembers;
+	}
+
+	/**
+	 * Returns the number of users in the index of the group members.
+	 * 
+	 * @return The number of indexed users or <code>-1</code> if the index is
+	 *         not available.
+	 */
+	public int getIndexedMembers() {
+		Set<String> members = this.groupMembers;
+		return null == members ? -1 : members.size();
+	}
+
+	/**
+	 * Returns the time when the index of the group members was last loaded.
+	 * 
+	 * @return The time in milliseconds or <code>0</code> if the index was not
+	 *         yet loaded.
+	 */
+	public long getMembershipIndexTimestamp() {
+		return this.groupMembersTimestamp;
+	}
+
+	/**
+	 * Checks whether the index of the group members tells that the user is
+	 * not a member of the Hudson user group. Used to reject users before
+	 * their groups are retrieved from the remote Crowd server.
+	 * 
+	 * @param username
+	 *            The name of the user to check. May not be <code>null</code>.
+	 * @return <code>true</code> if the index is available and doesn't contain
+	 *         the user. <code>false</code> else.
+	 */
+	public boolean isKnownNonMember(String username) {
+		Set<String> members = this.groupMembers;
+		return null != members
+				&& !members.contains(username.toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Triggers a reload of the index of the group members in the background.
+	 * Does nothing if the index is disabled or a reload is already pending.
+	 * 
+	 * @return <code>true</code> if a reload was triggered. <code>false</code>
+	 *         else.
+	 */
+	public boolean reloadMembershipIndex() {
+		if (this.membershipIndexInterval <= 0
+				|| !this.membershipReloadPending.compareAndSet(false, true)) {
+			return false;
+		}
+
+		boolean submitted = executeInBackground(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refreshMembershipIndex();
+				} finally {
+					CrowdConfigurationService.this.membershipReloadPending
+							.set(false);
+				}
+			}
+		});
+		if (!submitted) {
+			this.membershipReloadPending.set(false);
+		}
+		return submitted;
+	}
+
+	/**
+	 * Checks whether the given authorities contain the Hudson user group. As
+	 * the authorities contain all (nested) groups the user is a member of,
+	 * this answers the same question as {@link #isGroupMember(String)}
+	 * without asking the remote Crowd server again.
+	 * 
+	 * @param userAuthorities
+	 *            The authorities of a user as returned by
+	 *            {@link #getAuthoritiesForUser(String)}. May not be
+	 *            <code>null</code>.
+	 * @return <code>true</code> if the user is a member of the Hudson user
+	 *         group. <code>false</code> else.
+	 */
+	public boolean isGroupMember(Collection<GrantedAuthority> userAuthorities) {
+		for (GrantedAuthority authority : userAuthorities) {
+			if (this.groupName.equalsIgnoreCase(authority.getAuthority())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns all granted authorities of a user, i.e. the "authenticated"
+	 * authority followed by the given authorities. Users with the same
+	 * authorities share the returned array, so it must not be modified.
+	 * 
+	 * @param userAuthorities
+	 *            The authorities of a user as returned by
+	 *            {@link #getAuthoritiesForUser(String)}. May not be
+	 *            <code>null</code>.
+	 * @return The granted authorities. Never <code>null</code>.
+	 */
+	public GrantedAuthority[] getGrantedAuthorities(
+			Collection<GrantedAuthority> userAuthorities) {
+		AuthoritySet authoritySet;
+		if (userAuthorities instanceof AuthoritySet) {
+			authoritySet = (AuthoritySet) userAuthorities;
+		} else {
+			Collection<String> names = new HashSet<String>();
+			for (GrantedAuthority authority : userAuthorities) {
+				names.add(authority.getAuthority());
+			}
+			authoritySet = this.authorityRegistry.internSet(names);
+		}
+		return authoritySet.getGrantedAuthorities();
+	}
+
+	/**
+	 * Returns the number of distinct authorities that are interned.
+	 * 
+	 * @return The number of interned authorities.
+	 */
+	public int getInternedAuthorities() {
+		return this.authorityRegistry.getAuthorityCount();
+	}
+
+	/**
+	 * Returns the number of distinct sets of authorities that are shared by
+	 * the users.
+	 * 
+	 * @return The number of shared sets of authorities.
+	 */
+	public int getInternedAuthoritySets() {
+		return this.authorityRegistry.getSetCount();
+	}
+
+	/**
+	 * Records the number of requests sent to the remote Crowd server during a
+	 * login.
+	 * 
+	 * @param username
+	 *            The name of the user that logged in. May not be
+	 *            <code>null</code>.
+	 * @param calls
+	 *            The number of requests.
+	 * @param newLogin
+	 *            <code>true</code> if the requests belong to a new login,
+	 *            <code>false</code> if they complete the login that was
+	 *            recorded last for this user, e.g. by creating the SSO token.
+	 */
+	void recordLogin(String username, int calls, boolean newLogin) {
+		if (newLogin) {
+			this.logins.incrementAndGet();
+		}
+		this.loginCalls.addAndGet(calls);
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine(newLogin ? loginRequests(username, calls) : ssoRequests(
+					username, calls));
+		}
+	}
+
+	/**
+	 * Returns the number of logins since this service was created.
+	 * 
+	 * @return The number of logins.
+	 */
+	public long getLogins() {
+		return this.logins.get();
+	}
+
+	/**
+	 * Returns the average number of requests sent to the remote Crowd server
+	 * per login.
+	 * 
+	 * @return The average number of requests per login.
+	 */
+	public double getAverageCallsPerLogin() {
+		long count = this.logins.get();
+		return 0 == count ? 0 : (double) this.loginCalls.get() / count;
+	}
+
+	/**
+	 * Discards all cached data of the given user.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 */
+	public void invalidateUser(String username) {
+		this.directMemberships.remove(username);
+		this.nestedMemberships.remove(username);
+		this.userAuthorities.remove(username);
+		this.emailAddresses.remove(username);
+		this.rejectedUsers.remove(username);
+		this.knownUsers.remove(username);
+		this.credentials.remove(username);
+	}
+
+	/**
+	 * Discards all cached user data, including the last known users and the
+	 * users that were recently rejected.
+	 */
+	public void invalidateUsers() {
+		this.directMemberships.clear();
+		this.nestedMemberships.clear();
+		this.userAuthorities.clear();
+		this.emailAddresses.clear();
+		this.rejectedUsers.clear();
+		this.knownUsers.clear();
+		this.credentials.clear();
+	}
+
+	/**
+	 * Returns whether the user was recently found not to exist or not to be a
+	 * member of the Hudson user group.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return {@link Boolean#TRUE} if the user doesn't exist,
+	 *         {@link Boolean#FALSE} if the user is not a member of the Hudson
+	 *         user group and <code>null</code> if nothing is known.
+	 */
+	Boolean getUserRejection(String username) {
+		return this.rejectedUsers.get(username);
+	}
+
+	/**
+	 * Remembers that the user doesn't exist or is not a member of the Hudson
+	 * user group.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param unknown
+	 *            <code>true</code> if the user doesn't exist,
+	 *            <code>false</code> if the user is not a member of the Hudson
+	 *            user group.
+	 */
+	void rejectUser(String username, boolean unknown) {
+		this.rejectedUsers.put(username, Boolean.valueOf(unknown),
+				REJECTED_USER_TTL * 1000L);
+	}
+
+	/**
+	 * Returns the number of lookups of users that were rejected from the
+	 * cache of unknown users and non-members.
+	 * 
+	 * @return The number of rejected lookups.
+	 */
+	public long getRejectedUserHits() {
+		return this.rejectedUsers.getHits();
+	}
+
+	/**
+	 * Returns the cached result of a login if the same credentials were
+	 * verified recently.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param password
+	 *            The password of the user. May not be <code>null</code>.
+	 * @return The cached result or <code>null</code> if the credentials must
+	 *         be verified by the remote Crowd server.
+	 */
+	CredentialCache.Entry getVerifiedCredentials(String username,
+			String password) {
+		if (this.credentialCacheTtl <= 0) {
+			return null;
+		}
+		return this.credentials.get(username, password);
+	}
+
+	/**
+	 * Remembers credentials that were successfully verified by the remote
+	 * Crowd server.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param password
+	 *            The password of the user. May not be <code>null</code>.
+	 * @param user
+	 *            The user object. May not be <code>null</code>.
+	 * @param authorities
+	 *            The granted authorities of the user. May not be
+	 *            <code>null</code>.
+	 */
+	void cacheCredentials(String username, String password, User user,
+			GrantedAuthority[] authorities) {
+		if (this.credentialCacheTtl > 0) {
+			this.credentials.put(username, password, user, authorities,
+					this.credentialCacheTtl * 1000L);
+		}
+	}
+
+	/**
+	 * Discards the cached credentials of a user, e.g. after a failed login.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 */
+	void forgetCredentials(String username) {
+		this.credentials.remove(username);
+	}
+
+	/**
+	 * Returns the caches of this service and of the SSO service by their
+	 * names. Used for statistics only.
+	 * 
+	 * @return The caches. Never <code>null</code>.
+	 */
+	Map<String, TimedCache<?, ?>> getCaches() {
+		Map<String, TimedCache<?, ?>> retval = new LinkedHashMap<String, TimedCache<?, ?>>();
+		retval.put("directMemberships", this.directMemberships);
+		retval.put("nestedMemberships", this.nestedMemberships);
+		retval.put("userAuthorities", this.userAuthorities);
+		retval.put("rejectedUsers", this.rejectedUsers);
+		retval.put("knownUsers", this.knownUsers);
+		retval.put("emailAddresses", this.emailAddresses);
+		retval.put("credentials", this.credentials.getEntries());
+		CrowdRememberMeServices ssoService = this.rememberMe;
+		if (null != ssoService) {
+			retval.putAll(ssoService.getCaches());
+		}
+		return retval;
+	}
+
+	/**
+	 * Checks whether the remote Crowd server accepts the application name and
+	 * password. Crowd reports a wrong user password and invalid application
+	 * credentials with the same exception, so this tells both apart after a
+	 * failed login.
+	 * 
+	 * @return <code>true</code> if the application credentials are valid.
+	 *         <code>false</code> if they are not valid or the remote Crowd
+	 *         server cannot be reached.
+	 */
+	public boolean isApplicationAuthenticated() {
+		try {
+			this.crowdClient.testConnection();
+			return true;
+		} catch (InvalidAuthenticationException ex) {
+			LOG.log(Level.WARNING, invalidAuthentication(), ex);
+		} catch (ApplicationPermissionException ex) {
+			LOG.log(Level.WARNING, applicationPermission(), ex);
+		} catch (OperationFailedException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of logins that were rejected because of too many
+	 * failed logins of the user or from the source address.
+	 * 
+	 * @return The number of throttled logins.
+	 */
+	public long getThrottledLogins() {
+		return this.loginThrottle.getRejected();
+	}
+
+	/**
+	 * Returns the number of logins that were answered from the cache of
+	 * recently verified credentials.
+	 * 
+	 * @return The number of cached logins.
+	 */
+	public long getCredentialCacheHits() {
+		return this.credentials.getHits();
+	}
+
+	/**
+	 * Returns the number of requests per request class that the servlet
+	 * filter has seen, i.e. how many requests bypassed the SSO checks.
+	 * 
+	 * @return The number of requests by request class. Empty if the servlet
+	 *         filter was not yet created. Never <code>null</code>.
+	 */
+	public Map<RequestClass, Long> getRequestCounts() {
+		Map<RequestClass, Long> retval = new EnumMap<RequestClass, Long>(
+				RequestClass.class);
+		CrowdRequestClassifier classifier = this.requestClassifier;
+		if (null != classifier) {
+			for (RequestClass requestClass : RequestClass.values()) {
+				retval.put(requestClass, Long.valueOf(classifier
+						.getRequestCount(requestClass)));
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * Returns the email address of a user that is allowed to login into
+	 * Hudson. Only the membership in the Hudson user group and the user entity
+	 * are retrieved from the remote Crowd server, not the groups of the user.
+	 * The result including the membership is cached for a long time, unknown
+	 * users, users without an email address and non-members for a shorter
+	 * time, so a cached address needs no request at all.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return The email address or <code>null</code> if the user doesn't
+	 *         exist, is not a member of the Hudson user group, has no email
+	 *         address or the lookup failed.
+	 */
+	public String getEmailAddress(final String username) {
+		EmailAddress retval = this.emailAddresses.get(username);
+		if (null == retval) {
+			// concurrent lookups for the same user share one remote call
+			retval = this.emailFlights.execute(username,
+					new Callable<EmailAddress>() {
+						@Override
+						public EmailAddress call() {
+							return loadEmailAddress(username);
+						}
+					});
+		}
+		return null == retval ? null : retval.address;
+	}
+
+	/**
+	 * Checks whether a user is allowed to login into Hudson before the email
+	 * address is retrieved. Non-members are cached in the cache of email
+	 * addresses, unless the check failed because the remote Crowd server is
+	 * unreachable.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return <code>true</code> if the user is a member of the active Hudson
+	 *         user group. <code>false</code> else.
+	 */
+	private boolean isEmailRecipient(String username) {
+		if (!isGroupActive()) {
+			return false;
+		}
+		if (isGroupMember(username)) {
+			return true;
+		}
+
+		if (!isDegraded()) {
+			rememberNonMember(username);
+		}
+		return false;
+	}
+
+	/**
+	 * Remembers in the cache of email addresses that a user is not a member of
+	 * the Hudson user group.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 */
+	private void rememberNonMember(String username) {
+		LOG.fine(emailNotMember(username));
+		this.emailAddresses.put(username, NOT_MEMBER,
+				NEGATIVE_EMAIL_CACHE_TTL * 1000L);
+	}
+
+	/**
+	 * Retrieves the email address of a user from the remote Crowd server and
+	 * updates the cache.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return The email address, {@link #NO_EMAIL} if the user doesn't exist
+	 *         or has no email address, {@link #NOT_MEMBER} if the user is not
+	 *         allowed to login into Hudson or <code>null</code> if the lookup
+	 *         failed.
+	 */
+	private EmailAddress loadEmailAddress(String username) {
+		if (!isEmailRecipient(username)) {
+			return NOT_MEMBER;
+		}
+
+		try {
+			User user = this.crowdClient.getUser(username);
+			String email = user.getEmailAddress();
+			if (null != email && 0 != email.trim().length()) {
+				EmailAddress retval = new EmailAddress(email);
+				this.emailAddresses.put(username, retval,
+						EMAIL_CACHE_TTL * 1000L);
+				return retval;
+			}
+		} catch (UserNotFoundException ex) {
+			LOG.log(Level.FINE, userNotFound(), ex);
+		} catch (ApplicationPermissionException ex) {
+			LOG.log(Level.WARNING, applicationPermission(), ex);
+			return null;
+		} catch (InvalidAuthenticationException ex) {
+			LOG.log(Level.WARNING, invalidAuthentication(), ex);
+			return null;
+		} catch (OperationFailedException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex);
+			return null;
+		}
+
+		this.emailAddresses.put(username, NO_EMAIL,
+				NEGATIVE_EMAIL_CACHE_TTL * 1000L);
+		return NO_EMAIL;
+	}
+
+	/**
+	 * Returns the email addresses of several users that are allowed to login
+	 * into Hudson. The membership of the users whose addresses are not cached
+	 * is checked for all of them at once, see {@link #retainMembers(List)}.
+	 * Addresses that are not cached are retrieved with search requests for up
+	 * to
+	 * {@value #MAX_USERS_PER_SEARCH} users each. If a search request fails,
+	 * the addresses of its users are retrieved concurrently one by one. All
+	 * retrieved addresses are cached, so subsequent calls of
+	 * {@link #getEmailAddress(String)} are answered from memory.
+	 * 
+	 * @param usernames
+	 *            The names of the users. May not be <code>null</code>.
+	 * @return The email addresses by user name. Users that don't exist, are
+	 *         not members of the Hudson user group or have no email address
+	 *         are missing. Never <code>null</code>.
+	 */
+	public Map<String, String> getEmailAddresses(Collection<String> usernames) {
+		Map<String, String> retval = new HashMap<String, String>();
+		List<String> missing = new ArrayList<String>();
+		for (String username : new HashSet<String>(usernames)) {
+			EmailAddress email = this.emailAddresses.get(username);
+			if (null == email) {
+				missing.add(username);
+			} else if (null != email.address) {
+				retval.put(username, email.address);
+			}
+		}
+		if (missing.isEmpty() || !isGroupActive()) {
+			return retval;
+		}
+
+		// only the addresses of members are retrieved
+		missing = retainMembers(missing);
+
+		for (int i = 0; i < missing.size(); i += MAX_USERS_PER_SEARCH) {
+			List<String> chunk = missing.subList(i,
+					Math.min(missing.size(), i + MAX_USERS_PER_SEARCH));
+			if (!searchEmailAddresses(chunk, retval)) {
+				loadEmailAddresses(chunk, retval);
+			}
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Returns the users that are allowed to login into Hudson. The membership
+	 * is answered from the index of the group members if it is available.
+	 * Otherwise the names of all group members are retrieved once for all
+	 * users, unless this needs at least as many requests as checking the
+	 * users one by one. Non-members are cached in the cache of email
+	 * addresses.
+	 * 
+	 * @param usernames
+	 *            The names of the users. May not be <code>null</code>.
+	 * @return The names of the users that are members of the Hudson user
+	 *         group. Never <code>null</code>.
+	 */
+	private List<String> retainMembers(List<String> usernames) {
+		Set<String> members = this.groupMembers;
+		if (null == members && usernames.size() > 1) {
+			try {
+				members = loadMemberNames(usernames.size());
+			} catch (GroupNotFoundException ex) {
+				LOG.log(Level.INFO, groupNotFound(), ex);
+				members = Collections.emptySet();
+			} catch (InvalidAuthenticationException ex) {
+				LOG.log(Level.WARNING, invalidAuthentication(), ex);
+			} catch (ApplicationPermissionException ex) {
+				LOG.log(Level.WARNING, applicationPermission(), ex);
+			} catch (OperationFailedException ex) {
+				LOG.log(Level.SEVERE, operationFailed(), ex);
+			}
+		}
+
+		List<String> retval = new ArrayList<String>();
+		for (String username : usernames) {
+			if (null == members) {
+				// the members are not known => check the user on its own
+				if (isEmailRecipient(username)) {
+					retval.add(username);
+				}
+			} else if (members.contains(username.toLowerCase(Locale.ENGLISH))) {
+				retval.add(username);
+			} else {
+				rememberNonMember(username);
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * Retrieves the email addresses of several users with one search request
+	 * and updates the cache.
+	 * 
+	 * @param usernames
+	 *            The names of the users. May not be <code>null</code>.
+	 * @param emails
+	 *            Receives the email addresses by user name. May not be
+	 *            <code>null</code>.
+	 * @return <code>true</code> if the search request succeeded.
+	 *         <code>false</code> else.
+	 */
+	private boolean searchEmailAddresses(List<String> usernames,
+			Map<String, String> emails) {
+		// Crowd matches user names case-insensitively
+		Map<String, String> pending = new HashMap<String, String>();
+		List<SearchRestriction> restrictions = new ArrayList<SearchRestriction>();
+		for (String username : usernames) {
+			pending.put(username.toLowerCase(Locale.ENGLISH), username);
+			restrictions.add(new TermRestriction<String>(UserTermKeys.USERNAME,
+					MatchMode.EXACTLY_MATCHES, username));
+		}
+
+		List<User> users;
+		try {
+			users = this.crowdClient.searchUsers(new BooleanRestrictionImpl(
+					BooleanRestriction.BooleanLogic.OR, restrictions), 0,
+					usernames.size());
+		} catch (ApplicationPermissionException ex) {
+			LOG.log(Level.WARNING, applicationPermission(), ex);
+			return false;
+		} catch (InvalidAuthenticationException ex) {
+			LOG.log(Level.WARNING, invalidAuthentication(), ex);
+			return false;
+		} catch (OperationFailedException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex);
+			return false;
+		}
+
+		if (null != users) {
+			for (User user : users) {
+				String email = user.getEmailAddress();
+				if (null != email && 0 != email.trim().length()) {
+					String username = pending.remove(user.getName()
+							.toLowerCase(Locale.ENGLISH));
+					if (null != username) {
+						this.emailAddresses.put(username, new EmailAddress(
+								email), EMAIL_CACHE_TTL * 1000L);
+						emails.put(username, email);
+					}
+				}
+			}
+		}
+
+		// the remaining users don't exist or have no email address
+		for (String username : pending.values()) {
+			this.emailAddresses.put(username, NO_EMAIL,
+					NEGATIVE_EMAIL_CACHE_TTL * 1000L);
+		}
+		return true;
+	}
+
+	/**
+	 * Retrieves the email addresses of several users one by one. The
+	 * requests are executed concurrently by the threads that retrieve the
+	 * groups of users, so the number of parallel requests is bounded.
+	 * 
+	 * @param usernames
+	 *            The names of the users. May not be <code>null</code>.
+	 * @param emails
+	 *            Receives the email addresses by user name. May not be
+	 *            <code>null</code>.
+	 */
+	private void loadEmailAddresses(List<String> usernames,
+			Map<String, String> emails) {
+		ExecutorService fetcher = this.fetchExecutor;
+		if (null == fetcher) {
+			for (String username : usernames) {
+				String email = getEmailAddress(username);
+				if (null != email) {
+					emails.put(username, email);
+				}
+			}
+			return;
+		}
+
+		long deadline = System.currentTimeMillis() + FETCH_TIMEOUT * 1000L;
+		Map<String, Future<String>> tasks = new HashMap<String, Future<String>>();
+		for (final String username : usernames) {
+			tasks.put(username, fetcher.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return getEmailAddress(username);
+				}
+			}));
+		}
+
+		for (Map.Entry<String, Future<String>> task : tasks.entrySet()) {
+			try {
+				long timeout = Math.max(0,
+						deadline - System.currentTimeMillis());
+				String email = task.getValue().get(timeout,
+						TimeUnit.MILLISECONDS);
+				if (null != email) {
+					emails.put(task.getKey(), email);
+				}
+			} catch (TimeoutException ex) {
+				LOG.log(Level.WARNING, operationTimedOut(), ex);
+				task.getValue().cancel(true);
+			} catch (ExecutionException ex) {
+				LOG.log(Level.SEVERE, operationFailed(), ex);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Checks if the group exists on the remote Crowd server and is active.
+	 * <p>
+	 * The status is cached for the configured refresh interval. When this
+	 * service is started, the cached status is refreshed in the background, so
+	 * callers are normally answered from memory.
+	 * 
+	 * @return <code>true</code> if and only if:
+	 *         <ul>
+	 *         <li>The group name is empty or</li>
+	 *         <li>The group name is not empty, does exist on the remote Crowd
+	 *         server and is active.</li>
+	 *         </ul>
+	 *         <code>false</code> else.
+	 */
+	public boolean isGroupActive() {
+		if (this.groupRefreshInterval <= 0) {
+			Boolean status = loadGroupActive();
+			if (null != status) {
+				this.groupActive = status;
+			} else if (isServingStale()) {
+				// the remote Crowd server is unreachable => last known status
+				status = this.groupActive;
+			}
+			return Boolean.TRUE.equals(status);
+		}
+
+		Boolean retval = this.groupActive;
+		if (null == retval || (null == this.executor && isGroupStatusExpired(1))) {
+			// nothing cached yet or nobody refreshes the status for us
+			// => retrieve it now
+			retval = refreshGroupActive();
+		} else if (isGroupStatusExpired(2)) {
+			// the background refresh is late => trigger it now
+			scheduleGroupRefresh(0);
+		}
+
+		return Boolean.TRUE.equals(retval);
+	}
+
+	/**
+	 * Discards the cached status of the Hudson user group. The next call to
+	 * {@link #isGroupActive()} retrieves it from the remote Crowd server.
+	 */
+	public void invalidateGroupStatus() {
+		this.groupActive = null;
+	}
+
+	/**
+	 * Returns the cookie configuration of the remote Crowd server. The
+	 * configuration is retrieved once and cached afterwards.
+	 * 
+	 * @return The cookie configuration. Never <code>null</code>.
+	 * @throws ApplicationPermissionException
+	 *             If the application is not permitted to perform the request.
+	 * @throws InvalidAuthenticationException
+	 *             If the application name and/or password are not valid.
+	 * @throws OperationFailedException
+	 *             If the request to the remote Crowd server failed.
+	 */
+	public CookieConfiguration getCookieConfiguration()
+			throws ApplicationPermissionException,
+			InvalidAuthenticationException, OperationFailedException {
+		CookieConfiguration retval = this.cookieConfiguration;
+		if (null == retval) {
+			retval = this.crowdClient.getCookieConfiguration();
+			this.cookieConfiguration = retval;
+		}
+		return retval;
+	}
+
+	/**
+	 * Starts the background tasks of this service.
+	 */
+	public synchronized void start() {
+		if (null != this.executor) {
+			return;
+		}
+
+		// retain expired data as last known good values for the degraded mode
+		long retention = this.degradedGracePeriod * 1000L;
+		this.directMemberships.setRetention(retention);
+		this.nestedMemberships.setRetention(retention);
+		this.userAuthorities.setRetention(retention);
+		this.knownUsers.setRetention(retention);
+
+		this.executor = new ScheduledThreadPoolExecutor(2,
+				new DaemonThreadFactory());
+		// when all threads are busy, the caller retrieves the groups itself
+		this.fetchExecutor = new ThreadPoolExecutor(FETCH_THREADS,
+				FETCH_THREADS, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new DaemonThreadFactory(),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+
+		if (this.groupRefreshInterval > 0) {
+			this.executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					refreshGroupActive();
+				}
+			}, 0, this.groupRefreshInterval, TimeUnit.SECONDS);
+		}
+
+		if (this.groupNamesOnly) {
+			int interval = this.groupRefreshInterval > 0 ? this.groupRefreshInterval
+					: DEFAULT_INDEX_REFRESH_INTERVAL;
+			this.executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					// not necessary while events keep the index up to date
+					if (null == CrowdConfigurationService.this.inactiveGroups
+							|| !isSynchronizedByEvents()) {
+						refreshInactiveGroups();
+					}
+				}
+			}, 0, interval, TimeUnit.SECONDS);
+		}
+
+		if (this.membershipIndexInterval > 0) {
+			this.executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					// not necessary while events keep the index up to date
+					if (null == CrowdConfigurationService.this.groupMembers
+							|| !isSynchronizedByEvents()) {
+						refreshMembershipIndex();
+					}
+				}
+			}, 0, this.membershipIndexInterval, TimeUnit.SECONDS);
+		}
+
+		if (this.eventSyncInterval > 0) {
+			this.executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					synchronizeEvents();
+				}
+			}, 0, this.eventSyncInterval, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Checks whether the local data is kept up to date by events of the
+	 * remote Crowd server.
+	 * 
+	 * @return <code>true</code> if the events are applied.
+	 *         <code>false</code> else.
+	 */
+	public boolean isSynchronizedByEvents() {
+		return null != this.eventToken;
+	}
+
+	/**
+	 * Retrieves the events since the last synchronisation from the remote
+	 * Crowd server and applies them to the local data. When the event token
+	 * has expired, the local data is reloaded completely and the
+	 * synchronisation starts over with a new event token.
+	 */
+	void synchronizeEvents() {
+		try {
+			String token = this.eventToken;
+			if (null == token) {
+				// the events after this token are applied from now on, so a
+				// full reload afterwards doesn't miss any change
+				this.eventToken = this.crowdClient.getCurrentEventToken();
+				if (this.fullReloadRequired) {
+					this.fullReloadRequired = false;
+					reloadAll();
+				}
+				return;
+			}
+
+			Events events = this.crowdClient.getNewEvents(token);
+			applyEvents(events.getEvents());
+			this.eventToken = events.getNewEventToken();
+		} catch (EventTokenExpiredException ex) {
+			LOG.log(Level.INFO, eventTokenExpired(), ex);
+			this.eventToken = null;
+			this.fullReloadRequired = true;
+		} catch (IncrementalSynchronisationNotAvailableException ex) {
+			LOG.log(Level.WARNING, eventsNotAvailable(), ex);
+			this.eventToken = null;
+			this.fullReloadRequired = true;
+		} catch (InvalidAuthenticationException ex) {
+			LOG.log(Level.WARNING, invalidAuthentication(), ex);
+		} catch (ApplicationPermissionException ex) {
+			LOG.log(Level.WARNING, applicationPermission(), ex);
+		} catch (OperationFailedException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex);
+		}
+	}
+
+	/**
+	 * Checks whether a group is the Hudson user group. Crowd compares group
+	 * names case-insensitively.
+	 * 
+	 * @param name
+	 *            The name of the group. May not be <code>null</code>.
+	 * @return <code>true</code> if the group is the Hudson user group.
+	 *         <code>false</code> else.
+	 */
+	private boolean isHudsonGroup(String name) {
+		return this.groupName.equalsIgnoreCase(name);
+	}
+
+	/**
+	 * Checks whether the given group names contain the Hudson user group.
+	 * 
+	 * @param names
+	 *            The names of the groups. May not be <code>null</code>.
+	 * @return <code>true</code> if the Hudson user group is contained.
+	 *         <code>false</code> else.
+	 */
+	private boolean containsHudsonGroup(Collection<String> names) {
+		for (String name : names) {
+			if (isHudsonGroup(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Discards all cached data and reloads the indexes.
+	 */
+	private void reloadAll() {
+		invalidateUsers();
+		refreshGroupActive();
+		if (this.groupNamesOnly) {
+			refreshInactiveGroups();
+		}
+		if (this.membershipIndexInterval > 0) {
+			refreshMembershipIndex();
+		}
+	}
+
+	/**
+	 * Applies events of the remote Crowd server to the local data.
+	 * 
+	 * @param events
+	 *            The events in the order they occurred. May not be
+	 *            <code>null</code>.
+	 */
+	private void applyEvents(Iterable<OperationEvent> events) {
+		Set<String> addedMembers = new HashSet<String>();
+		Set<String> removedMembers = new HashSet<String>();
+		Set<String> activatedGroups = new HashSet<String>();
+		Set<String> deactivatedGroups = new HashSet<String>();
+		boolean reloadMembers = false;
+		boolean invalidateUsers = false;
+
+		for (OperationEvent event : events) {
+			Operation operation = event.getOperation();
+			if (event instanceof UserEvent) {
+				String username = ((UserEvent) event).getUser().getName();
+				invalidateUser(username);
+				if (Operation.DELETED == operation) {
+					removedMembers.add(username.toLowerCase(Locale.ENGLISH));
+					addedMembers.remove(username.toLowerCase(Locale.ENGLISH));
+				}
+			} else if (event instanceof GroupEvent) {
+				Group group = ((GroupEvent) event).getGroup();
+				boolean active = Operation.DELETED != operation
+						&& group.isActive();
+				if (active) {
+					activatedGroups.add(group.getName());
+					deactivatedGroups.remove(group.getName());
+				} else {
+					deactivatedGroups.add(group.getName());
+					activatedGroups.remove(group.getName());
+				}
+				if (isHudsonGroup(group.getName())) {
+					this.groupActive = Boolean.valueOf(active);
+					this.groupActiveTimestamp = System.currentTimeMillis();
+				}
+				// the authorities of the members contain the group
+				invalidateUsers = true;
+			} else if (event instanceof UserMembershipEvent) {
+				UserMembershipEvent membership = (UserMembershipEvent) event;
+				String username = membership.getChildUsername();
+				invalidateUser(username);
+				if (containsHudsonGroup(membership.getParentGroupNames())) {
+					String key = username.toLowerCase(Locale.ENGLISH);
+					if (Operation.DELETED == operation) {
+						// the user may still be a nested member
+						if (this.nestedGroups) {
+							reloadMembers = true;
+						}
+						removedMembers.add(key);
+						addedMembers.remove(key);
+					} else {
+						addedMembers.add(key);
+						removedMembers.remove(key);
+					}
+				} else if (this.nestedGroups) {
+					// the group may be nested into the Hudson user group
+					reloadMembers = true;
+				}
+			} else if (event instanceof GroupMembershipEvent) {
+				// changes of the group hierarchy affect the nested groups of
+				// all users
+				invalidateUsers = true;
+				if (this.nestedGroups) {
+					reloadMembers = true;
+				}
+			}
+		}
+
+		if (invalidateUsers) {
+			invalidateUsers();
+		}
+
+		synchronized (this.indexLock) {
+			// a reload in progress may have missed these events
+			if (null != this.groupMemberChanges) {
+				recordChanges(this.groupMemberChanges, addedMembers,
+						removedMembers);
+			}
+			if (null != this.inactiveGroupChanges) {
+				recordChanges(this.inactiveGroupChanges, deactivatedGroups,
+						activatedGroups);
+			}
+
+			Set<String> members = this.groupMembers;
+			if (null != members
+					&& (!addedMembers.isEmpty() || !removedMembers.isEmpty())) {
+				members = new HashSet<String>(members);
+				members.addAll(addedMembers);
+				members.removeAll(removedMembers);
+				this.groupMembers = Collections.unmodifiableSet(members);
+			}
+
+			Set<String> inactive = this.inactiveGroups;
+			if (null != inactive
+					&& (!activatedGroups.isEmpty() || !deactivatedGroups
+							.isEmpty())) {
+				inactive = new HashSet<String>(inactive);
+				inactive.removeAll(activatedGroups);
+				inactive.addAll(deactivatedGroups);
+				this.inactiveGroups = Collections.unmodifiableSet(inactive);
+			}
+		}
+
+		if (reloadMembers) {
+			// nested memberships cannot be derived from single events
+			reloadMembershipIndex();
+		}
+	}
+
+	/**
+	 * Retrieves the names of all (nested) members of the Hudson user group
+	 * from the remote Crowd server and replaces the index of the group
+	 * members. If the names cannot be retrieved, the index is left untouched.
+	 */
+	void refreshMembershipIndex() {
+		Set<String> members;
+
+		synchronized (this.indexLock) {
+			if (0 == this.groupMemberReloads++) {
+				this.groupMemberChanges = new HashMap<String, Boolean>();
+			}
+		}
+		try {
+			try {
+				members = loadMemberNames(Integer.MAX_VALUE);
+			} catch (GroupNotFoundException ex) {
+				// without the group nobody is allowed to login
+				LOG.log(Level.INFO, groupNotFound(), ex);
+				members = new HashSet<String>();
+			}
+
+			synchronized (this.indexLock) {
+				// events applied meanwhile may be missing in the loaded names
+				applyChanges(members, this.groupMemberChanges);
+				this.groupMembers = Collections.unmodifiableSet(members);
+				this.groupMembersTimestamp = System.currentTimeMillis();
+			}
+		} catch (InvalidAuthenticationException ex) {
+			LOG.log(Level.WARNING, invalidAuthentication(), ex);
+			return;
+		} catch (ApplicationPermissionException ex) {
+			LOG.log(Level.WARNING, applicationPermission(), ex);
+			return;
+		} catch (OperationFailedException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex);
+			return;
+		} finally {
+			synchronized (this.indexLock) {
+				if (0 == --this.groupMemberReloads) {
+					this.groupMemberChanges = null;
+				}
+			}
+		}
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine(membersIndexed(members.size(), this.groupName));
+		}
+	}
+
+	/**
+	 * Records the changes of an index by events for the reloads in progress.
+	 * 
+	 * @param changes
+	 *            Receives the changes. May not be <code>null</code>.
+	 * @param added
+	 *            The names that were added to the index. May not be
+	 *            <code>null</code>.
+	 * @param removed
+	 *            The names that were removed from the index. May not be
+	 *            <code>null</code>.
+	 */
+	private static void recordChanges(Map<String, Boolean> changes,
+			Set<String> added, Set<String> removed) {
+		for (String name : added) {
+			changes.put(name, Boolean.TRUE);
+		}
+		for (String name : removed) {
+			changes.put(name, Boolean.FALSE);
+		}
+	}
+
+	/**
+	 * Applies the changes of an index by events to a reloaded index, so that
+	 * a reload doesn't undo events that were applied while it was loading.
+	 * 
+	 * @param index
+	 *            The reloaded index. May not be <code>null</code>.
+	 * @param changes
+	 *            The changes. Maps the names to <code>true</code> if they were
+	 *            added and to <code>false</code> if they were removed. May not
+	 *            be <code>null</code>.
+	 */
+	private static void applyChanges(Set<String> index,
+			Map<String, Boolean> changes) {
+		for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+			if (change.getValue().booleanValue()) {
+				index.add(change.getKey());
+			} else {
+				index.remove(change.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Retrieves the lower-case names of all (nested) members of the Hudson
+	 * user group from the remote Crowd server.
+	 * 
+	 * @param maxRequests
+	 *            The maximum number of requests to send.
+	 * @return The names of the members or <code>null</code> if more requests
+	 *         would be needed.
+	 * @throws GroupNotFoundException
+	 *             If the Hudson user group doesn't exist.
+	 * @throws ApplicationPermissionException
+	 *             If the application is not permitted to perform the request.
+	 * @throws InvalidAuthenticationException
+	 *             If the application name and/or password are not valid.
+	 * @throws OperationFailedException
+	 *             If the request to the remote Crowd server failed.
+	 */
+	private Set<String> loadMemberNames(int maxRequests)
+			throws GroupNotFoundException, ApplicationPermissionException,
+			InvalidAuthenticationException, OperationFailedException {
+		Set<String> retval = new HashSet<String>();
+		int index = 0;
+		for (int i = 0; i < maxRequests; i++) {
+			// the nested users of a group include its direct members
+			List<String> names = this.nestedGroups ? this.crowdClient
+					.getNamesOfNestedUsersOfGroup(this.groupName, index,
+							MAX_USERS) : this.crowdClient
+					.getNamesOfUsersOfGroup(this.groupName, index, MAX_USERS);
+			if (null == names || names.isEmpty()) {
+				return retval;
+			}
+			for (String name : names) {
+				retval.add(name.toLowerCase(Locale.ENGLISH));
+			}
+			index += MAX_USERS;
+		}
+		return null;
+	}
+
+	/**
+	 * Retrieves the names of all inactive groups from the remote Crowd server
+	 * and replaces the index of inactive groups. If the names cannot be
+	 * retrieved, the index is left untouched.
+	 */
+	void refreshInactiveGroups() {
+		SearchRestriction inactive = new TermRestriction<Boolean>(
+				GroupTermKeys.ACTIVE, Boolean.FALSE);
+		Set<String> groupNames = new HashSet<String>();
+
+		synchronized (this.indexLock) {
+			if (0 == this.inactiveGroupReloads++) {
+				this.inactiveGroupChanges = new HashMap<String, Boolean>();
+			}
+		}
+		try {
+			int index = 0;
+			while (true) {
+				List<String> names = this.crowdClient.searchGroupNames(
+						inactive, index, MAX_GROUPS);
+				if (null == names || names.isEmpty()) {
+					break;
+				}
+				groupNames.addAll(names);
+				index += MAX_GROUPS;
+			}
+			synchronized (this.indexLock) {
+				// events applied meanwhile may be missing in the loaded names
+				applyChanges(groupNames, this.inactiveGroupChanges);
+				this.inactiveGroups = Collections.unmodifiableSet(groupNames);
+			}
+		} catch (InvalidAuthenticationException ex) {
+			LOG.log(Level.WARNING, invalidAuthentication(), ex);
+		} catch (ApplicationPermissionException ex) {
+			LOG.log(Level.WARNING, applicationPermission(), ex);
+		} catch (OperationFailedException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex);
+		} finally {
+			synchronized (this.indexLock) {
+				if (0 == --this.inactiveGroupReloads) {
+					this.inactiveGroupChanges = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops all background tasks of this service and releases the HTTP
+	 * connections of the Crowd client.
+	 */
+	public synchronized void shutdown() {
+		if (null != this.executor) {
+			this.executor.shutdownNow();
+			this.executor = null;
+		}
+		if (null != this.fetchExecutor) {
+			this.fetchExecutor.shutdownNow();
+			this.fetchExecutor = null;
+		}
+		if (null != this.crowdClient) {
+			this.crowdClient.shutdown();
+		}
+	}
+
+	/**
+	 * Executes a task in the background.
+	 * 
+	 * @param task
+	 *            The task to execute. May not be <code>null</code>.
+	 * @return <code>true</code> if the task was submitted to the background
+	 *         executor. <code>false</code> if this service isn't started.
+	 */
+	synchronized boolean executeInBackground(Runnable task) {
+		if (null == this.executor) {
+			return false;
+		}
+		this.executor.execute(task);
+		return true;
+	}
+
+	/**
+	 * Checks whether the cached status of the Hudson user group is older than
+	 * a multiple of the refresh interval.
+	 * 
+	 * @param intervals
+	 *            The number of refresh intervals after which the status is
+	 *            considered to be expired.
+	 * @return <code>true</code> if the cached status must be refreshed.
+	 *         <code>false</code> else.
+	 */
+	private boolean isGroupStatusExpired(int intervals) {
+		long age = System.currentTimeMillis() - this.groupActiveTimestamp;
+		return age > intervals * this.groupRefreshInterval * 1000L;
+	}
+
+	/**
+	 * Submits a refresh of the group status to the background executor unless
+	 * a refresh is already pending.
+	 * 
+	 * @param delay
+	 *            The delay in seconds after which the refresh is executed.
+	 */
+	private synchronized void scheduleGroupRefresh(long delay) {
+		if (null != this.executor
+				&& this.groupRefreshPending.compareAndSet(false, true)) {
+			this.executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refreshGroupActive();
+					} finally {
+						CrowdConfigurationService.this.groupRefreshPending
+								.set(false);
+					}
+				}
+			}, delay, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Retrieves the status of the Hudson user group from the remote Crowd
+	 * server and updates the cached status. If the status cannot be
+	 * retrieved, the cached status is left untouched.
+	 * 
+	 * @return The current status of the group. <code>null</code> if it is
+	 *         unknown.
+	 */
+	Boolean refreshGroupActive() {
+		Boolean status = loadGroupActive();
+		if (null != status) {
+			this.groupActive = status;
+			this.groupActiveTimestamp = System.currentTimeMillis();
+		}
+		return this.groupActive;
+	}
+
+	/**
+	 * Retrieves the status of the Hudson user group from the remote Crowd
+	 * server.
+	 * 
+	 * @return {@link Boolean#TRUE} if the group exists and is active,
+	 *         {@link Boolean#FALSE} if it doesn't exist or is inactive and
+	 *         <code>null</code> if the status cannot be determined.
+	 */
+	private Boolean loadGroupActive() {
+		Boolean retval = null;
+		try {
+			Group group = this.crowdClient.getGroup(this.groupName);
+			retval = Boolean.valueOf(null != group && group.isActive());
+		} catch (GroupNotFoundException ex) {
+			LOG.log(Level.INFO, groupNotFound(), ex);
+			retval = Boolean.FALSE;
+		} catch (InvalidAuthenticationException ex) {
+			LOG.log(Level.WARNING, invalidAuthentication(), ex);
+		} catch (ApplicationPermissionException ex) {
+			LOG.log(Level.WARNING, applicationPermission(), ex);
+		} catch (OperationFailedException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex);
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Retrieves the list of all (nested) groups from the Crowd server that the
+	 * user is a member of.
+	 * <p>
+	 * The result is cached. When a cached result reaches
+	 * {@value #REFRESH_AHEAD_FACTOR} of its lifetime it is refreshed in the
+	 * background, so frequently active users are always served from memory.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return The list of all groups that the user is a member of. Always
+	 *         non-null.
+	 */
+	public Collection<GrantedAuthority> getAuthoritiesForUser(String username) {
+		Collection<GrantedAuthority> cached = this.userAuthorities.get(username);
+		if (null != cached) {
+			if (this.userAuthorities.isRefreshDue(username, REFRESH_AHEAD_FACTOR)) {
+				scheduleAuthoritiesRefresh(username);
+			}
+			return cached;
+		}
+
+		return refreshAuthorities(username);
+	}
+
+	/**
+	 * Submits a refresh of the cached authorities of a user to the background
+	 * executor unless a refresh for this user is already pending.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 */
+	private synchronized void scheduleAuthoritiesRefresh(final String username) {
+		if (null != this.executor
+				&& this.pendingAuthorityRefreshes.add(username)) {
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refreshAuthorities(username);
+					} finally {
+						CrowdConfigurationService.this.pendingAuthorityRefreshes
+								.remove(username);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Retrieves the authorities of a user from the remote Crowd server and
+	 * updates the cache. Concurrent calls for the same user are coalesced.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return The list of all groups that the user is a member of. Always
+	 *         non-null.
+	 */
+	private Collection<GrantedAuthority> refreshAuthorities(
+			final String username) {
+		// concurrent retrievals for the same user share one remote lookup
+		return this.authorityFlights.execute(username,
+				new Callable<Collection<GrantedAuthority>>() {
+					@Override
+					public Collection<GrantedAuthority> call() {
+						return loadAuthorities(username);
+					}
+				});
+	}
+
+	/**
+	 * Retrieves the authorities of a user from the remote Crowd server and
+	 * updates the cache. The result is only cached when all groups could be
+	 * retrieved.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return The list of all groups that the user is a member of. Always
+	 *         non-null.
+	 */
+	private Collection<GrantedAuthority> loadAuthorities(String username) {
+		Collection<String> groupNames = new HashSet<String>();
+		boolean complete;
+
+		ExecutorService fetcher = this.fetchExecutor;
+		if (this.nestedGroups && null != fetcher) {
+			// load the names of all groups the user is a direct and a nested
+			// member of concurrently
+			long deadline = System.currentTimeMillis() + FETCH_TIMEOUT * 1000L;
+			Future<Collection<String>> direct = fetcher
+					.submit(groupNamesLoader(username, false));
+			Future<Collection<String>> nested = fetcher
+					.submit(groupNamesLoader(username, true));
+			complete = awaitGroupNames(direct, deadline, groupNames)
+					& awaitGroupNames(nested, deadline, groupNames);
+		} else {
+			// load the names of all groups the user is a direct member of
+			complete = loadGroupNames(username, false, groupNames);
+
+			// load the names of all groups the user is a nester member of
+			if (this.nestedGroups) {
+				complete &= loadGroupNames(username, true, groupNames);
+			}
+		}
+
+		// now create the list of authorities; users with the same groups
+		// share one instance
+		Collection<GrantedAuthority> authorities = this.authorityRegistry
+				.internSet(groupNames);
+
+		if (!complete && isServingStale()) {
+			// the remote Crowd server is unreachable => last known authorities
+			Collection<GrantedAuthority> stale = this.userAuthorities
+					.getStale(username);
+			if (null != stale) {
+				return stale;
+			}
+		}
+
+		if (complete) {
+			this.userAuthorities.put(username, authorities,
+					this.cacheTtl * 1000L);
+			if (!isGroupMember(authorities)) {
+				rejectUser(username, false);
+			}
+		}
+
+		return authorities;
+	}
+
+	/**
+	 * Creates a task that retrieves the names of all active groups the user
+	 * is a member of.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param nested
+	 *            <code>true</code> to retrieve the groups the user is a nested
+	 *            member of, <code>false</code> to retrieve the groups the user
+	 *            is a direct member of.
+	 * @return The task. Its result are the group names or <code>null</code>
+	 *         if not all groups could be retrieved.
+	 */
+	private Callable<Collection<String>> groupNamesLoader(
+			final String username, final boolean nested) {
+		// requests sent by the worker thread count for the calling thread
+		final AtomicInteger callCounter = CrowdCallCounter.current();
+		return new Callable<Collection<String>>() {
+			@Override
+			public Collection<String> call() {
+				AtomicInteger previous = CrowdCallCounter.current();
+				CrowdCallCounter.attach(callCounter);
+				try {
+					Collection<String> groupNames = new HashSet<String>();
+					if (loadGroupNames(username, nested, groupNames)) {
+						return groupNames;
+					}
+					return null;
+				} finally {
+					CrowdCallCounter.attach(previous);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Waits until a task that retrieves group names is done and adds the
+	 * group names to the given collection.
+	 * 
+	 * @param task
+	 *            The task. May not be <code>null</code>.
+	 * @param deadline
+	 *            The time until which the task must be done.
+	 * @param groupNames
+	 *            Receives the group names. May not be <code>null</code>.
+	 * @return <code>true</code> if the task retrieved all groups.
+	 *         <code>false</code> if it failed or didn't finish in time.
+	 */
+	private boolean awaitGroupNames(Future<Collection<String>> task,
+			long deadline, Collection<String> groupNames) {
+		try {
+			long timeout = Math.max(0, deadline - System.currentTimeMillis());
+			Collection<String> result = task.get(timeout,
+					TimeUnit.MILLISECONDS);
+			if (null != result) {
+				groupNames.addAll(result);
+				return true;
+			}
+			return false;
+		} catch (TimeoutException ex) {
+			LOG.log(Level.WARNING, operationTimedOut(), ex);
+		} catch (ExecutionException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		task.cancel(true);
+		return false;
+	}
+
+	/**
+	 * Retrieves the names of all active groups the user is a member of.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param nested
+	 *            <code>true</code> to retrieve the groups the user is a nested
+	 *            member of, <code>false</code> to retrieve the groups the user
+	 *            is a direct member of.
+	 * @param groupNames
+	 *            Receives the group names. May not be <code>null</code>.
+	 * @return <code>true</code> if all groups could be retrieved.
+	 *         <code>false</code> if an error occurred.
+	 */
+	private boolean loadGroupNames(String username, boolean nested,
+			Collection<String> groupNames) {
+		Set<String> inactive = this.inactiveGroups;
+		if (this.groupNamesOnly && null != inactive) {
+			return loadGroupNamesOnly(username, nested, inactive, groupNames);
+		}
+
+		try {
+			int index = 0;
+			while (true) {
+				List<Group> groups;
+				if (nested) {
+					groups = this.crowdClient.getGroupsForNestedUser(username,
+							index, MAX_GROUPS);
+				} else {
+					groups = this.crowdClient.getGroupsForUser(username, index,
+							MAX_GROUPS);
+				}
+				if (null == groups || groups.isEmpty()) {
+					break;
+				}
+				for (Group group : groups) {
+					if (group.isActive()) {
+						groupNames.add(group.getName());
+					}
+				}
+				index += MAX_GROUPS;
+			}
+			return true;
+		} catch (UserNotFoundException ex) {
+			LOG.info(userNotFound());
+			LOG.log(Level.FINE, userNotFound(), ex);
+			rejectUser(username, true);
+		} catch (InvalidAuthenticationException ex) {
+			LOG.log(Level.WARNING, invalidAuthentication(), ex);
+		} catch (ApplicationPermissionException ex) {
+			LOG.log(Level.WARNING, applicationPermission(), ex);
+		} catch (OperationFailedException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Retrieves the names of all active groups the user is a member of. Only
+	 * the group names are retrieved from the remote Crowd server; inactive
+	 * groups are filtered out using the given index.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param nested
+	 *            <code>true</code> to retrieve the groups the user is a nested
+	 *            member of, <code>false</code> to retrieve the groups the user
+	 *            is a direct member of.
+	 * @param inactive
+	 *            The names of all inactive groups. May not be
+	 *            <code>null</code>.
+	 * @param groupNames
+	 *            Receives the group names. May not be <code>null</code>.
+	 * @return <code>true</code> if all groups could be retrieved.
+	 *         <code>false</code> if an error occurred.
+	 */
+	private boolean loadGroupNamesOnly(String username, boolean nested,
+			Set<String> inactive, Collection<String> groupNames) {
+		try {
+			int index = 0;
+			while (true) {
+				List<String> names;
+				if (nested) {
+					names = this.crowdClient.getNamesOfGroupsForNestedUser(
+							username, index, MAX_GROUPS);
+				} else {
+					names = this.crowdClient.getNamesOfGroupsForUser(username,
+							index, MAX_GROUPS);
+				}
+				if (null == names || names.isEmpty()) {
+					break;
+				}
+				for (String name : names) {
+					if (!inactive.contains(name)) {
+						groupNames.add(name);
+					}
+				}
+				index += MAX_GROUPS;
+			}
+			return true;
+		} catch (UserNotFoundException ex) {
+			LOG.info(userNotFound());
+			LOG.log(Level.FINE, userNotFound(), ex);
+			rejectUser(username, true);
+		} catch (InvalidAuthenticationException ex) {
+			LOG.log(Level.WARNING, invalidAuthentication(), ex);
+		} catch (ApplicationPermissionException ex) {
+			LOG.log(Level.WARNING, applicationPermission(), ex);
+		} catch (OperationFailedException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex);
+		}
+
+		return false;
+	}
+
+	/**
+	 * A cached email address.
+	 */
+	private static final class EmailAddress {
+		/**
+		 * The email address. <code>null</code> if the user has none or is
+		 * not resolved.
+		 */
+		final String address;
+
+		/**
+		 * Creates a new instance.
+		 * 
+		 * @param pAddress
+		 *            The email address. May be <code>null</code>.
+		 */
+		EmailAddress(String pAddress) {
+			this.address = pAddress;
+		}
 	}
 }
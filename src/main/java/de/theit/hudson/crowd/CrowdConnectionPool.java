@@ -0,0 +1,253 @@
+/*
+ * @(#)CrowdConnectionPool.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * Limits the number of concurrent requests to the remote Crowd server to the
+ * size of the HTTP connection pool of the Crowd client and keeps track of how
+ * the pool is used. Requests that exceed the limit wait for a free connection
+ * at most for the connection timeout.
+ * <p>
+ * A request that doesn't get a connection in time fails with a
+ * {@link PoolExhaustedException}. This is a purely local condition, so the
+ * pool sits above the circuit breaker and the health monitor and doesn't
+ * count as a failure of the remote Crowd server.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 21.10.2011
+ * @version $Id$
+ */
+final class CrowdConnectionPool implements InvocationHandler {
+	/** The Crowd client that executes the requests. */
+	private final CrowdClient target;
+
+	/** The Crowd client whose requests are limited by this pool. */
+	private final CrowdClient client;
+
+	/** The maximum number of concurrent requests. */
+	private final int maxConnections;
+
+	/**
+	 * The time in milliseconds a request waits for a free connection.
+	 * <code>0</code> lets it wait until a connection becomes available.
+	 */
+	private final long leaseTimeout;
+
+	/** The free connections. */
+	private final Semaphore connections;
+
+	/** The number of requests that currently wait for a free connection. */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/** The number of requests that didn't get a connection in time. */
+	private final AtomicLong timeouts = new AtomicLong();
+
+	/**
+	 * Creates a new instance.
+	 * 
+	 * @param pTarget
+	 *            The Crowd client that executes the requests. May not be
+	 *            <code>null</code>.
+	 * @param pMaxConnections
+	 *            The maximum number of concurrent requests. Must be
+	 *            <code>&gt; 0</code>.
+	 * @param pLeaseTimeout
+	 *            The time in milliseconds a request waits for a free
+	 *            connection. <code>0</code> lets it wait until a connection
+	 *            becomes available.
+	 */
+	CrowdConnectionPool(CrowdClient pTarget, int pMaxConnections,
+			long pLeaseTimeout) {
+		this.target = pTarget;
+		this.maxConnections = pMaxConnections;
+		this.leaseTimeout = pLeaseTimeout;
+		this.connections = new Semaphore(pMaxConnections, true);
+		this.client = (CrowdClient) Proxy.newProxyInstance(
+				CrowdClient.class.getClassLoader(),
+				new Class<?>[] { CrowdClient.class }, this);
+	}
+
+	/**
+	 * Returns the Crowd client whose requests are limited by this pool.
+	 * 
+	 * @return The wrapped Crowd client. Never <code>null</code>.
+	 */
+	CrowdClient getClient() {
+		return this.client;
+	}
+
+	/**
+	 * Returns the maximum number of concurrent requests.
+	 * 
+	 * @return The size of the pool.
+	 */
+	int getMaxConnections() {
+		return this.maxConnections;
+	}
+
+	/**
+	 * Returns the number of connections that are currently in use.
+	 * 
+	 * @return The number of leased connections.
+	 */
+	int getLeased() {
+		return this.maxConnections - this.connections.availablePermits();
+	}
+
+	/**
+	 * Returns the number of requests that currently wait for a free
+	 * connection.
+	 * 
+	 * @return The number of pending requests.
+	 */
+	int getPending() {
+		return this.pending.get();
+	}
+
+	/**
+	 * Returns the number of connections that are currently not in use.
+	 * 
+	 * @return The number of available connections.
+	 */
+	int getAvailable() {
+		return this.connections.availablePermits();
+	}
+
+	/**
+	 * Returns the number of requests that didn't get a connection within the
+	 * lease timeout.
+	 * 
+	 * @return The number of timed out requests.
+	 */
+	long getTimeouts() {
+		return this.timeouts.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+	 *      java.lang.reflect.Method, java.lang.Object[])
+	 */
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		if (!isRequest(method)) {
+			return call(method, args);
+		}
+
+		lease();
+		try {
+			return call(method, args);
+		} finally {
+			this.connections.release();
+		}
+	}
+
+	/**
+	 * Checks whether the method sends a request to the remote Crowd server,
+	 * i.e. whether it may fail with an {@link OperationFailedException}.
+	 * 
+	 * @param method
+	 *            The method. May not be <code>null</code>.
+	 * @return <code>true</code> if the method sends a request.
+	 *         <code>false</code> else.
+	 */
+	private static boolean isRequest(Method method) {
+		for (Class<?> type : method.getExceptionTypes()) {
+			if (type.isAssignableFrom(OperationFailedException.class)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Waits for a free connection.
+	 * 
+	 * @throws PoolExhaustedException
+	 *             If no connection became available within the lease timeout
+	 *             or the thread was interrupted.
+	 */
+	private void lease() throws PoolExhaustedException {
+		boolean leased;
+		this.pending.incrementAndGet();
+		try {
+			if (this.leaseTimeout > 0) {
+				leased = this.connections.tryAcquire(this.leaseTimeout,
+						TimeUnit.MILLISECONDS);
+			} else {
+				this.connections.acquire();
+				leased = true;
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new PoolExhaustedException(
+					"Interrupted while waiting for a connection", ex);
+		} finally {
+			this.pending.decrementAndGet();
+		}
+
+		if (!leased) {
+			this.timeouts.incrementAndGet();
+			throw new PoolExhaustedException(
+					"No connection to the Crowd server available", null);
+		}
+	}
+
+	/**
+	 * Executes a request.
+	 * 
+	 * @param method
+	 *            The method to invoke. May not be <code>null</code>.
+	 * @param args
+	 *            The arguments. May be <code>null</code>.
+	 * @return The result of the request.
+	 * @throws Throwable
+	 *             The exception thrown by the request.
+	 */
+	private Object call(Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(this.target, args);
+		} catch (InvocationTargetException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	/**
+	 * Thrown if a request doesn't get a free connection in time. The request
+	 * was never sent, so this says nothing about the state of the remote
+	 * Crowd server.
+	 */
+	static final class PoolExhaustedException extends OperationFailedException {
+		/** Necessary for serialisation. */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Creates a new instance.
+		 * 
+		 * @param message
+		 *            The detail message. May not be <code>null</code>.
+		 * @param cause
+		 *            The cause. May be <code>null</code>.
+		 */
+		PoolExhaustedException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+}
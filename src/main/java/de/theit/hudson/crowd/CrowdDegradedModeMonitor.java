@@ -0,0 +1,61 @@
+/*
+ * @(#)CrowdDegradedModeMonitor.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import hudson.Extension;
+import hudson.model.AdministrativeMonitor;
+
+import java.util.Date;
+
+/**
+ * Shows a warning on the "Manage Hudson" page while the remote Crowd server is
+ * unreachable and the plugin runs in degraded mode.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 21.10.2011
+ * @version $Id$
+ */
+@Extension
+public class CrowdDegradedModeMonitor extends AdministrativeMonitor {
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see hudson.model.AdministrativeMonitor#isActivated()
+	 */
+	@Override
+	public boolean isActivated() {
+		CrowdConfigurationService configuration = CrowdSecurityRealm
+				.getActiveConfiguration();
+		return null != configuration && configuration.isDegraded();
+	}
+
+	/**
+	 * Returns the time when the remote Crowd server became unreachable. Used
+	 * by the view.
+	 * 
+	 * @return The time or <code>null</code> if the server is reachable.
+	 */
+	public Date getDegradedSince() {
+		CrowdConfigurationService configuration = CrowdSecurityRealm
+				.getActiveConfiguration();
+		if (null == configuration || !configuration.isDegraded()) {
+			return null;
+		}
+		return new Date(configuration.getDegradedSince());
+	}
+
+	/**
+	 * Checks whether the last known good data is served. Used by the view.
+	 * 
+	 * @return <code>true</code> if the last known good data is served.
+	 *         <code>false</code> else.
+	 */
+	public boolean isServingStale() {
+		CrowdConfigurationService configuration = CrowdSecurityRealm
+				.getActiveConfiguration();
+		return null != configuration && configuration.isServingStale();
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * @(#)CrowdHealthMonitor.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import static de.theit.hudson.crowd.ErrorMessages.crowdNotReachable;
+import static de.theit.hudson.crowd.ErrorMessages.crowdReachable;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * Watches the requests that are sent to the remote Crowd server and keeps
+ * track of whether the server is reachable. A request that fails with an
+ * {@link OperationFailedException} or a runtime exception marks the server as
+ * unreachable, any other outcome marks it as reachable again.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 21.10.2011
+ * @version $Id$
+ */
+final class CrowdHealthMonitor implements InvocationHandler {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdHealthMonitor.class
+			.getName());
+
+	/** The Crowd client that executes the requests. */
+	private final CrowdClient target;
+
+	/** The Crowd client whose requests are watched by this monitor. */
+	private final CrowdClient client;
+
+	/**
+	 * The time when the remote Crowd server became unreachable.
+	 * <code>0</code> if it is reachable.
+	 */
+	private volatile long failingSince;
+
+	/**
+	 * Creates a new instance.
+	 * 
+	 * @param pTarget
+	 *            The Crowd client that executes the requests. May not be
+	 *            <code>null</code>.
+	 */
+	CrowdHealthMonitor(CrowdClient pTarget) {
+		this.target = pTarget;
+		this.client = (CrowdClient) Proxy.newProxyInstance(
+				CrowdClient.class.getClassLoader(),
+				new Class<?>[] { CrowdClient.class }, this);
+	}
+
+	/**
+	 * Returns the Crowd client whose requests are watched by this monitor.
+	 * 
+	 * @return The wrapped Crowd client. Never <code>null</code>.
+	 */
+	CrowdClient getClient() {
+		return this.client;
+	}
+
+	/**
+	 * Checks whether the remote Crowd server is currently unreachable.
+	 * 
+	 * @return <code>true</code> if the last request failed.
+	 *         <code>false</code> else.
+	 */
+	boolean isFailing() {
+		return 0 != this.failingSince;
+	}
+
+	/**
+	 * Returns the time when the remote Crowd server became unreachable.
+	 * 
+	 * @return The time in milliseconds or <code>0</code> if the server is
+	 *         reachable.
+	 */
+	long getFailingSince() {
+		return this.failingSince;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+	 *      java.lang.reflect.Method, java.lang.Object[])
+	 */
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		try {
+			Object retval = method.invoke(this.target, args);
+			recordSuccess();
+			return retval;
+		} catch (InvocationTargetException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof OperationFailedException
+					|| cause instanceof RuntimeException) {
+				recordFailure(cause);
+			} else {
+				// the server answered, e.g. that a user doesn't exist
+				recordSuccess();
+			}
+			throw cause;
+		}
+	}
+
+	/**
+	 * Marks the remote Crowd server as reachable.
+	 */
+	private void recordSuccess() {
+		if (0 != this.failingSince) {
+			this.failingSince = 0;
+			LOG.info(crowdReachable());
+		}
+	}
+
+	/**
+	 * Marks the remote Crowd server as unreachable.
+	 * 
+	 * @param cause
+	 *            The reason why a request failed. May not be
+	 *            <code>null</code>.
+	 */
+	private void recordFailure(Throwable cause) {
+		if (0 == this.failingSince) {
+			this.failingSince = System.currentTimeMillis();
+			LOG.log(Level.WARNING, crowdNotReachable(), cause);
+		}
+	}
+}
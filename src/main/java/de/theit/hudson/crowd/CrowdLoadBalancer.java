@@ -0,0 +1,804 @@
+/*
+ * @(#)CrowdLoadBalancer.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import static de.theit.hudson.crowd.ErrorMessages.nodeAvailable;
+import static de.theit.hudson.crowd.ErrorMessages.nodeEjected;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * Spreads the requests to the remote Crowd server across several Crowd nodes.
+ * Each request is sent to the healthy node with the lowest expected response
+ * time, i.e. the average response time of the node weighted with the number
+ * of requests currently in progress on that node. If a read-only request
+ * fails with an {@link OperationFailedException} or a runtime exception, it
+ * is repeated on the next healthy node. Other requests, e.g. creating an SSO
+ * session or changing a user, are only repeated if the node couldn't be
+ * connected at all; after a timeout the node may already have executed them.
+ * <p>
+ * A node is ejected after a number of consecutive failed requests. After a
+ * while, a single request is sent to the ejected node again as probe; if it
+ * succeeds, the node is put back.
+ * <p>
+ * Optionally, read-only requests are hedged: if the node doesn't answer
+ * within a percentile of the recent response times, the request is also sent
+ * to the next best node and the first answer is used. A budget limits the
+ * duplicates to a share of the read-only requests. The requests are sent by a
+ * bounded thread pool; if it is exhausted, the request is sent by the calling
+ * thread without a duplicate, or the duplicate is skipped.
+ * <p>
+ * The hedged requests bypass the {@link CrowdConnectionPool} that wraps the
+ * load balancer: the caller holds one permit, but both the request and its
+ * duplicate use a connection, and a request that lost keeps its connection
+ * until it notices that it was cancelled. The thread pool therefore bounds
+ * the additional connections to the maximum number of concurrent requests
+ * plus the hedging burst; the requests in progress are reported by
+ * {@link #getHedgesInFlight()}.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 21.10.2011
+ * @version $Id$
+ */
+final class CrowdLoadBalancer implements InvocationHandler {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdLoadBalancer.class
+			.getName());
+
+	/** The number of consecutive failed requests that eject a node. */
+	private static final int EJECT_THRESHOLD = 3;
+
+	/** The time in milliseconds after which an ejected node is probed. */
+	private static final long PROBE_INTERVAL = 30000;
+
+	/** The weight of the latest response time in the average response time. */
+	private static final double LATENCY_WEIGHT = 0.2;
+
+	/** The number of recent response times the hedging delay is based on. */
+	private static final int SAMPLES = 256;
+
+	/** The number of response times needed before requests are hedged. */
+	private static final int MIN_SAMPLES = 32;
+
+	/** The number of response times after which the delay is recalculated. */
+	private static final int HEDGE_DELAY_UPDATE = 32;
+
+	/**
+	 * The share of read-only requests in percent that may be sent twice.
+	 */
+	private static final int HEDGE_BUDGET = 10;
+
+	/** The number of duplicates that may be sent in a row. */
+	private static final int HEDGE_BURST = 10;
+
+	/**
+	 * The names of the methods of the Crowd client that only read data from
+	 * the remote Crowd server. These may be repeated on another node or sent
+	 * to several nodes at once.
+	 */
+	private static final Set<String> READ_ONLY = Collections
+			.unmodifiableSet(new HashSet<String>(Arrays.asList("getUser",
+					"getUserWithAttributes", "getGroup",
+					"getGroupWithAttributes", "getNamesOfGroupsForUser",
+					"getGroupsForUser", "getNamesOfGroupsForNestedUser",
+					"getGroupsForNestedUser", "getNamesOfUsersOfGroup",
+					"getUsersOfGroup", "getNamesOfNestedUsersOfGroup",
+					"getNestedUsersOfGroup", "getNamesOfChildGroupsOfGroup",
+					"getChildGroupsOfGroup",
+					"getNamesOfNestedChildGroupsOfGroup",
+					"getNestedChildGroupsOfGroup",
+					"getNamesOfParentGroupsForGroup",
+					"getParentGroupsForGroup",
+					"getNamesOfParentGroupsForNestedGroup",
+					"getParentGroupsForNestedGroup", "getMemberships",
+					"isUserDirectGroupMember", "isUserNestedGroupMember",
+					"isGroupDirectGroupMember", "searchUsers",
+					"searchUserNames", "searchGroups", "searchGroupNames",
+					"findUserFromSSOToken", "validateSSOAuthentication",
+					"getCookieConfiguration", "getCurrentEventToken",
+					"getNewEvents", "testConnection")));
+
+	/** The Crowd nodes. */
+	private final List<Node> nodes;
+
+	/** The Crowd client whose requests are spread across the nodes. */
+	private final CrowdClient client;
+
+	/**
+	 * The percentile of the response times after which a read-only request
+	 * is sent to a second node.
+	 */
+	private final int hedgingPercentile;
+
+	/**
+	 * Sends hedged requests. <code>null</code> if requests are not hedged.
+	 */
+	private final ExecutorService hedgeExecutor;
+
+	/** The recent response times in milliseconds. */
+	private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+
+	/** The number of recorded response times. */
+	private final AtomicInteger sampleCount = new AtomicInteger();
+
+	/** The hedging delay in milliseconds. <code>-1</code> if unknown. */
+	private volatile long hedgeDelay = -1;
+
+	/** The hedging budget in hundredths of a duplicate request. */
+	private final AtomicLong hedgeTokens = new AtomicLong(HEDGE_BURST * 100);
+
+	/** The number of duplicate requests that were sent. */
+	private final AtomicLong hedged = new AtomicLong();
+
+	/** The number of duplicate requests that answered first. */
+	private final AtomicLong hedgeWins = new AtomicLong();
+
+	/**
+	 * The number of hedged requests and duplicates in progress, including
+	 * those that lost but didn't stop yet.
+	 */
+	private final AtomicInteger hedgesInFlight = new AtomicInteger();
+
+	/**
+	 * Creates a new instance.
+	 * 
+	 * @param pUrls
+	 *            The base URLs of the Crowd nodes. May not be
+	 *            <code>null</code>.
+	 * @param pClients
+	 *            The Crowd clients of the nodes in the same order as the URLs.
+	 *            May not be <code>null</code>.
+	 * @param pHedgingPercentile
+	 *            The percentile of the response times after which a read-only
+	 *            request is sent to a second node. Must be between
+	 *            <code>0</code> and <code>100</code>. <code>0</code> disables
+	 *            hedging.
+	 * @param pMaxConnections
+	 *            The maximum number of concurrent requests. Limits the threads
+	 *            that send hedged requests together with the hedging burst.
+	 */
+	CrowdLoadBalancer(List<String> pUrls, List<CrowdClient> pClients,
+			int pHedgingPercentile, int pMaxConnections) {
+		this.nodes = new ArrayList<Node>(pClients.size());
+		for (int i = 0; i < pClients.size(); i++) {
+			this.nodes.add(new Node(pUrls.get(i), pClients.get(i)));
+		}
+		this.hedgingPercentile = pHedgingPercentile;
+		// no queue: if all threads are busy, the task is rejected and the
+		// caller sends the request itself or skips the duplicate
+		this.hedgeExecutor = pHedgingPercentile > 0 ? new ThreadPoolExecutor(
+				0, Math.max(1, pMaxConnections) + HEDGE_BURST, 60,
+				TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+				new DaemonThreadFactory(), new ThreadPoolExecutor.AbortPolicy())
+				: null;
+		this.client = (CrowdClient) Proxy.newProxyInstance(
+				CrowdClient.class.getClassLoader(),
+				new Class<?>[] { CrowdClient.class }, this);
+	}
+
+	/**
+	 * Returns the Crowd client whose requests are spread across the nodes.
+	 * 
+	 * @return The wrapped Crowd client. Never <code>null</code>.
+	 */
+	CrowdClient getClient() {
+		return this.client;
+	}
+
+	/**
+	 * Returns the Crowd nodes.
+	 * 
+	 * @return The nodes. Never <code>null</code>.
+	 */
+	List<Node> getNodes() {
+		return this.nodes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+	 *      java.lang.reflect.Method, java.lang.Object[])
+	 */
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		if (!isRequest(method)) {
+			// e.g. shutting down the clients
+			if (null != this.hedgeExecutor
+					&& "shutdown".equals(method.getName())) {
+				this.hedgeExecutor.shutdownNow();
+			}
+			Object retval = null;
+			for (Node node : this.nodes) {
+				retval = call(node.client, method, args);
+			}
+			return retval;
+		}
+
+		List<Node> tried = new ArrayList<Node>(this.nodes.size());
+		Throwable failure = null;
+		if (null != this.hedgeExecutor && isReadOnly(method)) {
+			addHedgeTokens();
+			long delay = getHedgeDelay();
+			if (delay >= 0 && getHealthyCount() > 1) {
+				try {
+					return hedge(method, args, tried, delay);
+				} catch (OperationFailedException ex) {
+					failure = ex;
+				} catch (RuntimeException ex) {
+					failure = ex;
+				}
+			}
+		}
+
+		boolean readOnly = isReadOnly(method);
+		Node node;
+		while (null != (node = select(tried))) {
+			tried.add(node);
+			try {
+				return attempt(node, method, args);
+			} catch (OperationFailedException ex) {
+				failure = ex;
+			} catch (RuntimeException ex) {
+				failure = ex;
+			}
+			if (!readOnly && !isNotConnected(failure)) {
+				// the node may have executed the request already
+				break;
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Sends a request to a node and records the outcome.
+	 * 
+	 * @param node
+	 *            The node. May not be <code>null</code>.
+	 * @param method
+	 *            The method to invoke. May not be <code>null</code>.
+	 * @param args
+	 *            The arguments. May be <code>null</code>.
+	 * @return The result of the request.
+	 * @throws Throwable
+	 *             The exception thrown by the request.
+	 */
+	private Object attempt(Node node, Method method, Object[] args)
+			throws Throwable {
+		long start = System.currentTimeMillis();
+		node.active.incrementAndGet();
+		try {
+			Object retval = call(node.client, method, args);
+			recordLatency(node, System.currentTimeMillis() - start);
+			return retval;
+		} catch (OperationFailedException ex) {
+			node.recordFailure();
+			throw ex;
+		} catch (RuntimeException ex) {
+			node.recordFailure();
+			throw ex;
+		} catch (Throwable ex) {
+			// the node answered, e.g. that a user doesn't exist
+			recordLatency(node, System.currentTimeMillis() - start);
+			throw ex;
+		} finally {
+			node.active.decrementAndGet();
+			node.probing.compareAndSet(true, false);
+		}
+	}
+
+	/**
+	 * Sends a read-only request to the best node and, if it doesn't answer
+	 * within the hedging delay, a duplicate to the next best node. The first
+	 * answer wins.
+	 * 
+	 * @param method
+	 *            The method to invoke. May not be <code>null</code>.
+	 * @param args
+	 *            The arguments. May be <code>null</code>.
+	 * @param tried
+	 *            Receives the nodes the request was sent to. May not be
+	 *            <code>null</code>.
+	 * @param delay
+	 *            The time in milliseconds after which the duplicate is sent.
+	 * @return The result of the request.
+	 * @throws Throwable
+	 *             The exception thrown by the request.
+	 */
+	private Object hedge(Method method, Object[] args, List<Node> tried,
+			long delay) throws Throwable {
+		CompletionService<Object> attempts = new ExecutorCompletionService<Object>(
+				this.hedgeExecutor);
+		List<Future<Object>> futures = new ArrayList<Future<Object>>(2);
+		try {
+			Node primary = select(tried);
+			tried.add(primary);
+			try {
+				futures.add(attempts.submit(newAttempt(primary, method, args)));
+			} catch (RejectedExecutionException ex) {
+				// all threads busy => send the request without a duplicate
+				return attempt(primary, method, args);
+			}
+
+			Future<Object> done = attempts.poll(delay, TimeUnit.MILLISECONDS);
+			if (null == done) {
+				// no answer yet => send a duplicate if the budget allows it
+				Node secondary = null;
+				if (takeHedgeToken()) {
+					secondary = select(tried);
+				}
+				if (null != secondary) {
+					try {
+						futures.add(attempts.submit(newAttempt(secondary,
+								method, args)));
+						tried.add(secondary);
+						this.hedged.incrementAndGet();
+					} catch (RejectedExecutionException ex) {
+						// all threads busy => skip the duplicate
+						this.hedgeTokens.addAndGet(100);
+					}
+				}
+				done = attempts.take();
+			}
+
+			try {
+				Object retval = done.get();
+				if (futures.size() > 1 && done == futures.get(1)) {
+					this.hedgeWins.incrementAndGet();
+				}
+				return retval;
+			} catch (ExecutionException ex) {
+				Throwable cause = ex.getCause();
+				if (futures.size() < 2 || !isFailure(cause)) {
+					throw cause;
+				}
+			}
+
+			// the first answer was a failure => wait for the other one
+			try {
+				return attempts.take().get();
+			} catch (ExecutionException ex) {
+				throw ex.getCause();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new OperationFailedException(
+					"Interrupted while waiting for Crowd", ex);
+		} finally {
+			// interrupt the request that lost so that its thread and its
+			// connection become available again as soon as possible
+			for (Future<Object> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Creates a task that sends a request to a node.
+	 * 
+	 * @param node
+	 *            The node. May not be <code>null</code>.
+	 * @param method
+	 *            The method to invoke. May not be <code>null</code>.
+	 * @param args
+	 *            The arguments. May be <code>null</code>.
+	 * @return The task. Never <code>null</code>.
+	 */
+	private Callable<Object> newAttempt(final Node node, final Method method,
+			final Object[] args) {
+		return new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				CrowdLoadBalancer.this.hedgesInFlight.incrementAndGet();
+				try {
+					return attempt(node, method, args);
+				} catch (Exception ex) {
+					throw ex;
+				} catch (Error ex) {
+					throw ex;
+				} catch (Throwable ex) {
+					throw new UndeclaredThrowableException(ex);
+				} finally {
+					CrowdLoadBalancer.this.hedgesInFlight.decrementAndGet();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Records the response time of a node that answered.
+	 * 
+	 * @param node
+	 *            The node. May not be <code>null</code>.
+	 * @param time
+	 *            The response time in milliseconds.
+	 */
+	private void recordLatency(Node node, long time) {
+		node.recordSuccess(time);
+		if (null != this.hedgeExecutor) {
+			int count = this.sampleCount.getAndIncrement();
+			this.samples.set(count % SAMPLES, time);
+			if (0 == (count + 1) % HEDGE_DELAY_UPDATE
+					&& count + 1 >= MIN_SAMPLES) {
+				updateHedgeDelay(Math.min(count + 1, SAMPLES));
+			}
+		}
+	}
+
+	/**
+	 * Recalculates the hedging delay from the recent response times.
+	 * 
+	 * @param count
+	 *            The number of recorded response times.
+	 */
+	private void updateHedgeDelay(int count) {
+		long[] sorted = new long[count];
+		for (int i = 0; i < count; i++) {
+			sorted[i] = this.samples.get(i);
+		}
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(count * this.hedgingPercentile / 100.0) - 1;
+		this.hedgeDelay = sorted[Math.max(0, Math.min(count - 1, index))];
+	}
+
+	/**
+	 * Returns the time after which a duplicate of a read-only request is
+	 * sent.
+	 * 
+	 * @return The delay in milliseconds or <code>-1</code> if not enough
+	 *         response times were recorded yet.
+	 */
+	long getHedgeDelay() {
+		return this.hedgeDelay;
+	}
+
+	/**
+	 * Returns the number of duplicate requests that were sent.
+	 * 
+	 * @return The number of hedged requests.
+	 */
+	long getHedged() {
+		return this.hedged.get();
+	}
+
+	/**
+	 * Returns the number of hedged requests where the duplicate answered
+	 * first.
+	 * 
+	 * @return The number of duplicates that won.
+	 */
+	long getHedgeWins() {
+		return this.hedgeWins.get();
+	}
+
+	/**
+	 * Returns the number of hedged requests and duplicates in progress. These
+	 * use connections to the remote Crowd server in addition to the ones
+	 * limited by the connection pool.
+	 * 
+	 * @return The number of hedged requests in progress.
+	 */
+	int getHedgesInFlight() {
+		return this.hedgesInFlight.get();
+	}
+
+	/**
+	 * Adds the share of a read-only request to the hedging budget.
+	 */
+	private void addHedgeTokens() {
+		long tokens;
+		do {
+			tokens = this.hedgeTokens.get();
+			if (tokens >= HEDGE_BURST * 100) {
+				return;
+			}
+		} while (!this.hedgeTokens.compareAndSet(tokens, tokens
+				+ HEDGE_BUDGET));
+	}
+
+	/**
+	 * Takes a duplicate request from the hedging budget.
+	 * 
+	 * @return <code>true</code> if the budget allows another duplicate.
+	 *         <code>false</code> else.
+	 */
+	private boolean takeHedgeToken() {
+		long tokens;
+		do {
+			tokens = this.hedgeTokens.get();
+			if (tokens < 100) {
+				return false;
+			}
+		} while (!this.hedgeTokens.compareAndSet(tokens, tokens - 100));
+		return true;
+	}
+
+	/**
+	 * Returns the number of nodes that are not ejected.
+	 * 
+	 * @return The number of healthy nodes.
+	 */
+	private int getHealthyCount() {
+		int retval = 0;
+		for (Node node : this.nodes) {
+			if (!node.isEjected()) {
+				retval++;
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * Checks whether a request failed because the node is unavailable.
+	 * 
+	 * @param cause
+	 *            The exception thrown by the request. May not be
+	 *            <code>null</code>.
+	 * @return <code>true</code> if the node didn't answer properly.
+	 *         <code>false</code> if the node answered with an error.
+	 */
+	private static boolean isFailure(Throwable cause) {
+		return cause instanceof OperationFailedException
+				|| cause instanceof RuntimeException;
+	}
+
+	/**
+	 * Checks whether the method only reads data from the remote Crowd server
+	 * and may therefore be repeated or sent to several nodes at once.
+	 * 
+	 * @param method
+	 *            The method. May not be <code>null</code>.
+	 * @return <code>true</code> if the method is read-only.
+	 *         <code>false</code> else.
+	 */
+	static boolean isReadOnly(Method method) {
+		return READ_ONLY.contains(method.getName());
+	}
+
+	/**
+	 * Checks whether a request failed because the node couldn't be connected,
+	 * i.e. whether the request certainly didn't reach the node.
+	 * 
+	 * @param failure
+	 *            The exception thrown by the request. May not be
+	 *            <code>null</code>.
+	 * @return <code>true</code> if the node couldn't be connected.
+	 *         <code>false</code> else.
+	 */
+	static boolean isNotConnected(Throwable failure) {
+		for (Throwable cause = failure; null != cause; cause = cause
+				.getCause()) {
+			if (cause instanceof ConnectException
+					|| cause instanceof NoRouteToHostException
+					|| cause instanceof UnknownHostException) {
+				return true;
+			}
+			if (cause == cause.getCause()) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Selects the node for the next attempt of a request. Ejected nodes are
+	 * only selected as probe or if all nodes are ejected.
+	 * 
+	 * @param tried
+	 *            The nodes that were already tried for the request. May not be
+	 *            <code>null</code>.
+	 * @return The node or <code>null</code> if all nodes were tried.
+	 */
+	private Node select(List<Node> tried) {
+		long now = System.currentTimeMillis();
+		Node best = null;
+		Node fallback = null;
+		for (Node node : this.nodes) {
+			if (tried.contains(node)) {
+				continue;
+			}
+			if (0 != node.ejectedAt) {
+				if (now - node.ejectedAt >= PROBE_INTERVAL
+						&& node.probing.compareAndSet(false, true)) {
+					// let this request probe the ejected node
+					return node;
+				}
+				if (null == fallback || node.ejectedAt < fallback.ejectedAt) {
+					fallback = node;
+				}
+			} else if (null == best || node.getScore() < best.getScore()) {
+				best = node;
+			}
+		}
+		if (null == best && tried.isEmpty()) {
+			// all nodes ejected => try the one that was ejected first
+			return fallback;
+		}
+		return best;
+	}
+
+	/**
+	 * Checks whether the method sends a request to the remote Crowd server,
+	 * i.e. whether it may fail with an {@link OperationFailedException}.
+	 * 
+	 * @param method
+	 *            The method. May not be <code>null</code>.
+	 * @return <code>true</code> if the method sends a request.
+	 *         <code>false</code> else.
+	 */
+	private static boolean isRequest(Method method) {
+		for (Class<?> type : method.getExceptionTypes()) {
+			if (type.isAssignableFrom(OperationFailedException.class)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Executes a request on a node.
+	 * 
+	 * @param target
+	 *            The Crowd client of the node. May not be <code>null</code>.
+	 * @param method
+	 *            The method to invoke. May not be <code>null</code>.
+	 * @param args
+	 *            The arguments. May be <code>null</code>.
+	 * @return The result of the request.
+	 * @throws Throwable
+	 *             The exception thrown by the request.
+	 */
+	private static Object call(CrowdClient target, Method method, Object[] args)
+			throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	/**
+	 * A single Crowd node.
+	 */
+	static final class Node {
+		/** The base URL of the node. */
+		private final String url;
+
+		/** The Crowd client of the node. */
+		private final CrowdClient client;
+
+		/** The number of requests in progress. */
+		private final AtomicInteger active = new AtomicInteger();
+
+		/** The number of consecutive failed requests. */
+		private final AtomicInteger failures = new AtomicInteger();
+
+		/** Set while a probe request is sent to the ejected node. */
+		private final AtomicBoolean probing = new AtomicBoolean();
+
+		/** The average response time in milliseconds. */
+		private volatile double latency;
+
+		/** The time when the node was ejected. <code>0</code> if it's healthy. */
+		private volatile long ejectedAt;
+
+		/**
+		 * Creates a new node.
+		 * 
+		 * @param pUrl
+		 *            The base URL of the node. May not be <code>null</code>.
+		 * @param pClient
+		 *            The Crowd client of the node. May not be
+		 *            <code>null</code>.
+		 */
+		Node(String pUrl, CrowdClient pClient) {
+			this.url = pUrl;
+			this.client = pClient;
+		}
+
+		/**
+		 * Returns the base URL of the node.
+		 * 
+		 * @return The URL. Never <code>null</code>.
+		 */
+		String getUrl() {
+			return this.url;
+		}
+
+		/**
+		 * Returns the average response time of the node.
+		 * 
+		 * @return The response time in milliseconds.
+		 */
+		double getLatency() {
+			return this.latency;
+		}
+
+		/**
+		 * Checks whether the node is ejected.
+		 * 
+		 * @return <code>true</code> if the node is ejected.
+		 *         <code>false</code> else.
+		 */
+		boolean isEjected() {
+			return 0 != this.ejectedAt;
+		}
+
+		/**
+		 * Returns the expected response time of the next request.
+		 * 
+		 * @return The score; the lower, the better.
+		 */
+		private double getScore() {
+			return (this.latency + 1) * (this.active.get() + 1);
+		}
+
+		/**
+		 * Records a successful request and puts the node back if it was
+		 * ejected.
+		 * 
+		 * @param time
+		 *            The response time in milliseconds.
+		 */
+		private void recordSuccess(long time) {
+			this.latency = 0 == this.latency ? time : this.latency
+					+ LATENCY_WEIGHT * (time - this.latency);
+			this.failures.set(0);
+			if (0 != this.ejectedAt) {
+				this.ejectedAt = 0;
+				LOG.info(nodeAvailable(this.url));
+			}
+		}
+
+		/**
+		 * Records a failed request and ejects the node after too many
+		 * consecutive failures.
+		 */
+		private void recordFailure() {
+			if (0 != this.ejectedAt) {
+				// failed probe => wait for the next one
+				this.ejectedAt = System.currentTimeMillis();
+			} else if (this.failures.incrementAndGet() >= EJECT_THRESHOLD) {
+				this.ejectedAt = System.currentTimeMillis();
+				LOG.warning(nodeEjected(this.url, EJECT_THRESHOLD));
+			}
+		}
+	}
+}
@@ -5,18 +5,16 @@
  */
 package de.theit.hudson.crowd;
 
+import static de.theit.hudson.crowd.ErrorMessages.emailNotFound;
+
 import hudson.Extension;
 import hudson.model.Hudson;
 import hudson.model.User;
 import hudson.security.SecurityRealm;
 import hudson.tasks.MailAddressResolver;
 
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.acegisecurity.userdetails.UsernameNotFoundException;
-import org.springframework.dao.DataAccessException;
-
 /**
  * This class resolves email addresses via lookup in Crowd.
  * 
@@ -41,17 +39,14 @@ public class CrowdMailAddressResolverImpl extends MailAddressResolver {
 		SecurityRealm realm = Hudson.getInstance().getSecurityRealm();
 
 		if (realm instanceof CrowdSecurityRealm) {
-			try {
-				CrowdUser details = (CrowdUser) realm.getSecurityComponents().userDetails
-						.loadUserByUsername(u.getId());
-				mail = details.getEmailAddress();
-			} catch (UsernameNotFoundException ex) {
-				LOG.log(Level.INFO, "Failed to look up email address in Crowd",
-						ex);
-			} catch (DataAccessException ex) {
-				LOG.log(Level.SEVERE,
-						"Access exception trying to look up email address in Crowd",
-						ex);
+			CrowdConfigurationService configuration = ((CrowdSecurityRealm) realm)
+					.getConfiguration();
+			// only users that are allowed to login into Hudson are resolved;
+			// the membership is cached along with the email address, so a
+			// cached address needs no request to the remote Crowd server
+			mail = configuration.getEmailAddress(u.getId());
+			if (null == mail) {
+				LOG.fine(emailNotFound(u.getId()));
 			}
 		}
 
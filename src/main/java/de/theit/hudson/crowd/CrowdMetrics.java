@@ -0,0 +1,246 @@
+/*
+ * @(#)CrowdMetrics.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * Measures the requests that are sent to the remote Crowd server: the number
+ * of calls, the latency distribution and the errors by exception type of
+ * every operation of the Crowd client. The time includes waiting for a free
+ * connection, retries on other Crowd nodes and requests that failed
+ * immediately, i.e. the time the calling thread spent waiting for Crowd.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 21.10.2011
+ * @version $Id$
+ */
+final class CrowdMetrics implements InvocationHandler {
+	/** The upper bounds in milliseconds of the buckets of the histograms. */
+	static final long[] BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000,
+			2000, 5000, 10000, Long.MAX_VALUE };
+
+	/** The Crowd client that executes the requests. */
+	private final CrowdClient target;
+
+	/** The Crowd client whose requests are measured. */
+	private final CrowdClient client;
+
+	/** The time when measuring started. */
+	private final long started = System.currentTimeMillis();
+
+	/** The statistics by the operations. */
+	private final ConcurrentMap<Method, Operation> operations = new ConcurrentHashMap<Method, Operation>();
+
+	/**
+	 * Creates a new instance.
+	 * 
+	 * @param pTarget
+	 *            The Crowd client that executes the requests. May not be
+	 *            <code>null</code>.
+	 */
+	CrowdMetrics(CrowdClient pTarget) {
+		this.target = pTarget;
+		this.client = (CrowdClient) Proxy.newProxyInstance(
+				CrowdClient.class.getClassLoader(),
+				new Class<?>[] { CrowdClient.class }, this);
+	}
+
+	/**
+	 * Returns the Crowd client whose requests are measured.
+	 * 
+	 * @return The wrapped Crowd client. Never <code>null</code>.
+	 */
+	CrowdClient getClient() {
+		return this.client;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+	 *      java.lang.reflect.Method, java.lang.Object[])
+	 */
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		Operation operation = this.operations.get(method);
+		if (null == operation) {
+			Operation created = new Operation();
+			operation = this.operations.putIfAbsent(method, created);
+			if (null == operation) {
+				operation = created;
+			}
+		}
+
+		long start = System.nanoTime();
+		try {
+			return method.invoke(this.target, args);
+		} catch (InvocationTargetException ex) {
+			Throwable cause = ex.getCause();
+			operation.recordError(cause);
+			throw cause;
+		} finally {
+			operation.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Returns the statistics of all operations that were called so far.
+	 * 
+	 * @return The statistics as JSON object. Never <code>null</code>.
+	 */
+	JSONObject toJSON() {
+		long now = System.currentTimeMillis();
+		double minutes = Math.max(1, now - this.started) / 60000.0;
+
+		// sort the operations by name
+		Map<String, Operation> sorted = new TreeMap<String, Operation>();
+		for (Map.Entry<Method, Operation> entry : this.operations.entrySet()) {
+			sorted.put(entry.getKey().getName(), entry.getValue());
+		}
+
+		JSONArray operationList = new JSONArray();
+		long totalCalls = 0;
+		long totalErrors = 0;
+		long totalNanos = 0;
+		for (Map.Entry<String, Operation> entry : sorted.entrySet()) {
+			JSONObject json = entry.getValue().toJSON(minutes);
+			json.put("name", entry.getKey());
+			operationList.add(json);
+			totalCalls += entry.getValue().calls.get();
+			totalErrors += entry.getValue().errorCount.get();
+			totalNanos += entry.getValue().nanos.get();
+		}
+
+		JSONObject retval = new JSONObject();
+		retval.put("since", this.started);
+		retval.put("calls", totalCalls);
+		retval.put("errors", totalErrors);
+		retval.put("callsPerMinute", totalCalls / minutes);
+		retval.put("totalMillis", totalNanos / 1000000);
+		JSONArray buckets = new JSONArray();
+		for (int i = 0; i < BUCKETS.length - 1; i++) {
+			buckets.add(BUCKETS[i]);
+		}
+		retval.put("buckets", buckets);
+		retval.put("operations", operationList);
+		return retval;
+	}
+
+	/**
+	 * The statistics of a single operation.
+	 */
+	private static final class Operation {
+		/** The number of calls. */
+		private final AtomicLong calls = new AtomicLong();
+
+		/** The total time of all calls in nanoseconds. */
+		private final AtomicLong nanos = new AtomicLong();
+
+		/** The longest time of a call in nanoseconds. */
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		/** The number of calls by latency bucket. */
+		private final AtomicLongArray histogram = new AtomicLongArray(
+				BUCKETS.length);
+
+		/** The number of failed calls. */
+		private final AtomicLong errorCount = new AtomicLong();
+
+		/** The number of failed calls by the names of the exceptions. */
+		private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+
+		/**
+		 * Records a call.
+		 * 
+		 * @param time
+		 *            The time of the call in nanoseconds.
+		 */
+		void record(long time) {
+			this.calls.incrementAndGet();
+			this.nanos.addAndGet(time);
+			long max = this.maxNanos.get();
+			while (time > max && !this.maxNanos.compareAndSet(max, time)) {
+				max = this.maxNanos.get();
+			}
+
+			long millis = time / 1000000;
+			int bucket = 0;
+			while (millis >= BUCKETS[bucket]) {
+				bucket++;
+			}
+			this.histogram.incrementAndGet(bucket);
+		}
+
+		/**
+		 * Records a failed call.
+		 * 
+		 * @param cause
+		 *            The exception thrown by the call. May not be
+		 *            <code>null</code>.
+		 */
+		void recordError(Throwable cause) {
+			this.errorCount.incrementAndGet();
+			String type = cause.getClass().getSimpleName();
+			AtomicLong counter = this.errors.get(type);
+			if (null == counter) {
+				AtomicLong created = new AtomicLong();
+				counter = this.errors.putIfAbsent(type, created);
+				if (null == counter) {
+					counter = created;
+				}
+			}
+			counter.incrementAndGet();
+		}
+
+		/**
+		 * Returns the statistics of this operation.
+		 * 
+		 * @param minutes
+		 *            The time in minutes since measuring started.
+		 * @return The statistics as JSON object. Never <code>null</code>.
+		 */
+		JSONObject toJSON(double minutes) {
+			long count = this.calls.get();
+			JSONObject retval = new JSONObject();
+			retval.put("calls", count);
+			retval.put("callsPerMinute", count / minutes);
+			retval.put("averageMillis", 0 == count ? 0 : this.nanos.get()
+					/ (count * 1000000.0));
+			retval.put("maxMillis", this.maxNanos.get() / 1000000.0);
+
+			JSONArray buckets = new JSONArray();
+			for (int i = 0; i < BUCKETS.length; i++) {
+				buckets.add(this.histogram.get(i));
+			}
+			retval.put("histogram", buckets);
+
+			retval.put("errors", this.errorCount.get());
+			JSONObject errorTypes = new JSONObject();
+			for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(
+					this.errors).entrySet()) {
+				errorTypes.put(entry.getKey(), entry.getValue().get());
+			}
+			retval.put("errorsByType", errorTypes);
+			return retval;
+		}
+	}
+}
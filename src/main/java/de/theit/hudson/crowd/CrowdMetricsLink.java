@@ -0,0 +1,208 @@
+/*
+ * @(#)CrowdMetricsLink.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import static de.theit.hudson.crowd.ErrorMessages.metricsDescription;
+import static de.theit.hudson.crowd.ErrorMessages.metricsDisplayName;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.ManagementLink;
+
+import java.io.IOException;
+import java.util.Map;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import de.theit.hudson.crowd.CrowdRequestClassifier.RequestClass;
+
+/**
+ * Adds a page to "Manage Hudson" that shows how the plugin talks to the
+ * remote Crowd server: the latency, throughput and errors of every Crowd
+ * operation, the hit ratios of the caches including those of the SSO tokens,
+ * the requests that bypassed the SSO checks and the state of the connection
+ * pool, the circuit breaker and the Crowd nodes. The same data is available
+ * as JSON below <code>json</code>.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 21.10.2011
+ * @version $Id$
+ */
+@Extension
+public class CrowdMetricsLink extends ManagementLink {
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see hudson.model.Action#getIconFileName()
+	 */
+	@Override
+	public String getIconFileName() {
+		// only shown while the Crowd security realm is active
+		return null == CrowdSecurityRealm.getActiveConfiguration() ? null
+				: "graph.gif";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see hudson.model.Action#getUrlName()
+	 */
+	@Override
+	public String getUrlName() {
+		return "crowd-metrics";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see hudson.model.Action#getDisplayName()
+	 */
+	@Override
+	public String getDisplayName() {
+		return metricsDisplayName();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see hudson.model.ManagementLink#getDescription()
+	 */
+	@Override
+	public String getDescription() {
+		return metricsDescription();
+	}
+
+	/**
+	 * Returns the current metrics. Used by the view.
+	 * 
+	 * @return The metrics as JSON object. Never <code>null</code>.
+	 */
+	public JSONObject getMetrics() {
+		Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+
+		JSONObject retval = new JSONObject();
+		CrowdConfigurationService configuration = CrowdSecurityRealm
+				.getActiveConfiguration();
+		if (null == configuration) {
+			return retval;
+		}
+
+		retval.put("timestamp", System.currentTimeMillis());
+		if (null != configuration.metrics) {
+			retval.put("requests", configuration.metrics.toJSON());
+		}
+
+		JSONObject caches = new JSONObject();
+		for (Map.Entry<String, TimedCache<?, ?>> entry : configuration
+				.getCaches().entrySet()) {
+			TimedCache<?, ?> cache = entry.getValue();
+			long hits = cache.getHits();
+			long lookups = hits + cache.getMisses();
+			JSONObject json = new JSONObject();
+			json.put("entries", cache.size());
+			json.put("hits", hits);
+			json.put("misses", cache.getMisses());
+			json.put("hitRatio", 0 == lookups ? 0 : hits / (double) lookups);
+			caches.put(entry.getKey(), json);
+		}
+		retval.put("caches", caches);
+
+		JSONObject logins = new JSONObject();
+		logins.put("logins", configuration.getLogins());
+		logins.put("averageCallsPerLogin",
+				configuration.getAverageCallsPerLogin());
+		logins.put("credentialCacheHits",
+				configuration.getCredentialCacheHits());
+		logins.put("throttled", configuration.getThrottledLogins());
+		logins.put("rejectedUserHits", configuration.getRejectedUserHits());
+		logins.put("coalescedLookups", configuration.getCoalescedLookups());
+		retval.put("logins", logins);
+
+		Map<RequestClass, Long> requestCounts = configuration
+				.getRequestCounts();
+		if (!requestCounts.isEmpty()) {
+			JSONObject requestClasses = new JSONObject();
+			for (Map.Entry<RequestClass, Long> entry : requestCounts
+					.entrySet()) {
+				requestClasses.put(entry.getKey().name(), entry.getValue());
+			}
+			retval.put("requestClasses", requestClasses);
+		}
+
+		JSONObject pool = new JSONObject();
+		pool.put("maxConnections", configuration.getPoolMaxConnections());
+		pool.put("leased", configuration.getPoolLeased());
+		pool.put("pending", configuration.getPoolPending());
+		pool.put("available", configuration.getPoolAvailable());
+		pool.put("timeouts", configuration.getPoolTimeouts());
+		retval.put("pool", pool);
+
+		JSONObject health = new JSONObject();
+		health.put("degraded", configuration.isDegraded());
+		health.put("degradedSince", configuration.getDegradedSince());
+		health.put("servingStale", configuration.isServingStale());
+		health.put("circuitOpen", configuration.isCircuitOpen());
+		health.put("circuitRejections", configuration.getCircuitRejections());
+		retval.put("health", health);
+
+		if (null != configuration.loadBalancer) {
+			CrowdLoadBalancer balancer = configuration.loadBalancer;
+			JSONArray nodes = new JSONArray();
+			for (CrowdLoadBalancer.Node node : balancer.getNodes()) {
+				JSONObject json = new JSONObject();
+				json.put("url", node.getUrl());
+				json.put("latencyMillis", node.getLatency());
+				json.put("ejected", node.isEjected());
+				nodes.add(json);
+			}
+			retval.put("nodes", nodes);
+
+			JSONObject hedging = new JSONObject();
+			hedging.put("delayMillis", balancer.getHedgeDelay());
+			hedging.put("hedged", balancer.getHedged());
+			hedging.put("wins", balancer.getHedgeWins());
+			hedging.put("inFlight", balancer.getHedgesInFlight());
+			retval.put("hedging", hedging);
+		}
+
+		JSONObject index = new JSONObject();
+		index.put("indexed", configuration.isMembershipIndexed());
+		index.put("members", configuration.getIndexedMembers());
+		index.put("timestamp", configuration.getMembershipIndexTimestamp());
+		index.put("synchronizedByEvents",
+				configuration.isSynchronizedByEvents());
+		retval.put("membershipIndex", index);
+
+		JSONObject authorities = new JSONObject();
+		authorities.put("interned", configuration.getInternedAuthorities());
+		authorities.put("sets", configuration.getInternedAuthoritySets());
+		retval.put("authorities", authorities);
+
+		return retval;
+	}
+
+	/**
+	 * Sends the current metrics as JSON.
+	 * 
+	 * @param req
+	 *            The request. May not be <code>null</code>.
+	 * @param rsp
+	 *            The response. May not be <code>null</code>.
+	 * @throws IOException
+	 *             If the response cannot be written.
+	 */
+	public void doJson(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		JSONObject metrics = getMetrics();
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.setHeader("Cache-Control", "no-cache");
+		rsp.getWriter().write(metrics.toString(2));
+	}
+}
@@ -12,10 +12,14 @@ import static de.theit.hudson.crowd.ErrorMessages.expiredCredentials;
 import static de.theit.hudson.crowd.ErrorMessages.invalidAuthentication;
 import static de.theit.hudson.crowd.ErrorMessages.invalidToken;
 import static de.theit.hudson.crowd.ErrorMessages.operationFailed;
-import hudson.security.SecurityRealm;
 
-import java.util.ArrayList;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,12 +52,49 @@ public class CrowdRememberMeServices implements RememberMeServices {
 	private static final Logger LOG = Logger
 			.getLogger(CrowdRememberMeServices.class.getName());
 
+	/** The maximum number of validated SSO tokens that are cached. */
+	private static final int MAX_CACHED_TOKENS = 1000;
+
+	/**
+	 * The lifetime in seconds of a validated SSO token in the cache. Kept short
+	 * because it only has to cover the burst of parallel requests a browser
+	 * fires right after the SSO login.
+	 */
+	private static final int TOKEN_CACHE_TTL = 30;
+
+	/** The maximum number of rejected SSO tokens that are cached. */
+	private static final int MAX_REJECTED_TOKENS = 10000;
+
+	/**
+	 * The lifetime in seconds of a rejected SSO token in the cache. Crowd
+	 * doesn't accept an invalid or expired token again for the same
+	 * validation factors, so this only limits the time the entry occupies
+	 * memory.
+	 */
+	private static final int REJECTED_TOKEN_TTL = 3600;
+
 	/**
 	 * The configuration data necessary for accessing the services on the remote
 	 * Crowd server.
 	 */
 	private CrowdConfigurationService configuration;
 
+	/**
+	 * Caches recently validated SSO tokens. The key is a digest of the SSO
+	 * token.
+	 */
+	private final TimedCache<String, ValidatedToken> validatedTokens = new TimedCache<String, ValidatedToken>(
+			MAX_CACHED_TOKENS);
+
+	/**
+	 * Caches recently rejected, i.e. invalid or expired SSO tokens. The key is
+	 * a digest of the SSO token followed by a digest of the validation factors
+	 * it was rejected for, so the same token sent e.g. from another address
+	 * is still validated by the Crowd server.
+	 */
+	private final TimedCache<String, Boolean> rejectedTokens = new TimedCache<String, Boolean>(
+			MAX_REJECTED_TOKENS);
+
 	/**
 	 * Creates a new instance of this class.
 	 * 
@@ -85,32 +126,67 @@ public class CrowdRememberMeServices implements RememberMeServices {
 
 		// auto-login is only possible when the SSO token was found
 		if (null != ssoToken) {
+			String tokenDigest = digest(ssoToken);
+			String factorsDigest = digest(validationFactors);
+			String rejectionKey = tokenDigest + factorsDigest;
+			if (null != this.rejectedTokens.get(rejectionKey)) {
+				// the SSO token was already rejected by the Crowd server for
+				// the same validation factors
+				return null;
+			}
+
 			try {
-				// SSO token available => check whether it is still valid
-				this.configuration.crowdClient.validateSSOAuthentication(
-						ssoToken, validationFactors);
+				// check whether the SSO token was validated recently for the
+				// same validation factors
+				User user = null;
+				ValidatedToken validated = this.validatedTokens
+						.get(tokenDigest);
+				if (null != validated
+						&& validated.factorsDigest.equals(factorsDigest)) {
+					user = validated.user;
+				}
+
+				if (null == user) {
+					// SSO token available => check whether it is still valid
+					this.configuration.crowdClient.validateSSOAuthentication(
+							ssoToken, validationFactors);
 
-				// retrieve the user that is logged in via SSO
-				User user = this.configuration.crowdClient
-						.findUserFromSSOToken(ssoToken);
+					// retrieve the user that is logged in via SSO
+					user = this.configuration.crowdClient
+							.findUserFromSSOToken(ssoToken);
+
+					this.validatedTokens.put(tokenDigest, new ValidatedToken(
+							factorsDigest, user), TOKEN_CACHE_TTL * 1000L);
+				}
 
 				// check whether the user is a member of the user group in
-				// Crowd that specifies who is allowed to login into Hudson
+				// Crowd that specifies who is allowed to login into Hudson;
+				// the membership is derived from the user's groups
+				Collection<GrantedAuthority> userAuthorities = null;
 				if (this.configuration.isGroupActive()
-						&& this.configuration.isGroupMember(user.getName())) {
+						&& !this.configuration.isKnownNonMember(user.getName())) {
+					userAuthorities = this.configuration
+							.getAuthoritiesForUser(user.getName());
+				}
+				if (null != userAuthorities
+						&& this.configuration.isGroupMember(userAuthorities)) {
 					// user is authenticated and validated
 					// => create the user object and finalize the auto-login
 					// process
-					List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
-					authorities.add(SecurityRealm.AUTHENTICATED_AUTHORITY);
-					authorities.addAll(this.configuration
-							.getAuthoritiesForUser(user.getName()));
+					GrantedAuthority[] authorities = this.configuration
+							.getGrantedAuthorities(userAuthorities);
 
 					result = new CrowdAuthenticationToken(user.getName(), null,
 							authorities, ssoToken, user.getDisplayName());
 				}
 			} catch (InvalidTokenException ex) {
-				LOG.log(Level.INFO, invalidToken(), ex);
+				LOG.info(invalidToken());
+				LOG.log(Level.FINE, invalidToken(), ex);
+				// only the Crowd server's answer that the token is invalid or
+				// expired is cached; failed requests are tried again
+				this.rejectedTokens.put(rejectionKey, Boolean.TRUE,
+						REJECTED_TOKEN_TTL * 1000L);
+				removeToken(request, response);
 			} catch (ApplicationPermissionException ex) {
 				LOG.log(Level.WARNING, applicationPermission(), ex);
 			} catch (InvalidAuthenticationException ex) {
@@ -132,6 +208,7 @@ public class CrowdRememberMeServices implements RememberMeServices {
 	@Override
 	public void loginFail(HttpServletRequest request,
 			HttpServletResponse response) {
+		forgetToken(request);
 		try {
 			this.configuration.crowdHttpAuthenticator.logout(request, response);
 		} catch (ApplicationPermissionException ex) {
@@ -166,13 +243,28 @@ public class CrowdRememberMeServices implements RememberMeServices {
 		// check if there's already a SSO token in the authentication object
 		String ssoToken = crowdAuthenticationToken.getSSOToken();
 
+		// count the requests sent to the remote Crowd server for creating
+		// the SSO token
+		CrowdCallCounter.start();
 		try {
 			if (null == ssoToken) {
-				// SSO token not yet available => authenticate the user and
-				// create the SSO token
-				this.configuration.crowdHttpAuthenticator.authenticate(request,
-						response, crowdAuthenticationToken.getPrincipal(),
-						crowdAuthenticationToken.getCredentials());
+				if (crowdAuthenticationToken.isPasswordVerified()) {
+					// SSO token not yet available => Crowd verified the
+					// password during this login, so just create the SSO
+					// token for the user
+					this.configuration.crowdHttpAuthenticator
+							.authenticateWithoutValidatingPassword(request,
+									response,
+									crowdAuthenticationToken.getPrincipal());
+				} else {
+					// the login was answered from recently verified
+					// credentials => let Crowd check the password and its
+					// expiry again while creating the SSO token
+					this.configuration.crowdHttpAuthenticator.authenticate(
+							request, response,
+							crowdAuthenticationToken.getPrincipal(),
+							crowdAuthenticationToken.getCredentials());
+				}
 
 				// user is successfully authenticated
 				// => retrieve the SSO token
@@ -180,12 +272,15 @@ public class CrowdRememberMeServices implements RememberMeServices {
 						.getCrowdToken(request,
 								this.configuration.clientProperties
 										.getCookieTokenKey());
-			}
 
-			if (null == ssoToken) {
-				// SSO token could not be retrieved (should normally not happen)
-				// => logout
-				loginFail(request, response);
+				if (null == ssoToken) {
+					// SSO token could not be retrieved (should normally not
+					// happen) => logout
+					loginFail(request, response);
+				}
+
+				// the SSO token was just created for the current validation
+				// factors, so there's no need to validate it again
 				return;
 			}
 
@@ -208,6 +303,10 @@ public class CrowdRememberMeServices implements RememberMeServices {
 			LOG.log(Level.WARNING, applicationAccessDenied(), ex);
 		} catch (OperationFailedException ex) {
 			LOG.log(Level.SEVERE, operationFailed(), ex);
+		} finally {
+			this.configuration.recordLogin(
+					crowdAuthenticationToken.getPrincipal(),
+					CrowdCallCounter.stop(), false);
 		}
 	}
 
@@ -220,6 +319,7 @@ public class CrowdRememberMeServices implements RememberMeServices {
 	 *            The servlet response. May not be <code>null</code>.
 	 */
 	public void logout(HttpServletRequest request, HttpServletResponse response) {
+		forgetToken(request);
 		try {
 			// logout the user and close the SSO session
 			this.configuration.crowdHttpAuthenticator.logout(request, response);
@@ -231,4 +331,124 @@ public class CrowdRememberMeServices implements RememberMeServices {
 			LOG.log(Level.SEVERE, operationFailed(), ex);
 		}
 	}
+
+	/**
+	 * Returns the caches of SSO tokens by their names. Used for statistics
+	 * only.
+	 * 
+	 * @return The caches. Never <code>null</code>.
+	 */
+	Map<String, TimedCache<?, ?>> getCaches() {
+		Map<String, TimedCache<?, ?>> retval = new LinkedHashMap<String, TimedCache<?, ?>>();
+		retval.put("validatedTokens", this.validatedTokens);
+		retval.put("rejectedTokens", this.rejectedTokens);
+		return retval;
+	}
+
+	/**
+	 * Removes the SSO token of the request from the cache of validated
+	 * tokens.
+	 * 
+	 * @param request
+	 *            The servlet request. May not be <code>null</code>.
+	 */
+	private void forgetToken(HttpServletRequest request) {
+		String ssoToken = this.configuration.tokenHelper.getCrowdToken(request,
+				this.configuration.clientProperties.getCookieTokenKey());
+		if (null != ssoToken) {
+			this.validatedTokens.remove(digest(ssoToken));
+		}
+	}
+
+	/**
+	 * Removes the SSO cookie from the client so that it stops sending an
+	 * invalid SSO token.
+	 * 
+	 * @param request
+	 *            The servlet request. May not be <code>null</code>.
+	 * @param response
+	 *            The servlet response. May not be <code>null</code>.
+	 */
+	private void removeToken(HttpServletRequest request,
+			HttpServletResponse response) {
+		try {
+			this.configuration.tokenHelper.removeCrowdToken(request, response,
+					this.configuration.clientProperties,
+					this.configuration.getCookieConfiguration());
+		} catch (ApplicationPermissionException ex) {
+			LOG.log(Level.WARNING, applicationPermission(), ex);
+		} catch (InvalidAuthenticationException ex) {
+			LOG.log(Level.WARNING, invalidAuthentication(), ex);
+		} catch (OperationFailedException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex);
+		}
+	}
+
+	/**
+	 * Calculates a digest of the given validation factors.
+	 * 
+	 * @param validationFactors
+	 *            The validation factors. May not be <code>null</code>.
+	 * @return The hex encoded digest. Never <code>null</code>.
+	 */
+	private static String digest(List<ValidationFactor> validationFactors) {
+		StringBuilder sb = new StringBuilder();
+		for (ValidationFactor factor : validationFactors) {
+			sb.append(factor.getName()).append('=').append(factor.getValue())
+					.append('\n');
+		}
+		return digest(sb.toString());
+	}
+
+	/**
+	 * Calculates the SHA-256 digest of the given string.
+	 * 
+	 * @param str
+	 *            The string. May not be <code>null</code>.
+	 * @return The hex encoded digest. Never <code>null</code>.
+	 */
+	static String digest(String str) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] hash = md.digest(str.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(2 * hash.length);
+			for (byte b : hash) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			// every Java platform must support SHA-256
+			throw new IllegalStateException(ex);
+		} catch (UnsupportedEncodingException ex) {
+			// every Java platform must support UTF-8
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * An SSO token that was validated successfully.
+	 */
+	private static final class ValidatedToken {
+		/** The digest of the validation factors used for the validation. */
+		final String factorsDigest;
+
+		/** The user that is logged in via the SSO token. */
+		final User user;
+
+		/**
+		 * Creates a new instance.
+		 * 
+		 * @param pFactorsDigest
+		 *            The digest of the validation factors. May not be
+		 *            <code>null</code>.
+		 * @param pUser
+		 *            The user that is logged in via the SSO token. May not be
+		 *            <code>null</code>.
+		 */
+		ValidatedToken(String pFactorsDigest, User pUser) {
+			this.factorsDigest = pFactorsDigest;
+			this.user = pUser;
+		}
+	}
 }
@@ -0,0 +1,271 @@
+/*
+ * @(#)CrowdRequestClassifier.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.HttpSessionContextIntegrationFilter;
+import org.acegisecurity.context.SecurityContext;
+
+/**
+ * This class classifies HTTP requests to decide whether they need to pass the
+ * SSO checks of the {@link CrowdServletFilter}. Requests for static
+ * resources, CLI and remoting requests and anonymous requests without a Crowd
+ * SSO cookie can bypass the SSO checks.
+ * <p>
+ * Requests are identified by their path only, and only the well-known roots
+ * of Hudson's own static resources are treated as static. File extensions
+ * are not considered, because workspaces and archived artifacts can contain
+ * files like <code>.js</code> or <code>.png</code> as well and must not
+ * bypass the SSO checks.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 17.10.2011
+ * @version $Id$
+ */
+public class CrowdRequestClassifier {
+	/**
+	 * The classes of requests that are distinguished.
+	 */
+	public enum RequestClass {
+		/** Requests for static resources like images, CSS or JavaScript. */
+		STATIC,
+		/** Requests of the CLI or of slave agents. */
+		REMOTING,
+		/** Anonymous requests without a Crowd SSO cookie. */
+		ANONYMOUS,
+		/** All other requests. These must pass the SSO checks. */
+		SSO
+	}
+
+	/**
+	 * The path prefixes of static resources. A prefix only matches a whole
+	 * path segment, i.e. <code>/css</code> matches <code>/css/style.css</code>
+	 * but not <code>/cssFoo</code>.
+	 */
+	private static final String[] STATIC_PREFIXES = { "/adjuncts",
+			"/images", "/css", "/scripts", "/favicon.ico", "/robots.txt" };
+
+	/** The path prefixes of CLI and remoting requests. */
+	private static final String[] REMOTING_PREFIXES = { "/cli", "/jnlpJars",
+			"/tcpSlaveAgentListener" };
+
+	/**
+	 * The prefix of versioned URLs of static resources. The path segment after
+	 * the prefix is a cache-busting hash; the remainder must be one of the
+	 * {@link #STATIC_PREFIXES}.
+	 */
+	private static final String VERSIONED_PREFIX = "/static/";
+
+	/** Maps path prefixes to request classes. */
+	private final PrefixTrie prefixes = new PrefixTrie();
+
+	/** The name of the Crowd SSO cookie. */
+	private final String cookieName;
+
+	/** Counts the classified requests per request class. */
+	private final AtomicLong[] counters = new AtomicLong[RequestClass
+			.values().length];
+
+	/**
+	 * Creates a new classifier.
+	 * 
+	 * @param pCookieName
+	 *            The name of the Crowd SSO cookie. May not be
+	 *            <code>null</code>.
+	 */
+	public CrowdRequestClassifier(String pCookieName) {
+		this.cookieName = pCookieName;
+
+		for (String prefix : STATIC_PREFIXES) {
+			this.prefixes.add(prefix, RequestClass.STATIC);
+		}
+		for (String prefix : REMOTING_PREFIXES) {
+			this.prefixes.add(prefix, RequestClass.REMOTING);
+		}
+		for (int i = 0; i < this.counters.length; i++) {
+			this.counters[i] = new AtomicLong();
+		}
+	}
+
+	/**
+	 * Classifies a request. Requests for static resources and CLI / remoting
+	 * requests are identified by their path only. Requests are anonymous if
+	 * they don't carry a Crowd SSO cookie and the user isn't logged in via
+	 * Crowd.
+	 * 
+	 * @param req
+	 *            The servlet request. May not be <code>null</code>.
+	 * @return The class of the request. Never <code>null</code>.
+	 */
+	public RequestClass classify(HttpServletRequest req) {
+		RequestClass retval = classifyPath(req);
+		if (null == retval) {
+			if (!hasSSOCookie(req)
+					&& !(getSessionAuthentication(req) instanceof CrowdAuthenticationToken)) {
+				retval = RequestClass.ANONYMOUS;
+			} else {
+				retval = RequestClass.SSO;
+			}
+		}
+
+		this.counters[retval.ordinal()].incrementAndGet();
+		return retval;
+	}
+
+	/**
+	 * Returns the number of requests that were classified with the given
+	 * request class.
+	 * 
+	 * @param requestClass
+	 *            The request class. May not be <code>null</code>.
+	 * @return The number of classified requests.
+	 */
+	public long getRequestCount(RequestClass requestClass) {
+		return this.counters[requestClass.ordinal()].get();
+	}
+
+	/**
+	 * Returns the authentication that is stored in the HTTP session.
+	 * 
+	 * @param req
+	 *            The servlet request. May not be <code>null</code>.
+	 * @return The authentication of the user or <code>null</code> if there's
+	 *         no HTTP session or the user isn't logged in.
+	 */
+	static Authentication getSessionAuthentication(HttpServletRequest req) {
+		HttpSession session = req.getSession(false);
+		if (null != session) {
+			Object ctx = session
+					.getAttribute(HttpSessionContextIntegrationFilter.ACEGI_SECURITY_CONTEXT_KEY);
+			if (ctx instanceof SecurityContext) {
+				return ((SecurityContext) ctx).getAuthentication();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Classifies a request by its path.
+	 * 
+	 * @param req
+	 *            The servlet request. May not be <code>null</code>.
+	 * @return The class of the request or <code>null</code> if the path
+	 *         doesn't identify a request that can bypass the SSO checks.
+	 */
+	private RequestClass classifyPath(HttpServletRequest req) {
+		String path = req.getRequestURI();
+		String contextPath = req.getContextPath();
+		if (null == path) {
+			return null;
+		}
+		if (null != contextPath && path.startsWith(contextPath)) {
+			path = path.substring(contextPath.length());
+		}
+
+		// don't guess about paths the container may still resolve differently
+		if (path.contains("..") || path.indexOf(';') >= 0
+				|| path.indexOf('%') >= 0) {
+			return null;
+		}
+
+		if (path.startsWith(VERSIONED_PREFIX)) {
+			int idx = path.indexOf('/', VERSIONED_PREFIX.length());
+			if (idx < 0) {
+				return null;
+			}
+			// Hudson dispatches the remainder like any other URL
+			RequestClass retval = this.prefixes.match(path.substring(idx));
+			return RequestClass.STATIC == retval ? retval : null;
+		}
+		return this.prefixes.match(path);
+	}
+
+	/**
+	 * Checks whether the request carries a Crowd SSO cookie.
+	 * 
+	 * @param req
+	 *            The servlet request. May not be <code>null</code>.
+	 * @return <code>true</code> if the Crowd SSO cookie is available.
+	 *         <code>false</code> else.
+	 */
+	private boolean hasSSOCookie(HttpServletRequest req) {
+		Cookie[] cookies = req.getCookies();
+		if (null != cookies) {
+			for (Cookie cookie : cookies) {
+				if (this.cookieName.equals(cookie.getName())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A simple trie that maps path prefixes to request classes.
+	 */
+	private static final class PrefixTrie {
+		/** The child nodes. */
+		private final Map<Character, PrefixTrie> children = new HashMap<Character, PrefixTrie>();
+
+		/** The request class if a prefix ends at this node. */
+		private RequestClass requestClass;
+
+		/**
+		 * Adds a prefix to the trie.
+		 * 
+		 * @param prefix
+		 *            The prefix. May not be <code>null</code>.
+		 * @param pRequestClass
+		 *            The request class of paths starting with the prefix. May
+		 *            not be <code>null</code>.
+		 */
+		void add(String prefix, RequestClass pRequestClass) {
+			PrefixTrie node = this;
+			for (int i = 0; i < prefix.length(); i++) {
+				Character c = Character.valueOf(prefix.charAt(i));
+				PrefixTrie child = node.children.get(c);
+				if (null == child) {
+					child = new PrefixTrie();
+					node.children.put(c, child);
+				}
+				node = child;
+			}
+			node.requestClass = pRequestClass;
+		}
+
+		/**
+		 * Looks up the request class of the shortest prefix of the path that
+		 * ends at a path segment boundary.
+		 * 
+		 * @param path
+		 *            The path. May not be <code>null</code>.
+		 * @return The request class or <code>null</code> if no prefix
+		 *         matches.
+		 */
+		RequestClass match(String path) {
+			PrefixTrie node = this;
+			for (int i = 0; i < path.length(); i++) {
+				node = node.children.get(Character.valueOf(path.charAt(i)));
+				if (null == node) {
+					return null;
+				}
+				if (null != node.requestClass
+						&& (i + 1 == path.length() || '/' == path.charAt(i + 1))) {
+					return node.requestClass;
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -14,12 +14,17 @@ import static de.theit.hudson.crowd.ErrorMessages.groupNotFound;
 import static de.theit.hudson.crowd.ErrorMessages.hudsonUserGroupNotFound;
 import static de.theit.hudson.crowd.ErrorMessages.hudsonUserNotValid;
 import static de.theit.hudson.crowd.ErrorMessages.invalidAuthentication;
+import static de.theit.hudson.crowd.ErrorMessages.membershipIndexDisabled;
+import static de.theit.hudson.crowd.ErrorMessages.membershipIndexReloading;
 import static de.theit.hudson.crowd.ErrorMessages.operationFailed;
 import static de.theit.hudson.crowd.ErrorMessages.specifyApplicationName;
 import static de.theit.hudson.crowd.ErrorMessages.specifyApplicationPassword;
 import static de.theit.hudson.crowd.ErrorMessages.specifyCrowdUrl;
 import static de.theit.hudson.crowd.ErrorMessages.specifyGroup;
+import static de.theit.hudson.crowd.ErrorMessages.specifyNonNegativeNumber;
+import static de.theit.hudson.crowd.ErrorMessages.specifyPercentile;
 import static de.theit.hudson.crowd.ErrorMessages.userNotFound;
+import static de.theit.hudson.crowd.ErrorMessages.wrongPassword;
 import hudson.Extension;
 import hudson.model.Descriptor;
 import hudson.model.Hudson;
@@ -30,7 +35,9 @@ import hudson.util.FormValidation;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -51,6 +58,7 @@ import org.acegisecurity.userdetails.UserDetailsService;
 import org.acegisecurity.userdetails.UsernameNotFoundException;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.springframework.dao.DataAccessException;
@@ -69,7 +77,9 @@ import com.atlassian.crowd.integration.http.util.CrowdHttpValidationFactorExtrac
 import com.atlassian.crowd.integration.rest.service.factory.RestCrowdClientFactory;
 import com.atlassian.crowd.model.group.Group;
 import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.service.client.ClientProperties;
 import com.atlassian.crowd.service.client.ClientPropertiesImpl;
+import com.atlassian.crowd.service.client.CrowdClient;
 
 /**
  * This class provides the Hudson security realm for authenticating users
@@ -84,7 +94,9 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 	private static final Logger LOG = Logger.getLogger(CrowdSecurityRealm.class
 			.getName());
 
-	/** Contains the Crowd server URL. */
+	/**
+	 * Contains the Crowd server URLs, separated by whitespace or commas.
+	 */
 	public final String url;
 
 	/** Contains the application name to access Crowd. */
@@ -99,18 +111,93 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 	/** Specifies whether nested groups can be used. */
 	public final boolean nestedGroups;
 
+	/**
+	 * The interval in seconds after which the cached status of the Crowd group
+	 * is refreshed.
+	 */
+	public final int groupRefreshInterval;
+
+	/** The lifetime in seconds of cached user data. */
+	public final int cacheTtl;
+
+	/**
+	 * The interval in seconds during which a validated SSO session is not
+	 * validated again.
+	 */
+	public final int sessionValidationInterval;
+
+	/**
+	 * Specifies whether only the names of the groups of a user are retrieved.
+	 */
+	public final boolean groupNamesOnly;
+
+	/**
+	 * The interval in seconds after which the index of the members of the
+	 * Crowd group is reloaded.
+	 */
+	public final int membershipIndexInterval;
+
+	/**
+	 * The interval in seconds after which new events are retrieved from Crowd.
+	 */
+	public final int eventSyncInterval;
+
+	/**
+	 * The time in seconds during which the last known data is served while
+	 * Crowd is unreachable.
+	 */
+	public final int degradedGracePeriod;
+
+	/**
+	 * The number of consecutive failed requests after which requests to Crowd
+	 * fail immediately.
+	 */
+	public final int failureThreshold;
+
+	/** The maximum number of concurrent HTTP connections to Crowd. */
+	public final int httpMaxConnections;
+
+	/** The timeout in seconds for establishing a connection to Crowd. */
+	public final int httpTimeout;
+
+	/** The timeout in seconds for waiting for a response from Crowd. */
+	public final int socketTimeout;
+
+	/**
+	 * The percentile of the response times after which a read-only request is
+	 * also sent to a second Crowd node.
+	 */
+	public final int hedgingPercentile;
+
+	/**
+	 * The time in seconds successfully verified credentials are cached.
+	 */
+	public final int credentialCacheTtl;
+
+	/**
+	 * The configuration that is currently in use. Its background tasks are
+	 * stopped when the security realm is reconfigured.
+	 */
+	private static CrowdConfigurationService activeConfiguration;
+
+	/**
+	 * Resolves the email addresses of the authors of changelogs. Registered
+	 * once when the first configuration is initialized.
+	 */
+	private static CrowdChangeLogListener changeLogListener;
+
 	/**
 	 * The configuration data necessary for accessing the services on the remote
 	 * Crowd server.
 	 */
-	transient private CrowdConfigurationService configuration;
+	transient private volatile CrowdConfigurationService configuration;
 
 	/**
 	 * Default constructor. Fields in config.jelly must match the parameter
 	 * names in the "DataBoundConstructor".
 	 * 
 	 * @param url
-	 *            The URL for Crowd.
+	 *            The URLs for Crowd, separated by whitespace or commas.
 	 * @param applicationName
 	 *            The application name.
 	 * @param password
@@ -121,22 +208,137 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 	 * @param nestedGroups
 	 *            <code>true</code> when nested groups may be used.
 	 *            <code>false</code> else.
+	 * @param groupRefreshInterval
+	 *            The interval in seconds after which the cached status of the
+	 *            Crowd group is refreshed. <code>0</code> disables the cache.
+	 * @param cacheTtl
+	 *            The lifetime in seconds of cached user data like group
+	 *            memberships. <code>0</code> disables the caches.
+	 * @param sessionValidationInterval
+	 *            The interval in seconds during which a validated SSO session
+	 *            is not validated again. <code>0</code> validates the SSO
+	 *            session on every request.
+	 * @param groupNamesOnly
+	 *            <code>true</code> when only the names of the groups of a user
+	 *            should be retrieved. The active status of the groups is then
+	 *            taken from a periodically refreshed index of inactive groups.
+	 * @param membershipIndexInterval
+	 *            The interval in seconds after which the index of all members
+	 *            of the Crowd group is reloaded. <code>0</code> disables the
+	 *            index.
+	 * @param eventSyncInterval
+	 *            The interval in seconds after which new events are retrieved
+	 *            from Crowd and applied to the cached data. <code>0</code>
+	 *            disables the synchronisation with events.
+	 * @param degradedGracePeriod
+	 *            The time in seconds after Crowd became unreachable during
+	 *            which the last known group memberships, authorities and users
+	 *            are served. <code>0</code> disables the degraded mode.
+	 * @param failureThreshold
+	 *            The number of consecutive failed requests after which further
+	 *            requests to Crowd fail immediately until a trial request
+	 *            succeeds. <code>0</code> disables the circuit breaker.
+	 * @param httpMaxConnections
+	 *            The maximum number of concurrent HTTP connections to Crowd.
+	 *            <code>0</code> uses the default of the Crowd client.
+	 * @param httpTimeout
+	 *            The timeout in seconds for establishing a connection to Crowd
+	 *            and for waiting for a free connection. <code>0</code> uses
+	 *            the default of the Crowd client.
+	 * @param socketTimeout
+	 *            The timeout in seconds for waiting for a response from Crowd.
+	 *            <code>0</code> uses the default of the Crowd client.
+	 * @param hedgingPercentile
+	 *            The percentile of the recent response times after which a
+	 *            read-only request is also sent to a second Crowd node.
+	 *            <code>0</code> disables hedging.
+	 * @param credentialCacheTtl
+	 *            The time in seconds successfully verified credentials are
+	 *            cached in memory. <code>0</code> disables the cache.
 	 */
 	@SuppressWarnings("hiding")
 	@DataBoundConstructor
 	public CrowdSecurityRealm(String url, String applicationName,
-			String password, String group, boolean nestedGroups) {
+			String password, String group, boolean nestedGroups,
+			int groupRefreshInterval, int cacheTtl,
+			int sessionValidationInterval, boolean groupNamesOnly,
+			int membershipIndexInterval, int eventSyncInterval,
+			int degradedGracePeriod, int failureThreshold,
+			int httpMaxConnections, int httpTimeout, int socketTimeout,
+			int hedgingPercentile, int credentialCacheTtl) {
 		this.url = url.trim();
 		this.applicationName = applicationName.trim();
 		this.password = password.trim();
 		this.group = group.trim();
 		this.nestedGroups = nestedGroups;
+		this.groupRefreshInterval = groupRefreshInterval;
+		this.cacheTtl = cacheTtl;
+		this.sessionValidationInterval = sessionValidationInterval;
+		this.groupNamesOnly = groupNamesOnly;
+		this.membershipIndexInterval = membershipIndexInterval;
+		this.eventSyncInterval = eventSyncInterval;
+		this.degradedGracePeriod = degradedGracePeriod;
+		this.failureThreshold = failureThreshold;
+		this.httpMaxConnections = httpMaxConnections;
+		this.httpTimeout = httpTimeout;
+		this.socketTimeout = socketTimeout;
+		this.hedgingPercentile = hedgingPercentile;
+		this.credentialCacheTtl = credentialCacheTtl;
+	}
+
+	/**
+	 * Splits the configured Crowd URLs.
+	 * 
+	 * @param urls
+	 *            The base URLs of the Crowd nodes, separated by whitespace or
+	 *            commas. May not be <code>null</code>.
+	 * @return The URLs. Never <code>null</code>.
+	 */
+	static List<String> splitUrls(String urls) {
+		List<String> retval = new ArrayList<String>();
+		for (String url : urls.split("[\\s,]+")) {
+			if (0 != url.length()) {
+				retval.add(url);
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * Returns a copy of the client properties that point to the given Crowd
+	 * node.
+	 * 
+	 * @param props
+	 *            The client properties. May not be <code>null</code>.
+	 * @param url
+	 *            The base URL of the Crowd node. May not be <code>null</code>.
+	 * @return The client properties of the node. Never <code>null</code>.
+	 */
+	static Properties withUrl(Properties props, String url) {
+		String crowdUrl = url;
+		if (!crowdUrl.endsWith("/")) {
+			crowdUrl += "/";
+		}
+		Properties retval = new Properties();
+		retval.putAll(props);
+		retval.setProperty("crowd.base.url", crowdUrl);
+		retval.setProperty("application.login.url", crowdUrl + "console/");
+		retval.setProperty("crowd.server.url", crowdUrl + "services/");
+		return retval;
 	}
 
 	/**
-	 * Initializes all objects necessary to talk to / with Crowd.
+	 * Initializes all objects necessary to talk to / with Crowd. Synchronized,
+	 * since the configuration is initialized lazily by several callers and
+	 * must not be created twice; the configuration is only published when it
+	 * is complete.
 	 */
-	private void initializeConfiguration() {
+	private synchronized void initializeConfiguration() {
+		if (null != this.configuration) {
+			// initialized by a concurrent caller
+			return;
+		}
+
 		// configure the ClientProperties object
 		Properties props = new Properties();
 		try {
@@ -145,37 +347,143 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 			LOG.log(Level.SEVERE, cannotLoadCrowdProperties(), ex);
 		}
 
+		// the URLs of all Crowd nodes; the first one is used for the SSO
+		// integration
+		List<String> urls = splitUrls(this.url);
+		if (urls.isEmpty()) {
+			urls.add(this.url);
+		}
 		if (this.applicationName != null || this.password != null
 				|| this.url != null) {
-			String crowdUrl = this.url;
-			if (!crowdUrl.endsWith("/")) {
-				crowdUrl += "/";
-			}
 			props.setProperty("application.name", this.applicationName);
 			props.setProperty("application.password", this.password);
-			props.setProperty("crowd.base.url", crowdUrl);
-			props.setProperty("application.login.url", crowdUrl + "console/");
-			props.setProperty("crowd.server.url", this.url + "services/");
 			props.setProperty("session.validationinterval", "5");
 		} else {
 			LOG.warning("Client properties are incomplete");
 		}
 
-		this.configuration = new CrowdConfigurationService(this.group,
-				this.nestedGroups);
+		// size the HTTP connection pool of the Crowd client
+		int maxConnections = this.httpMaxConnections > 0 ? this.httpMaxConnections
+				: CrowdConfigurationService.DEFAULT_MAX_CONNECTIONS;
+		props.setProperty("http.max.connections",
+				String.valueOf(maxConnections));
+		if (this.httpTimeout > 0) {
+			props.setProperty("http.timeout",
+					String.valueOf(this.httpTimeout * 1000L));
+		}
+		if (this.socketTimeout > 0) {
+			props.setProperty("socket.timeout",
+					String.valueOf(this.socketTimeout * 1000L));
+		}
 
-		this.configuration.clientProperties = ClientPropertiesImpl
-				.newInstanceFromProperties(props);
-		this.configuration.crowdClient = new RestCrowdClientFactory()
-				.newInstance(this.configuration.clientProperties);
+		CrowdConfigurationService configuration = new CrowdConfigurationService(
+				this.group, this.nestedGroups);
+		configuration.groupRefreshInterval = this.groupRefreshInterval;
+		configuration.cacheTtl = this.cacheTtl;
+		configuration.sessionValidationInterval = this.sessionValidationInterval;
+		configuration.groupNamesOnly = this.groupNamesOnly;
+		configuration.membershipIndexInterval = this.membershipIndexInterval;
+		configuration.eventSyncInterval = this.eventSyncInterval;
+		configuration.degradedGracePeriod = this.degradedGracePeriod;
+		configuration.credentialCacheTtl = this.credentialCacheTtl;
 
-		this.configuration.tokenHelper = CrowdHttpTokenHelperImpl
+		// one client per Crowd node
+		List<CrowdClient> clients = new ArrayList<CrowdClient>(urls.size());
+		for (String nodeUrl : urls) {
+			ClientProperties clientProperties = ClientPropertiesImpl
+					.newInstanceFromProperties(withUrl(props, nodeUrl));
+			if (null == configuration.clientProperties) {
+				configuration.clientProperties = clientProperties;
+			}
+			clients.add(new RestCrowdClientFactory()
+					.newInstance(clientProperties));
+		}
+		CrowdClient client;
+		if (1 == clients.size()) {
+			client = clients.get(0);
+		} else {
+			configuration.loadBalancer = new CrowdLoadBalancer(urls, clients,
+					this.hedgingPercentile, maxConnections);
+			client = configuration.loadBalancer.getClient();
+		}
+		if (this.failureThreshold > 0) {
+			configuration.circuitBreaker = new CrowdCircuitBreaker(client,
+					this.failureThreshold,
+					CrowdConfigurationService.CIRCUIT_RETRY_INTERVAL * 1000L);
+			client = configuration.circuitBreaker.getClient();
+		}
+		configuration.healthMonitor = new CrowdHealthMonitor(client);
+		// waiting for a free connection is a local condition and must not
+		// trip the circuit breaker or the health monitor
+		configuration.connectionPool = new CrowdConnectionPool(
+				configuration.healthMonitor.getClient(), maxConnections,
+				this.httpTimeout * 1000L);
+		configuration.metrics = new CrowdMetrics(configuration.connectionPool
+				.getClient());
+		configuration.crowdClient = CrowdCallCounter
+				.wrap(configuration.metrics.getClient());
+
+		configuration.tokenHelper = CrowdHttpTokenHelperImpl
 				.getInstance(CrowdHttpValidationFactorExtractorImpl
 						.getInstance());
-		this.configuration.crowdHttpAuthenticator = new CrowdHttpAuthenticatorImpl(
-				this.configuration.crowdClient,
-				this.configuration.clientProperties,
-				this.configuration.tokenHelper);
+		configuration.crowdHttpAuthenticator = new CrowdHttpAuthenticatorImpl(
+				configuration.crowdClient, configuration.clientProperties,
+				configuration.tokenHelper);
+
+		// stop the background tasks of the previous configuration (if any)
+		// and start our own ones
+		synchronized (CrowdSecurityRealm.class) {
+			if (null != activeConfiguration) {
+				activeConfiguration.shutdown();
+			}
+			activeConfiguration = configuration;
+
+			// resolve the email addresses of changelog authors in one go
+			if (null == changeLogListener) {
+				changeLogListener = new CrowdChangeLogListener();
+				changeLogListener.register();
+			}
+		}
+		configuration.start();
+		this.configuration = configuration;
+	}
+
+	/**
+	 * Returns the configuration that is currently in use.
+	 * 
+	 * @return The active configuration or <code>null</code> if the security
+	 *         realm is not yet initialized.
+	 */
+	static synchronized CrowdConfigurationService getActiveConfiguration() {
+		return activeConfiguration;
+	}
+
+	/**
+	 * Returns the configuration data necessary for accessing the services on
+	 * the remote Crowd server.
+	 * 
+	 * @return The configuration. Never <code>null</code>.
+	 */
+	CrowdConfigurationService getConfiguration() {
+		if (null == this.configuration) {
+			initializeConfiguration();
+		}
+		return this.configuration;
+	}
+
+	/**
+	 * Resolves the email addresses of several users at once. Addresses that
+	 * are not yet cached are retrieved from the remote Crowd server with as
+	 * few requests as possible and are cached, so that resolving the users
+	 * one by one afterwards doesn't need any further requests.
+	 * 
+	 * @param userIds
+	 *            The IDs of the users. May not be <code>null</code>.
+	 * @return The email addresses by user ID. Users that don't exist or have
+	 *         no email address are missing. Never <code>null</code>.
+	 */
+	public Map<String, String> resolveMailAddresses(Collection<String> userIds) {
+		return getConfiguration().getEmailAddresses(userIds);
 	}
 
 	/**
@@ -191,6 +499,8 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 
 		CrowdRememberMeServices ssoService = new CrowdRememberMeServices(
 				this.configuration);
+		// the caches of SSO tokens are shown on the metrics page
+		this.configuration.rememberMe = ssoService;
 
 		AuthenticationManager crowdAuthenticationManager = new CrowdAuthenticationManager(
 				this.configuration);
@@ -292,14 +602,62 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 	@Override
 	protected UserDetails authenticate(String pUsername, String pPassword)
 			throws AuthenticationException {
-		// ensure that the group is available, active and that the user
-		// is a member of it
+		// reject clients that keep retrying wrong credentials without
+		// asking the remote Crowd server
+		StaplerRequest request = Stapler.getCurrentRequest();
+		String address = null == request ? null : request.getRemoteAddr();
+		this.configuration.loginThrottle.check(pUsername, address);
+
+		// count the requests sent to the remote Crowd server for this login
+		CrowdCallCounter.start();
+		try {
+			UserDetails retval = authenticateUser(pUsername, pPassword);
+			this.configuration.loginThrottle.recordSuccess(pUsername);
+			return retval;
+		} catch (AuthenticationException ex) {
+			// any failure drops the recently verified credentials
+			this.configuration.forgetCredentials(pUsername);
+			if (LoginThrottle.isCredentialFailure(ex)) {
+				this.configuration.loginThrottle.recordFailure(pUsername,
+						address);
+			}
+			throw ex;
+		} finally {
+			this.configuration.recordLogin(pUsername, CrowdCallCounter.stop(),
+					true);
+		}
+	}
+
+	/**
+	 * Authenticates the user against the remote Crowd server. The group
+	 * membership of the user is derived from the authorities that are
+	 * retrieved anyway instead of asking the remote Crowd server separately.
+	 * 
+	 * @param pUsername
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param pPassword
+	 *            The password of the user. May not be <code>null</code>.
+	 * @return The details of the authenticated user. Never <code>null</code>.
+	 * @throws AuthenticationException
+	 *             If the user cannot be authenticated.
+	 */
+	private UserDetails authenticateUser(String pUsername, String pPassword)
+			throws AuthenticationException {
+		// ensure that the group is available and active
 		if (!this.configuration.isGroupActive()) {
 			throw new InsufficientAuthenticationException(
 					hudsonUserGroupNotFound());
 		}
 
-		if (!this.configuration.isGroupMember(pUsername)) {
+		// credentials verified recently => no need to ask Crowd again
+		CredentialCache.Entry cached = this.configuration
+				.getVerifiedCredentials(pUsername, pPassword);
+		if (null != cached) {
+			return new CrowdUser(cached.getUser(), cached.getAuthorities());
+		}
+
+		// reject non-members early if the group members are indexed
+		if (this.configuration.isKnownNonMember(pUsername)) {
 			throw new InsufficientAuthenticationException(hudsonUserNotValid());
 		}
 
@@ -309,7 +667,9 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 			user = this.configuration.crowdClient.authenticateUser(pUsername,
 					pPassword);
 		} catch (UserNotFoundException ex) {
-			LOG.log(Level.INFO, userNotFound(), ex);
+			// wrong credentials are expected => no stack trace
+			LOG.info(userNotFound());
+			LOG.log(Level.FINE, userNotFound(), ex);
 			throw new BadCredentialsException(userNotFound(), ex);
 		} catch (ExpiredCredentialException ex) {
 			LOG.log(Level.WARNING, expiredCredentials(), ex);
@@ -322,6 +682,12 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 			throw new AuthenticationServiceException(applicationPermission(),
 					ex);
 		} catch (InvalidAuthenticationException ex) {
+			if (this.configuration.isApplicationAuthenticated()) {
+				// the application is accepted => the password is wrong
+				LOG.info(wrongPassword());
+				LOG.log(Level.FINE, wrongPassword(), ex);
+				throw new BadCredentialsException(wrongPassword(), ex);
+			}
 			LOG.log(Level.WARNING, invalidAuthentication(), ex);
 			throw new AuthenticationServiceException(invalidAuthentication(),
 					ex);
@@ -330,13 +696,22 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 			throw new AuthenticationServiceException(operationFailed(), ex);
 		}
 
-		// create the list of granted authorities
-		List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
-		// add the "authenticated" authority to the list of granted
-		// authorities...
-		authorities.add(SecurityRealm.AUTHENTICATED_AUTHORITY);
-		// ..and all authorities retrieved from the Crowd server
-		authorities.addAll(this.configuration.getAuthoritiesForUser(pUsername));
+		// retrieve the list of groups the user is a member of; they also
+		// tell whether the user is a member of the Hudson user group
+		Collection<GrantedAuthority> userAuthorities = this.configuration
+				.getAuthoritiesForUser(pUsername);
+		if (!this.configuration.isGroupMember(userAuthorities)) {
+			throw new InsufficientAuthenticationException(hudsonUserNotValid());
+		}
+
+		// the "authenticated" authority and all authorities retrieved from
+		// the Crowd server; shared by all users with the same groups
+		GrantedAuthority[] authorities = this.configuration
+				.getGrantedAuthorities(userAuthorities);
+
+		// repeated logins with the same credentials skip Crowd for a while
+		this.configuration.cacheCredentials(pUsername, pPassword, user,
+				authorities);
 
 		return new CrowdUser(user, authorities);
 	}
@@ -444,12 +819,245 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 			return FormValidation.ok();
 		}
 
+		/**
+		 * Performs on-the-fly validation of the form field 'group refresh
+		 * interval'.
+		 * 
+		 * @param groupRefreshInterval
+		 *            The interval in seconds after which the cached status of
+		 *            the Crowd group is refreshed.
+		 * 
+		 * @return Indicates the outcome of the validation. This is sent to the
+		 *         browser.
+		 */
+		public FormValidation doCheckGroupRefreshInterval(
+				@QueryParameter final String groupRefreshInterval) {
+			return checkNumber(groupRefreshInterval, Integer.MAX_VALUE,
+					specifyNonNegativeNumber());
+		}
+
+		/**
+		 * Performs on-the-fly validation of the form field 'cache lifetime'.
+		 * 
+		 * @param cacheTtl
+		 *            The lifetime in seconds of cached user data.
+		 * 
+		 * @return Indicates the outcome of the validation. This is sent to the
+		 *         browser.
+		 */
+		public FormValidation doCheckCacheTtl(
+				@QueryParameter final String cacheTtl) {
+			return checkNumber(cacheTtl, Integer.MAX_VALUE,
+					specifyNonNegativeNumber());
+		}
+
+		/**
+		 * Performs on-the-fly validation of the form field 'SSO session
+		 * validation interval'.
+		 * 
+		 * @param sessionValidationInterval
+		 *            The interval in seconds during which a validated SSO
+		 *            session is not validated again.
+		 * 
+		 * @return Indicates the outcome of the validation. This is sent to the
+		 *         browser.
+		 */
+		public FormValidation doCheckSessionValidationInterval(
+				@QueryParameter final String sessionValidationInterval) {
+			return checkNumber(sessionValidationInterval, Integer.MAX_VALUE,
+					specifyNonNegativeNumber());
+		}
+
+		/**
+		 * Performs on-the-fly validation of the form field 'membership index
+		 * interval'.
+		 * 
+		 * @param membershipIndexInterval
+		 *            The interval in seconds after which the index of the
+		 *            members of the Crowd group is reloaded.
+		 * 
+		 * @return Indicates the outcome of the validation. This is sent to the
+		 *         browser.
+		 */
+		public FormValidation doCheckMembershipIndexInterval(
+				@QueryParameter final String membershipIndexInterval) {
+			return checkNumber(membershipIndexInterval, Integer.MAX_VALUE,
+					specifyNonNegativeNumber());
+		}
+
+		/**
+		 * Performs on-the-fly validation of the form field 'event
+		 * synchronisation interval'.
+		 * 
+		 * @param eventSyncInterval
+		 *            The interval in seconds after which new events are
+		 *            retrieved from Crowd.
+		 * 
+		 * @return Indicates the outcome of the validation. This is sent to the
+		 *         browser.
+		 */
+		public FormValidation doCheckEventSyncInterval(
+				@QueryParameter final String eventSyncInterval) {
+			return checkNumber(eventSyncInterval, Integer.MAX_VALUE,
+					specifyNonNegativeNumber());
+		}
+
+		/**
+		 * Performs on-the-fly validation of the form field 'degraded mode grace
+		 * period'.
+		 * 
+		 * @param degradedGracePeriod
+		 *            The time in seconds during which the last known data is
+		 *            served while Crowd is unreachable.
+		 * 
+		 * @return Indicates the outcome of the validation. This is sent to the
+		 *         browser.
+		 */
+		public FormValidation doCheckDegradedGracePeriod(
+				@QueryParameter final String degradedGracePeriod) {
+			return checkNumber(degradedGracePeriod, Integer.MAX_VALUE,
+					specifyNonNegativeNumber());
+		}
+
+		/**
+		 * Performs on-the-fly validation of the form field 'circuit breaker
+		 * failure threshold'.
+		 * 
+		 * @param failureThreshold
+		 *            The number of consecutive failed requests after which
+		 *            requests to Crowd fail immediately.
+		 * 
+		 * @return Indicates the outcome of the validation. This is sent to the
+		 *         browser.
+		 */
+		public FormValidation doCheckFailureThreshold(
+				@QueryParameter final String failureThreshold) {
+			return checkNumber(failureThreshold, Integer.MAX_VALUE,
+					specifyNonNegativeNumber());
+		}
+
+		/**
+		 * Performs on-the-fly validation of the form field 'maximum HTTP
+		 * connections'.
+		 * 
+		 * @param httpMaxConnections
+		 *            The maximum number of concurrent HTTP connections to
+		 *            Crowd.
+		 * 
+		 * @return Indicates the outcome of the validation. This is sent to the
+		 *         browser.
+		 */
+		public FormValidation doCheckHttpMaxConnections(
+				@QueryParameter final String httpMaxConnections) {
+			return checkNumber(httpMaxConnections, Integer.MAX_VALUE,
+					specifyNonNegativeNumber());
+		}
+
+		/**
+		 * Performs on-the-fly validation of the form field 'connection
+		 * timeout'.
+		 * 
+		 * @param httpTimeout
+		 *            The timeout in seconds for establishing a connection to
+		 *            Crowd.
+		 * 
+		 * @return Indicates the outcome of the validation. This is sent to the
+		 *         browser.
+		 */
+		public FormValidation doCheckHttpTimeout(
+				@QueryParameter final String httpTimeout) {
+			return checkNumber(httpTimeout, Integer.MAX_VALUE,
+					specifyNonNegativeNumber());
+		}
+
+		/**
+		 * Performs on-the-fly validation of the form field 'socket timeout'.
+		 * 
+		 * @param socketTimeout
+		 *            The timeout in seconds for waiting for a response from
+		 *            Crowd.
+		 * 
+		 * @return Indicates the outcome of the validation. This is sent to the
+		 *         browser.
+		 */
+		public FormValidation doCheckSocketTimeout(
+				@QueryParameter final String socketTimeout) {
+			return checkNumber(socketTimeout, Integer.MAX_VALUE,
+					specifyNonNegativeNumber());
+		}
+
+		/**
+		 * Performs on-the-fly validation of the form field 'hedging
+		 * percentile'.
+		 * 
+		 * @param hedgingPercentile
+		 *            The percentile of the response times after which a read-
+		 *            only request is also sent to a second Crowd node.
+		 * 
+		 * @return Indicates the outcome of the validation. This is sent to the
+		 *         browser.
+		 */
+		public FormValidation doCheckHedgingPercentile(
+				@QueryParameter final String hedgingPercentile) {
+			return checkNumber(hedgingPercentile, 100, specifyPercentile());
+		}
+
+		/**
+		 * Performs on-the-fly validation of the form field 'credential cache
+		 * lifetime'.
+		 * 
+		 * @param credentialCacheTtl
+		 *            The time in seconds successfully verified credentials are
+		 *            cached.
+		 * 
+		 * @return Indicates the outcome of the validation. This is sent to the
+		 *         browser.
+		 */
+		public FormValidation doCheckCredentialCacheTtl(
+				@QueryParameter final String credentialCacheTtl) {
+			return checkNumber(credentialCacheTtl, Integer.MAX_VALUE,
+					specifyNonNegativeNumber());
+		}
+
+		/**
+		 * Checks whether a numeric form field contains a number between
+		 * <code>0</code> and the given maximum.
+		 * 
+		 * @param value
+		 *            The value of the form field.
+		 * @param max
+		 *            The largest allowed number.
+		 * @param message
+		 *            The error message if the value is not valid.
+		 * 
+		 * @return Indicates the outcome of the validation. This is sent to the
+		 *         browser.
+		 */
+		private static FormValidation checkNumber(String value, int max,
+				String message) {
+			if (!Hudson.getInstance().hasPermission(Hudson.ADMINISTER)) {
+				return FormValidation.ok();
+			}
+
+			try {
+				int number = Integer.parseInt(value.trim());
+				if (number < 0 || number > max) {
+					return FormValidation.error(message);
+				}
+			} catch (NumberFormatException ex) {
+				return FormValidation.error(message);
+			}
+
+			return FormValidation.ok();
+		}
+
 		/**
 		 * Checks whether the connection to the Crowd server can be established
 		 * using the given credentials.
 		 * 
 		 * @param url
-		 *            The URL of the Crowd server.
+		 *            The URLs of the Crowd nodes, separated by whitespace or
+		 *            commas.
 		 * @param applicationName
 		 *            The application name.
 		 * @param password
@@ -475,9 +1083,35 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 
 			props.setProperty("application.name", applicationName);
 			props.setProperty("application.password", password);
-			props.setProperty("crowd.server.url", url);
 			props.setProperty("session.validationinterval", "5");
 
+			// every Crowd node must be reachable
+			for (String nodeUrl : splitUrls(url)) {
+				FormValidation result = testConnection(withUrl(props, nodeUrl),
+						group, log);
+				if (FormValidation.Kind.OK != result.kind) {
+					return result;
+				}
+			}
+			return FormValidation.ok();
+		}
+
+		/**
+		 * Checks whether the connection to a single Crowd node can be
+		 * established.
+		 * 
+		 * @param props
+		 *            The client properties of the Crowd node. May not be
+		 *            <code>null</code>.
+		 * @param group
+		 *            The Crowd group users have to belong to if specified.
+		 * @param log
+		 *            Used for logging purposes. May not be <code>null</code>.
+		 * 
+		 * @return Indicates the outcome of the validation.
+		 */
+		private FormValidation testConnection(Properties props, String group,
+				Logger log) {
 			CrowdConfigurationService configuration = new CrowdConfigurationService(
 					group, false);
 			configuration.clientProperties = ClientPropertiesImpl
@@ -506,6 +1140,23 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 			}
 		}
 
+		/**
+		 * Triggers a reload of the index of the members of the Crowd group
+		 * that is used by the active configuration.
+		 * 
+		 * @return Indicates the outcome of the operation. This is sent to the
+		 *         browser.
+		 */
+		public FormValidation doReloadMembershipIndex() {
+			Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+
+			CrowdConfigurationService configuration = getActiveConfiguration();
+			if (null != configuration && configuration.reloadMembershipIndex()) {
+				return FormValidation.ok(membershipIndexReloading());
+			}
+			return FormValidation.warning(membershipIndexDisabled());
+		}
+
 		/**
 		 * {@inheritDoc}
 		 * 
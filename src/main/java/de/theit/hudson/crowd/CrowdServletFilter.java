@@ -5,11 +5,17 @@
  */
 package de.theit.hudson.crowd;
 
+import static de.theit.hudson.crowd.ErrorMessages.applicationPermission;
+import static de.theit.hudson.crowd.ErrorMessages.invalidAuthentication;
+import static de.theit.hudson.crowd.ErrorMessages.invalidToken;
 import static de.theit.hudson.crowd.ErrorMessages.operationFailed;
+import static de.theit.hudson.crowd.ErrorMessages.sessionAlreadyInvalidated;
 import static org.acegisecurity.ui.rememberme.TokenBasedRememberMeServices.ACEGI_SECURITY_HASHED_REMEMBER_ME_COOKIE_KEY;
 import hudson.EnvVars;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,7 +35,13 @@ import org.acegisecurity.context.SecurityContext;
 import org.acegisecurity.context.SecurityContextHolder;
 import org.acegisecurity.ui.rememberme.RememberMeServices;
 
+import com.atlassian.crowd.exception.ApplicationPermissionException;
+import com.atlassian.crowd.exception.InvalidAuthenticationException;
+import com.atlassian.crowd.exception.InvalidTokenException;
 import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.model.authentication.ValidationFactor;
+
+import de.theit.hudson.crowd.CrowdRequestClassifier.RequestClass;
 
 /**
  * This class realizes a servlet filter that checks on each request the status
@@ -46,6 +58,27 @@ public class CrowdServletFilter implements Filter {
 	private static final Logger LOG = Logger.getLogger(CrowdServletFilter.class
 			.getName());
 
+	/**
+	 * The name of the session attribute that holds the time of the last
+	 * successful validation of the SSO session.
+	 */
+	private static final String LAST_VALIDATION = CrowdServletFilter.class
+			.getName() + ".lastValidation";
+
+	/**
+	 * The name of the session attribute that is set when a background
+	 * validation detected that the SSO session isn't valid anymore.
+	 */
+	private static final String SSO_INVALID = CrowdServletFilter.class
+			.getName() + ".ssoInvalid";
+
+	/**
+	 * The name of the session attribute that is set while a background
+	 * validation of the SSO session is in progress.
+	 */
+	private static final String VALIDATION_PENDING = CrowdServletFilter.class
+			.getName() + ".validationPending";
+
 	/**
 	 * The configuration data necessary for accessing the services on the remote
 	 * Crowd server.
@@ -64,6 +97,9 @@ public class CrowdServletFilter implements Filter {
 	/** Holds the {@link RememberMeServices} that is used for auto-login. */
 	private CrowdRememberMeServices rememberMe;
 
+	/** Classifies the requests that can bypass the SSO checks. */
+	private CrowdRequestClassifier classifier;
+
 	/**
 	 * Creates a new instance of this class.
 	 * 
@@ -88,6 +124,11 @@ public class CrowdServletFilter implements Filter {
 			this.rememberMe = (CrowdRememberMeServices) this.securityRealm
 					.getSecurityComponents().rememberMe;
 		}
+
+		this.classifier = new CrowdRequestClassifier(
+				this.configuration.clientProperties.getCookieTokenKey());
+		// the number of requests per class is shown on the metrics page
+		this.configuration.requestClassifier = this.classifier;
 	}
 
 	/**
@@ -112,7 +153,9 @@ public class CrowdServletFilter implements Filter {
 		// check whether the SSO session is valid
 
 		if (request instanceof HttpServletRequest
-				&& response instanceof HttpServletResponse) {
+				&& response instanceof HttpServletResponse
+				&& RequestClass.SSO == this.classifier
+						.classify((HttpServletRequest) request)) {
 			HttpServletRequest req = (HttpServletRequest) request;
 			HttpServletResponse res = (HttpServletResponse) response;
 
@@ -120,10 +163,10 @@ public class CrowdServletFilter implements Filter {
 			// valid
 			try {
 				SecurityContext sc = SecurityContextHolder.getContext();
-				boolean isValidated = this.configuration.crowdHttpAuthenticator
-						.isAuthenticated(req, res);
+				Authentication currentAuth = getAuthentication(req, sc);
+				boolean isValidated = isSessionValid(req, res, currentAuth);
 				if (!isValidated
-						&& sc.getAuthentication() instanceof CrowdAuthenticationToken) {
+						&& currentAuth instanceof CrowdAuthenticationToken) {
 					// close the SSO session
 					if (null != this.rememberMe) {
 						this.rememberMe.logout(req, res);
@@ -146,7 +189,7 @@ public class CrowdServletFilter implements Filter {
 					cookie.setPath(req.getContextPath().length() > 0 ? req
 							.getContextPath() : "/");
 					res.addCookie(cookie);
-				} else if (!(sc.getAuthentication() instanceof CrowdAuthenticationToken)) {
+				} else if (!(currentAuth instanceof CrowdAuthenticationToken)) {
 					// user not logged in via Crowd
 					// => try to auto-login the user
 					if (null != this.rememberMe) {
@@ -171,6 +214,170 @@ public class CrowdServletFilter implements Filter {
 		this.defaultFilter.doFilter(request, response, chain);
 	}
 
+	/**
+	 * Returns the authentication of the current user. This filter runs before
+	 * the security context is restored from the HTTP session, so if the
+	 * security context is still empty, the authentication is looked up in
+	 * the HTTP session.
+	 * 
+	 * @param req
+	 *            The servlet request. May not be <code>null</code>.
+	 * @param sc
+	 *            The current security context. May not be <code>null</code>.
+	 * @return The authentication of the current user or <code>null</code> if
+	 *         the user isn't logged in.
+	 */
+	private Authentication getAuthentication(HttpServletRequest req,
+			SecurityContext sc) {
+		Authentication auth = sc.getAuthentication();
+		if (null == auth) {
+			auth = CrowdRequestClassifier.getSessionAuthentication(req);
+		}
+		return auth;
+	}
+
+	/**
+	 * Checks whether the SSO session is still valid. If the user is logged in
+	 * via Crowd and the SSO session was validated successfully within the
+	 * configured validation interval, the remote Crowd server isn't asked
+	 * again. When the interval has elapsed, the SSO session is validated in the
+	 * background while the current request proceeds.
+	 * 
+	 * @param req
+	 *            The servlet request. May not be <code>null</code>.
+	 * @param res
+	 *            The servlet response. May not be <code>null</code>.
+	 * @param auth
+	 *            The current authentication. May be <code>null</code>.
+	 * @return <code>true</code> if the SSO session is valid.
+	 *         <code>false</code> else.
+	 * @throws OperationFailedException
+	 *             If the request to the remote Crowd server failed.
+	 */
+	private boolean isSessionValid(HttpServletRequest req,
+			HttpServletResponse res, Authentication auth)
+			throws OperationFailedException {
+		long interval = this.configuration.sessionValidationInterval * 1000L;
+		HttpSession session = req.getSession(false);
+
+		if (interval > 0 && null != session
+				&& auth instanceof CrowdAuthenticationToken) {
+			if (null != session.getAttribute(SSO_INVALID)) {
+				// a background validation failed
+				return false;
+			}
+
+			Long lastValidation = (Long) session.getAttribute(LAST_VALIDATION);
+			if (null != lastValidation) {
+				long age = System.currentTimeMillis()
+						- lastValidation.longValue();
+				if (age < interval) {
+					return true;
+				}
+				if (age < 2 * interval && validateInBackground(req, session)) {
+					return true;
+				}
+			}
+		}
+
+		boolean retval = this.configuration.crowdHttpAuthenticator
+				.isAuthenticated(req, res);
+		if (retval && null != session
+				&& auth instanceof CrowdAuthenticationToken) {
+			session.setAttribute(LAST_VALIDATION,
+					Long.valueOf(System.currentTimeMillis()));
+		}
+		return retval;
+	}
+
+	/**
+	 * Validates the SSO session in the background. The outcome is stored in
+	 * the HTTP session and taken into account by the following requests.
+	 * 
+	 * @param req
+	 *            The servlet request. May not be <code>null</code>.
+	 * @param session
+	 *            The HTTP session. May not be <code>null</code>.
+	 * @return <code>true</code> if a background validation is in progress.
+	 *         <code>false</code> if the SSO session must be validated
+	 *         synchronously.
+	 */
+	private boolean validateInBackground(HttpServletRequest req,
+			final HttpSession session) {
+		final String ssoToken = this.configuration.tokenHelper.getCrowdToken(
+				req, this.configuration.clientProperties.getCookieTokenKey());
+		if (null == ssoToken) {
+			return false;
+		}
+
+		AtomicBoolean pending;
+		synchronized (session) {
+			pending = (AtomicBoolean) session.getAttribute(VALIDATION_PENDING);
+			if (null == pending) {
+				pending = new AtomicBoolean();
+				session.setAttribute(VALIDATION_PENDING, pending);
+			}
+		}
+		if (!pending.compareAndSet(false, true)) {
+			// another request already triggered the validation
+			return true;
+		}
+
+		final AtomicBoolean validationPending = pending;
+		final List<ValidationFactor> validationFactors = this.configuration.tokenHelper
+				.getValidationFactorExtractor().getValidationFactors(req);
+		boolean submitted = this.configuration
+				.executeInBackground(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							validateSession(session, ssoToken,
+									validationFactors);
+						} finally {
+							validationPending.set(false);
+						}
+					}
+				});
+		if (!submitted) {
+			pending.set(false);
+		}
+		return submitted;
+	}
+
+	/**
+	 * Validates the SSO token against the remote Crowd server and stores the
+	 * outcome in the HTTP session.
+	 * 
+	 * @param session
+	 *            The HTTP session. May not be <code>null</code>.
+	 * @param ssoToken
+	 *            The SSO token. May not be <code>null</code>.
+	 * @param validationFactors
+	 *            The validation factors of the request. May not be
+	 *            <code>null</code>.
+	 */
+	private void validateSession(HttpSession session, String ssoToken,
+			List<ValidationFactor> validationFactors) {
+		try {
+			this.configuration.crowdClient.validateSSOAuthentication(ssoToken,
+					validationFactors);
+			session.setAttribute(LAST_VALIDATION,
+					Long.valueOf(System.currentTimeMillis()));
+		} catch (InvalidTokenException ex) {
+			LOG.log(Level.INFO, invalidToken(), ex);
+			session.setAttribute(SSO_INVALID, Boolean.TRUE);
+		} catch (ApplicationPermissionException ex) {
+			LOG.log(Level.WARNING, applicationPermission(), ex);
+		} catch (InvalidAuthenticationException ex) {
+			LOG.log(Level.WARNING, invalidAuthentication(), ex);
+		} catch (OperationFailedException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex);
+		} catch (IllegalStateException ex) {
+			// the session was invalidated in the meantime
+			LOG.log(Level.FINE, sessionAlreadyInvalidated(), ex);
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * 
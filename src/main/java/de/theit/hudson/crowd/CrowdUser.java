@@ -22,10 +22,13 @@ import com.atlassian.crowd.model.user.User;
  */
 public class CrowdUser implements UserDetails {
 	/** Necessary for serialisation. */
-	private static final long serialVersionUID = -907996070755427899L;
+	private static final long serialVersionUID = 3914572096318237542L;
 
-	/** Stores the granted authorities. */
-	private List<GrantedAuthority> grantedAuthorities;
+	/**
+	 * Stores the granted authorities. The array may be shared with other users
+	 * that have the same authorities.
+	 */
+	private GrantedAuthority[] grantedAuthorities;
 
 	/** Holds the Crowd user object. */
 	private User user;
@@ -40,6 +43,21 @@ public class CrowdUser implements UserDetails {
 	 *            <code>null</code>.
 	 */
 	public CrowdUser(User pUser, List<GrantedAuthority> authorities) {
+		this(pUser, authorities.toArray(new GrantedAuthority[authorities
+				.size()]));
+	}
+
+	/**
+	 * Creates a new instance.
+	 * 
+	 * @param pUser
+	 *            The user object. May not be <code>null</code>.
+	 * @param authorities
+	 *            The granted authorities of the user. May not be
+	 *            <code>null</code>. The array is not copied and must not be
+	 *            modified afterwards.
+	 */
+	public CrowdUser(User pUser, GrantedAuthority[] authorities) {
 		this.grantedAuthorities = authorities;
 		this.user = pUser;
 	}
@@ -51,8 +69,8 @@ public class CrowdUser implements UserDetails {
 	 */
 	@Override
 	public GrantedAuthority[] getAuthorities() {
-		return this.grantedAuthorities
-				.toArray(new GrantedAuthority[this.grantedAuthorities.size()]);
+		// the array is shared to avoid an allocation per call
+		return this.grantedAuthorities;
 	}
 
 	/**
@@ -11,10 +11,9 @@ import static de.theit.hudson.crowd.ErrorMessages.hudsonUserNotValid;
 import static de.theit.hudson.crowd.ErrorMessages.invalidAuthentication;
 import static de.theit.hudson.crowd.ErrorMessages.operationFailed;
 import static de.theit.hudson.crowd.ErrorMessages.userNotFound;
-import hudson.security.SecurityRealm;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collection;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -67,23 +66,79 @@ public class CrowdUserDetailsService implements UserDetailsService {
 	 * @see org.acegisecurity.userdetails.UserDetailsService#loadUserByUsername(java.lang.String)
 	 */
 	@Override
-	public UserDetails loadUserByUsername(String username)
+	public UserDetails loadUserByUsername(final String username)
 			throws UsernameNotFoundException, DataAccessException {
 		// check whether the Hudson user group in Crowd exists and is active
 		if (!this.configuration.isGroupActive()) {
 			throw new DataRetrievalFailureException(hudsonUserGroupNotFound());
 		}
 
+		// reject users that were recently found not to exist or not to be
+		// members without asking the remote Crowd server again
+		Boolean rejection = this.configuration.getUserRejection(username);
+		if (Boolean.TRUE.equals(rejection)) {
+			throw new UsernameNotFoundException(userNotFound());
+		}
+		if (Boolean.FALSE.equals(rejection)) {
+			throw new DataRetrievalFailureException(hudsonUserNotValid());
+		}
+
+		// reject non-members early if the group members are indexed
+		if (this.configuration.isKnownNonMember(username)) {
+			throw new DataRetrievalFailureException(hudsonUserNotValid());
+		}
+
+		// load the user first, so that an unknown user is always reported
+		// as such; concurrent lookups of the same user share one remote call
+		User user = this.configuration.userFlights.execute(username,
+				new Callable<User>() {
+					@Override
+					public User call() {
+						return loadUser(username);
+					}
+				});
+
+		// the membership check is cheap; only members need all their groups
 		if (!this.configuration.isGroupMember(username)) {
+			// a failed check is no answer => don't remember it
+			if (!this.configuration.isDegraded()) {
+				this.configuration.rejectUser(username, false);
+			}
 			throw new DataRetrievalFailureException(hudsonUserNotValid());
 		}
+		Collection<GrantedAuthority> userAuthorities = this.configuration
+				.getAuthoritiesForUser(username);
+
+		// the "authenticated" authority and all authorities retrieved from
+		// the Crowd server; shared by all users with the same groups
+		GrantedAuthority[] authorities = this.configuration
+				.getGrantedAuthorities(userAuthorities);
 
-		User user;
+		return new CrowdUser(user, authorities);
+	}
+
+	/**
+	 * Loads the user object from the remote Crowd server.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return The user object. Never <code>null</code>.
+	 * @throws UsernameNotFoundException
+	 *             If the user does not exist.
+	 * @throws DataAccessException
+	 *             If the user cannot be loaded.
+	 */
+	private User loadUser(String username) throws UsernameNotFoundException,
+			DataAccessException {
 		try {
 			// load the user object from the remote Crowd server
-			user = this.configuration.crowdClient.getUser(username);
+			User user = this.configuration.crowdClient.getUser(username);
+			this.configuration.rememberUser(user);
+			return user;
 		} catch (UserNotFoundException ex) {
-			LOG.log(Level.INFO, userNotFound(), ex);
+			LOG.info(userNotFound());
+			LOG.log(Level.FINE, userNotFound(), ex);
+			this.configuration.rejectUser(username, true);
 			throw new UsernameNotFoundException(userNotFound(), ex);
 		} catch (ApplicationPermissionException ex) {
 			LOG.log(Level.WARNING, applicationPermission(), ex);
@@ -92,18 +147,14 @@ public class CrowdUserDetailsService implements UserDetailsService {
 			LOG.log(Level.WARNING, invalidAuthentication(), ex);
 			throw new DataRetrievalFailureException(invalidAuthentication(), ex);
 		} catch (OperationFailedException ex) {
+			// the remote Crowd server is unreachable => last known user
+			User stale = this.configuration.getStaleUser(username);
+			if (null != stale) {
+				LOG.log(Level.FINE, operationFailed(), ex);
+				return stale;
+			}
 			LOG.log(Level.SEVERE, operationFailed(), ex);
 			throw new DataRetrievalFailureException(operationFailed(), ex);
 		}
-
-		// create the list of granted authorities
-		List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
-		// add the "authenticated" authority to the list of granted
-		// authorities...
-		authorities.add(SecurityRealm.AUTHENTICATED_AUTHORITY);
-		// ..and all authorities retrieved from the Crowd server
-		authorities.addAll(this.configuration.getAuthoritiesForUser(username));
-
-		return new CrowdUser(user, authorities);
 	}
 }
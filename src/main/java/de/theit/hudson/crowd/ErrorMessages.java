@@ -56,6 +56,26 @@ public class ErrorMessages {
 		return holder.format("specifyGroup");
 	}
 
+	/**
+	 * Returns the localized error message when a number is negative or not a
+	 * number at all.
+	 * 
+	 * @return The localized error message for an invalid number.
+	 */
+	public static String specifyNonNegativeNumber() {
+		return holder.format("specifyNonNegativeNumber");
+	}
+
+	/**
+	 * Returns the localized error message when a percentile is not between 0
+	 * and 100.
+	 * 
+	 * @return The localized error message for an invalid percentile.
+	 */
+	public static String specifyPercentile() {
+		return holder.format("specifyPercentile");
+	}
+
 	/**
 	 * Returns the localized error message when the connection check failed.
 	 * 
@@ -65,6 +85,16 @@ public class ErrorMessages {
 		return holder.format("operationFailed");
 	}
 
+	/**
+	 * Returns the localized error message when a request to the Crowd server
+	 * didn't finish in time.
+	 * 
+	 * @return The localized error message for a request that timed out.
+	 */
+	public static String operationTimedOut() {
+		return holder.format("operationTimedOut");
+	}
+
 	/**
 	 * Returns the localized error message when the configuration file
 	 * crowd.properties cannot be loaded.
@@ -190,4 +220,248 @@ public class ErrorMessages {
 	public static String hudsonUserNotValid() {
 		return holder.format("hudsonUserNotValid");
 	}
+
+	/**
+	 * Returns the localized message when a reload of the index of the group
+	 * members was triggered.
+	 * 
+	 * @return The localized message for a triggered reload of the index.
+	 */
+	public static String membershipIndexReloading() {
+		return holder.format("membershipIndexReloading");
+	}
+
+	/**
+	 * Returns the localized error message when the index of the group members
+	 * cannot be reloaded.
+	 * 
+	 * @return The localized error message for a disabled index.
+	 */
+	public static String membershipIndexDisabled() {
+		return holder.format("membershipIndexDisabled");
+	}
+
+	/**
+	 * Returns the localized error message when a login is rejected because
+	 * of too many failed logins.
+	 * 
+	 * @param seconds
+	 *            The time in seconds until the next login is accepted.
+	 * @return The localized error message for a throttled login.
+	 */
+	public static String loginThrottled(long seconds) {
+		return holder.format("loginThrottled", seconds);
+	}
+
+	/**
+	 * Returns the localized log message when the logins of a user or from an
+	 * address are delayed because of too many failed logins.
+	 * 
+	 * @param key
+	 *            The user or address. May not be <code>null</code>.
+	 * @return The localized log message for delayed logins.
+	 */
+	public static String tooManyFailedLogins(String key) {
+		return holder.format("tooManyFailedLogins", key);
+	}
+
+	/**
+	 * Returns the localized error message when the user name or the password
+	 * of a user is wrong.
+	 * 
+	 * @return The localized error message for wrong user credentials.
+	 */
+	public static String wrongPassword() {
+		return holder.format("wrongPassword");
+	}
+
+	/**
+	 * Returns the localized name of the page that shows the metrics.
+	 * 
+	 * @return The localized name of the metrics page.
+	 */
+	public static String metricsDisplayName() {
+		return holder.format("metricsDisplayName");
+	}
+
+	/**
+	 * Returns the localized description of the page that shows the metrics.
+	 * 
+	 * @return The localized description of the metrics page.
+	 */
+	public static String metricsDescription() {
+		return holder.format("metricsDescription");
+	}
+
+	/**
+	 * Returns the localized error message when credentials cannot be hashed.
+	 * 
+	 * @return The localized error message for credentials that cannot be
+	 *         hashed.
+	 */
+	public static String credentialsNotHashed() {
+		return holder.format("credentialsNotHashed");
+	}
+
+	/**
+	 * Returns the localized log message when the circuit to the Crowd server is
+	 * opened.
+	 * 
+	 * @param failures
+	 *            The number of consecutive failed requests.
+	 * @return The localized log message for an opened circuit.
+	 */
+	public static String circuitOpened(int failures) {
+		return holder.format("circuitOpened", failures);
+	}
+
+	/**
+	 * Returns the localized log message when the circuit to the Crowd server is
+	 * closed again.
+	 * 
+	 * @return The localized log message for a closed circuit.
+	 */
+	public static String circuitClosed() {
+		return holder.format("circuitClosed");
+	}
+
+	/**
+	 * Returns the localized log message when the Crowd server is reachable
+	 * again.
+	 * 
+	 * @return The localized log message for a reachable Crowd server.
+	 */
+	public static String crowdReachable() {
+		return holder.format("crowdReachable");
+	}
+
+	/**
+	 * Returns the localized log message when the Crowd server is not
+	 * reachable.
+	 * 
+	 * @return The localized log message for an unreachable Crowd server.
+	 */
+	public static String crowdNotReachable() {
+		return holder.format("crowdNotReachable");
+	}
+
+	/**
+	 * Returns the localized log message when an ejected Crowd node is available
+	 * again.
+	 * 
+	 * @param url
+	 *            The base URL of the Crowd node. May not be <code>null</code>.
+	 * @return The localized log message for an available Crowd node.
+	 */
+	public static String nodeAvailable(String url) {
+		return holder.format("nodeAvailable", url);
+	}
+
+	/**
+	 * Returns the localized log message when a Crowd node is ejected.
+	 * 
+	 * @param url
+	 *            The base URL of the Crowd node. May not be <code>null</code>.
+	 * @param failures
+	 *            The number of consecutive failed requests.
+	 * @return The localized log message for an ejected Crowd node.
+	 */
+	public static String nodeEjected(String url, int failures) {
+		return holder.format("nodeEjected", url, failures);
+	}
+
+	/**
+	 * Returns the localized log message when the Crowd event token has
+	 * expired.
+	 * 
+	 * @return The localized log message for an expired event token.
+	 */
+	public static String eventTokenExpired() {
+		return holder.format("eventTokenExpired");
+	}
+
+	/**
+	 * Returns the localized log message when Crowd doesn't provide events.
+	 * 
+	 * @return The localized log message for unavailable events.
+	 */
+	public static String eventsNotAvailable() {
+		return holder.format("eventsNotAvailable");
+	}
+
+	/**
+	 * Returns the localized log message with the number of Crowd requests of a
+	 * login.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param calls
+	 *            The number of requests.
+	 * @return The localized log message for the requests of a login.
+	 */
+	public static String loginRequests(String username, long calls) {
+		return holder.format("loginRequests", username, calls);
+	}
+
+	/**
+	 * Returns the localized log message with the number of Crowd requests of an
+	 * SSO setup.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param calls
+	 *            The number of requests.
+	 * @return The localized log message for the requests of an SSO setup.
+	 */
+	public static String ssoRequests(String username, long calls) {
+		return holder.format("ssoRequests", username, calls);
+	}
+
+	/**
+	 * Returns the localized log message when the members of the Hudson user
+	 * group were indexed.
+	 * 
+	 * @param count
+	 *            The number of members.
+	 * @param group
+	 *            The name of the group. May not be <code>null</code>.
+	 * @return The localized log message for indexed group members.
+	 */
+	public static String membersIndexed(int count, String group) {
+		return holder.format("membersIndexed", count, group);
+	}
+
+	/**
+	 * Returns the localized log message when the email address of a user who
+	 * isn't a member of the Hudson user group is requested.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return The localized log message for a non-member.
+	 */
+	public static String emailNotMember(String username) {
+		return holder.format("emailNotMember", username);
+	}
+
+	/**
+	 * Returns the localized log message when a user has no email address in
+	 * Crowd.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return The localized log message for a missing email address.
+	 */
+	public static String emailNotFound(String username) {
+		return holder.format("emailNotFound", username);
+	}
+
+	/**
+	 * Returns the localized log message when the HTTP session was invalidated
+	 * in the meantime.
+	 * 
+	 * @return The localized log message for an invalidated session.
+	 */
+	public static String sessionAlreadyInvalidated() {
+		return holder.format("sessionAlreadyInvalidated");
+	}
 }
@@ -0,0 +1,203 @@
+/*
+ * @(#)LoginThrottle.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import static de.theit.hudson.crowd.ErrorMessages.loginThrottled;
+import static de.theit.hudson.crowd.ErrorMessages.tooManyFailedLogins;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.acegisecurity.AuthenticationException;
+import org.acegisecurity.BadCredentialsException;
+import org.acegisecurity.LockedException;
+
+import com.atlassian.crowd.exception.ExpiredCredentialException;
+
+/**
+ * Keeps track of failed logins per user and per source address and rejects
+ * further logins with an exponentially growing penalty, so that clients
+ * retrying wrong credentials in a tight loop don't reach the remote Crowd
+ * server.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 21.10.2011
+ * @version $Id$
+ */
+final class LoginThrottle {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(LoginThrottle.class
+			.getName());
+
+	/** The maximum number of users and addresses that are tracked. */
+	private static final int MAX_TRACKED = 10000;
+
+	/** The time in milliseconds after which failed logins are forgotten. */
+	private static final long FAILURE_WINDOW = 15 * 60 * 1000L;
+
+	/** The number of failed logins of a user that are not penalised. */
+	private static final int FREE_USER_FAILURES = 3;
+
+	/**
+	 * The number of failed logins from an address that are not penalised.
+	 * Higher than for users since several users may share one address.
+	 */
+	private static final int FREE_ADDRESS_FAILURES = 20;
+
+	/** The penalty in milliseconds after the first penalised failure. */
+	private static final long BASE_PENALTY = 1000;
+
+	/** The maximum penalty in milliseconds. */
+	private static final long MAX_PENALTY = 5 * 60 * 1000L;
+
+	/** The failed logins by "user:" or "address:" followed by the name. */
+	private final TimedCache<String, Failures> failures = new TimedCache<String, Failures>(
+			MAX_TRACKED);
+
+	/** Counts the logins that were rejected. */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Rejects the login if the user or the source address is penalised.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param address
+	 *            The source address of the login. May be <code>null</code>.
+	 * @throws LockedException
+	 *             If the login is rejected.
+	 */
+	void check(String username, String address) throws LockedException {
+		long now = System.currentTimeMillis();
+		long until = getBlockedUntil(userKey(username));
+		if (null != address) {
+			until = Math.max(until, getBlockedUntil("address:" + address));
+		}
+		if (until > now) {
+			this.rejected.incrementAndGet();
+			long seconds = (until - now + 999) / 1000;
+			throw new LockedException(loginThrottled(seconds));
+		}
+	}
+
+	/**
+	 * Records a failed login.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param address
+	 *            The source address of the login. May be <code>null</code>.
+	 */
+	void recordFailure(String username, String address) {
+		recordFailure(userKey(username), FREE_USER_FAILURES);
+		if (null != address) {
+			recordFailure("address:" + address, FREE_ADDRESS_FAILURES);
+		}
+	}
+
+	/**
+	 * Records a successful login. The failed logins of the user are
+	 * forgotten; those of the source address are kept since other users may
+	 * log in from the same address.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 */
+	void recordSuccess(String username) {
+		this.failures.remove(userKey(username));
+	}
+
+	/**
+	 * Returns the key of the failed logins of a user. Crowd matches user names
+	 * case-insensitively, so all spellings of a name share their failures.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return The key. Never <code>null</code>.
+	 */
+	private static String userKey(String username) {
+		return "user:" + username.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Returns the number of logins that were rejected without asking the
+	 * remote Crowd server.
+	 * 
+	 * @return The number of rejected logins.
+	 */
+	long getRejected() {
+		return this.rejected.get();
+	}
+
+	/**
+	 * Checks whether a failed login is caused by a wrong user name or
+	 * password, as opposed to e.g. invalid application credentials or a
+	 * problem with the remote Crowd server. Only these failures are counted;
+	 * otherwise a misconfigured application would lock out all users.
+	 * 
+	 * @param ex
+	 *            The reason why the login failed. May not be
+	 *            <code>null</code>.
+	 * @return <code>true</code> if the user's credentials were wrong.
+	 *         <code>false</code> else.
+	 */
+	static boolean isCredentialFailure(AuthenticationException ex) {
+		return ex instanceof BadCredentialsException
+				&& !(ex.getCause() instanceof ExpiredCredentialException);
+	}
+
+	/**
+	 * Returns the time until which logins are rejected.
+	 * 
+	 * @param key
+	 *            The user or address. May not be <code>null</code>.
+	 * @return The time in milliseconds or <code>0</code> if no penalty
+	 *         applies.
+	 */
+	private long getBlockedUntil(String key) {
+		Failures entry = this.failures.get(key);
+		return null == entry ? 0 : entry.blockedUntil;
+	}
+
+	/**
+	 * Records a failed login of a user or from an address. Synchronized
+	 * since looking up and storing the entry must not interleave with
+	 * another failure of the same user or address.
+	 * 
+	 * @param key
+	 *            The user or address. May not be <code>null</code>.
+	 * @param free
+	 *            The number of failed logins that are not penalised.
+	 */
+	private synchronized void recordFailure(String key, int free) {
+		Failures entry = this.failures.get(key);
+		if (null == entry) {
+			entry = new Failures();
+		}
+		entry.count++;
+		if (entry.count > free) {
+			int exponent = Math.min(30, entry.count - free - 1);
+			long penalty = Math.min(MAX_PENALTY, BASE_PENALTY << exponent);
+			entry.blockedUntil = System.currentTimeMillis() + penalty;
+			if (entry.count == free + 1) {
+				LOG.warning(tooManyFailedLogins(key));
+			}
+		}
+		this.failures.put(key, entry, FAILURE_WINDOW);
+	}
+
+	/**
+	 * The failed logins of a user or from an address.
+	 */
+	private static final class Failures {
+		/** The number of failed logins. Guarded by the throttle. */
+		private int count;
+
+		/** The time until which logins are rejected. */
+		private volatile long blockedUntil;
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * @(#)SingleFlight.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls for the same key: While a call for a key is in
+ * progress, further calls for this key don't start a call on their own but
+ * wait for the call in progress and share its result or exception.
+ * <p>
+ * The calls must not throw checked exceptions; they are reported as
+ * {@link IllegalStateException}.
+ * 
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the results.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 18.10.2011
+ * @version $Id$
+ */
+class SingleFlight<K, V> {
+	/** The calls that are currently in progress. */
+	private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	/** Counts the calls that were executed. */
+	private final AtomicLong executed = new AtomicLong();
+
+	/** Counts the calls that shared the result of a call in progress. */
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Executes a call unless a call for the same key is already in progress.
+	 * In that case, waits for the call in progress and returns its result.
+	 * 
+	 * @param key
+	 *            The key that identifies the call. May not be
+	 *            <code>null</code>.
+	 * @param call
+	 *            The call to execute. May not be <code>null</code>.
+	 * @return The result of the call.
+	 */
+	V execute(K key, Callable<V> call) {
+		FutureTask<V> task = new FutureTask<V>(call);
+		FutureTask<V> running = this.inFlight.putIfAbsent(key, task);
+		if (null != running) {
+			this.coalesced.incrementAndGet();
+			return getResult(running);
+		}
+
+		this.executed.incrementAndGet();
+		try {
+			task.run();
+		} finally {
+			this.inFlight.remove(key, task);
+		}
+		return getResult(task);
+	}
+
+	/**
+	 * Returns the number of calls that were executed.
+	 * 
+	 * @return The number of executed calls.
+	 */
+	long getExecuted() {
+		return this.executed.get();
+	}
+
+	/**
+	 * Returns the number of calls that shared the result of a call in
+	 * progress instead of being executed.
+	 * 
+	 * @return The number of coalesced calls.
+	 */
+	long getCoalesced() {
+		return this.coalesced.get();
+	}
+
+	/**
+	 * Waits for a call to complete and returns its result.
+	 * 
+	 * @param task
+	 *            The call. May not be <code>null</code>.
+	 * @return The result of the call.
+	 */
+	private V getResult(FutureTask<V> task) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				} catch (InterruptedException ex) {
+					// the call in progress must finish anyway
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
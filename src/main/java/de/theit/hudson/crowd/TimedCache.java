@@ -0,0 +1,287 @@
+/*
+ * @(#)TimedCache.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe cache whose entries expire after a lifetime that is
+ * specified for each entry individually. When the cache is full, the least
+ * recently used entry is evicted.
+ * 
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the cached values.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 17.10.2011
+ * @version $Id$
+ */
+class TimedCache<K, V> {
+	/** The cached entries in access order. */
+	private final LinkedHashMap<K, Entry<V>> entries;
+
+	/** Counts the number of successful lookups. */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** Counts the number of failed lookups. */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * The time in milliseconds that expired entries are retained as last known
+	 * good values. <code>0</code> if expired entries are discarded.
+	 */
+	private volatile long retention;
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param maxSize
+	 *            The maximum number of entries the cache can hold.
+	 */
+	TimedCache(final int maxSize) {
+		this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			/** Necessary for serialisation. */
+			private static final long serialVersionUID = 2364818745412066412L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the value that is cached for the given key.
+	 * 
+	 * @param key
+	 *            The key. May not be <code>null</code>.
+	 * @return The cached value or <code>null</code> if there's no value for
+	 *         the key or if it has expired.
+	 */
+	V get(K key) {
+		Entry<V> entry;
+		synchronized (this.entries) {
+			entry = this.entries.get(key);
+			if (null != entry && entry.isExpired()) {
+				if (entry.isExpired(this.retention)) {
+					this.entries.remove(key);
+				}
+				entry = null;
+			}
+		}
+
+		if (null == entry) {
+			this.misses.incrementAndGet();
+			return null;
+		}
+		this.hits.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * Returns the value that is cached for the given key even if it has
+	 * expired, as long as it is retained as last known good value.
+	 * 
+	 * @param key
+	 *            The key. May not be <code>null</code>.
+	 * @return The cached value or <code>null</code> if there's no value for
+	 *         the key or if it isn't retained anymore.
+	 * @see #setRetention(long)
+	 */
+	V getStale(K key) {
+		synchronized (this.entries) {
+			Entry<V> entry = this.entries.get(key);
+			if (null == entry) {
+				return null;
+			}
+			if (entry.isExpired(this.retention)) {
+				this.entries.remove(key);
+				return null;
+			}
+			return entry.value;
+		}
+	}
+
+	/**
+	 * Sets the time that expired entries are retained as last known good
+	 * values. If the retention is <code>&gt; 0</code>, values are added to the
+	 * cache even if their lifetime is <code>&lt;= 0</code>, so that they are
+	 * available via {@link #getStale(Object)}.
+	 * 
+	 * @param pRetention
+	 *            The retention in milliseconds. <code>0</code> discards
+	 *            expired entries.
+	 */
+	void setRetention(long pRetention) {
+		this.retention = Math.max(0, pRetention);
+	}
+
+	/**
+	 * Checks whether the entry for the given key has reached the given
+	 * fraction of its lifetime, i.e. whether it should be refreshed before it
+	 * expires.
+	 * 
+	 * @param key
+	 *            The key. May not be <code>null</code>.
+	 * @param fraction
+	 *            The fraction of the lifetime, a value between <code>0</code>
+	 *            and <code>1</code>.
+	 * @return <code>true</code> if there's an entry for the key and it is due
+	 *         for refresh. <code>false</code> else.
+	 */
+	boolean isRefreshDue(K key, float fraction) {
+		Entry<V> entry;
+		synchronized (this.entries) {
+			entry = this.entries.get(key);
+		}
+		return null != entry && entry.isRefreshDue(fraction);
+	}
+
+	/**
+	 * Adds a value to the cache.
+	 * 
+	 * @param key
+	 *            The key. May not be <code>null</code>.
+	 * @param value
+	 *            The value. May not be <code>null</code>.
+	 * @param lifetime
+	 *            The lifetime of the entry in milliseconds. If the lifetime is
+	 *            <code>&lt;= 0</code> and expired entries are not retained,
+	 *            the value is not cached.
+	 */
+	void put(K key, V value, long lifetime) {
+		if (lifetime <= 0 && this.retention <= 0) {
+			return;
+		}
+
+		synchronized (this.entries) {
+			this.entries.put(key, new Entry<V>(value, Math.max(0, lifetime)));
+		}
+	}
+
+	/**
+	 * Removes the value for the given key from the cache.
+	 * 
+	 * @param key
+	 *            The key. May not be <code>null</code>.
+	 */
+	void remove(K key) {
+		synchronized (this.entries) {
+			this.entries.remove(key);
+		}
+	}
+
+	/**
+	 * Removes all entries from the cache.
+	 */
+	void clear() {
+		synchronized (this.entries) {
+			this.entries.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of entries in the cache, including expired entries
+	 * that were not yet removed.
+	 * 
+	 * @return The number of entries in the cache.
+	 */
+	int size() {
+		synchronized (this.entries) {
+			return this.entries.size();
+		}
+	}
+
+	/**
+	 * Returns the number of lookups that were answered from the cache.
+	 * 
+	 * @return The number of cache hits.
+	 */
+	long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups that could not be answered from the cache.
+	 * 
+	 * @return The number of cache misses.
+	 */
+	long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * A cached value together with its expiration time.
+	 * 
+	 * @param <V>
+	 *            The type of the cached value.
+	 */
+	private static final class Entry<V> {
+		/** The cached value. */
+		final V value;
+
+		/** The time when the entry was created. */
+		final long created;
+
+		/** The time when the entry expires. */
+		final long expires;
+
+		/**
+		 * Creates a new entry.
+		 * 
+		 * @param pValue
+		 *            The value to cache.
+		 * @param lifetime
+		 *            The lifetime of the entry in milliseconds.
+		 */
+		Entry(V pValue, long lifetime) {
+			this.value = pValue;
+			this.created = System.currentTimeMillis();
+			this.expires = this.created + lifetime;
+		}
+
+		/**
+		 * Checks whether the entry has reached the given fraction of its
+		 * lifetime.
+		 * 
+		 * @param fraction
+		 *            The fraction of the lifetime.
+		 * @return <code>true</code> if the entry has reached the fraction of
+		 *         its lifetime. <code>false</code> else.
+		 */
+		boolean isRefreshDue(float fraction) {
+			long age = System.currentTimeMillis() - this.created;
+			return age >= fraction * (this.expires - this.created);
+		}
+
+		/**
+		 * Checks whether the entry has expired.
+		 * 
+		 * @return <code>true</code> if the entry has expired.
+		 *         <code>false</code> else.
+		 */
+		boolean isExpired() {
+			return isExpired(0);
+		}
+
+		/**
+		 * Checks whether the entry has expired for longer than the given
+		 * time.
+		 * 
+		 * @param grace
+		 *            The time in milliseconds.
+		 * @return <code>true</code> if the entry has expired for longer than
+		 *         the given time. <code>false</code> else.
+		 */
+		boolean isExpired(long grace) {
+			return System.currentTimeMillis() >= this.expires + grace;
+		}
+	}
+}
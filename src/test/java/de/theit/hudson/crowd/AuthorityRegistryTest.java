@@ -0,0 +1,110 @@
+/*
+ * @(#)AuthorityRegistryTest.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import hudson.security.SecurityRealm;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.acegisecurity.GrantedAuthority;
+import org.junit.Test;
+
+import de.theit.hudson.crowd.AuthorityRegistry.AuthoritySet;
+
+/**
+ * Tests for {@link AuthorityRegistry}.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 20.10.2011
+ * @version $Id$
+ */
+public class AuthorityRegistryTest {
+	/** Equal names are interned to the same authority. */
+	@Test
+	public void testInternAuthority() {
+		AuthorityRegistry registry = new AuthorityRegistry();
+		GrantedAuthority authority = registry.intern("hudson-users");
+		assertEquals("hudson-users", authority.getAuthority());
+		assertSame(authority, registry.intern(new String("hudson-users")));
+		assertNotSame(authority, registry.intern("developers"));
+		assertEquals(2, registry.getAuthorityCount());
+	}
+
+	/** Equal sets are interned to the same instance regardless of order. */
+	@Test
+	public void testInternSet() {
+		AuthorityRegistry registry = new AuthorityRegistry();
+		AuthoritySet set = registry.internSet(Arrays.asList("hudson-users",
+				"developers"));
+		assertSame(set, registry.internSet(Arrays.asList("developers",
+				"hudson-users")));
+		assertSame(set.getGrantedAuthorities(),
+				registry.internSet(Arrays.asList("developers", "hudson-users"))
+						.getGrantedAuthorities());
+		assertEquals(1, registry.getSetCount());
+
+		// the set is sorted by name and uses the interned authorities
+		assertEquals(2, set.size());
+		assertSame(registry.intern("developers"), set.get(0));
+		assertSame(registry.intern("hudson-users"), set.get(1));
+	}
+
+	/** The granted authorities start with the "authenticated" authority. */
+	@Test
+	public void testGrantedAuthorities() {
+		AuthorityRegistry registry = new AuthorityRegistry();
+		GrantedAuthority[] granted = registry.internSet(
+				Arrays.asList("hudson-users")).getGrantedAuthorities();
+		assertEquals(2, granted.length);
+		assertSame(SecurityRealm.AUTHENTICATED_AUTHORITY, granted[0]);
+		assertSame(registry.intern("hudson-users"), granted[1]);
+
+		AuthoritySet empty = registry.internSet(Collections
+				.<String> emptyList());
+		assertEquals(0, empty.size());
+		assertEquals(1, empty.getGrantedAuthorities().length);
+	}
+
+	/** The sets are read-only. */
+	@Test
+	public void testSetIsImmutable() {
+		AuthorityRegistry registry = new AuthorityRegistry();
+		AuthoritySet set = registry.internSet(Arrays.asList("hudson-users"));
+		try {
+			set.add(registry.intern("developers"));
+			fail("exception expected");
+		} catch (UnsupportedOperationException ex) {
+			// expected
+		}
+		try {
+			set.get(1);
+			fail("exception expected");
+		} catch (IndexOutOfBoundsException ex) {
+			// expected
+		}
+	}
+
+	/** The sets are discarded once the registry is full. */
+	@Test
+	public void testBoundedSetCount() {
+		AuthorityRegistry registry = new AuthorityRegistry();
+		AuthoritySet first = registry.internSet(Arrays.asList("group0"));
+		for (int i = 1; i < AuthorityRegistry.MAX_SETS; i++) {
+			registry.internSet(Arrays.asList("group" + i));
+		}
+		assertEquals(AuthorityRegistry.MAX_SETS, registry.getSetCount());
+		assertSame(first, registry.internSet(Arrays.asList("group0")));
+
+		registry.internSet(Arrays.asList("one-too-many"));
+		assertEquals(1, registry.getSetCount());
+		assertNotSame(first, registry.internSet(Arrays.asList("group0")));
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * @(#)CredentialCacheTest.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.GrantedAuthorityImpl;
+import org.junit.Test;
+
+import com.atlassian.crowd.model.user.User;
+
+/**
+ * Tests for {@link CredentialCache}.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 21.10.2011
+ * @version $Id$
+ */
+public class CredentialCacheTest {
+	/** The user object of the cached logins. */
+	private final User user = (User) Proxy.newProxyInstance(
+			User.class.getClassLoader(), new Class<?>[] { User.class },
+			new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method,
+						Object[] args) {
+					return null;
+				}
+			});
+
+	/** The granted authorities of the cached logins. */
+	private final GrantedAuthority[] authorities = { new GrantedAuthorityImpl(
+			"hudson-users") };
+
+	/** The verified password returns the cached result. */
+	@Test
+	public void testMatchingPassword() {
+		CredentialCache cache = new CredentialCache(10);
+		cache.put("user", "secret", this.user, this.authorities, 10000);
+
+		CredentialCache.Entry entry = cache.get("user", "secret");
+		assertNotNull(entry);
+		assertSame(this.user, entry.getUser());
+		assertSame(this.authorities, entry.getAuthorities());
+		assertEquals(1, cache.getHits());
+	}
+
+	/** Another password doesn't match and discards the cached result. */
+	@Test
+	public void testWrongPassword() {
+		CredentialCache cache = new CredentialCache(10);
+		cache.put("user", "secret", this.user, this.authorities, 10000);
+
+		assertNull(cache.get("user", "Secret"));
+		assertNull(cache.get("user", "secret"));
+	}
+
+	/** The credentials of one user don't match another user. */
+	@Test
+	public void testOtherUser() {
+		CredentialCache cache = new CredentialCache(10);
+		cache.put("user", "secret", this.user, this.authorities, 10000);
+
+		assertNull(cache.get("other", "secret"));
+		assertNotNull(cache.get("user", "secret"));
+	}
+
+	/** Cached credentials expire after their lifetime. */
+	@Test
+	public void testExpiry() throws InterruptedException {
+		CredentialCache cache = new CredentialCache(10);
+		cache.put("user", "secret", this.user, this.authorities, 50);
+		assertNotNull(cache.get("user", "secret"));
+
+		Thread.sleep(80);
+		assertNull(cache.get("user", "secret"));
+	}
+
+	/** Removed and cleared credentials are gone. */
+	@Test
+	public void testRemoveAndClear() {
+		CredentialCache cache = new CredentialCache(10);
+		cache.put("user", "secret", this.user, this.authorities, 10000);
+		cache.put("other", "secret", this.user, this.authorities, 10000);
+
+		cache.remove("user");
+		assertNull(cache.get("user", "secret"));
+		assertNotNull(cache.get("other", "secret"));
+
+		cache.clear();
+		assertNull(cache.get("other", "secret"));
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * @(#)CrowdCircuitBreakerTest.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.exception.UserNotFoundException;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+import de.theit.hudson.crowd.CrowdCircuitBreaker.State;
+
+/**
+ * Tests for {@link CrowdCircuitBreaker}.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 21.10.2011
+ * @version $Id$
+ */
+public class CrowdCircuitBreakerTest {
+	/** The number of consecutive failures that open the circuit. */
+	private static final int THRESHOLD = 3;
+
+	/** The retry interval of the tests of trial requests. */
+	private static final long RETRY_INTERVAL = 50;
+
+	/** The fake remote Crowd server. */
+	private final FakeCrowd crowd = new FakeCrowd();
+
+	/**
+	 * The circuit breaker around the fake Crowd server. Doesn't let trial
+	 * requests through during a test unless replaced.
+	 */
+	private CrowdCircuitBreaker breaker = new CrowdCircuitBreaker(
+			this.crowd.client, THRESHOLD, 60000);
+
+	/** The circuit opens after the threshold and rejects requests locally. */
+	@Test
+	public void testOpensAfterThreshold() {
+		this.crowd.failing = true;
+		for (int i = 0; i < THRESHOLD; i++) {
+			assertEquals(State.CLOSED, this.breaker.getState());
+			expectFailure();
+		}
+		assertEquals(State.OPEN, this.breaker.getState());
+		assertEquals(THRESHOLD, this.crowd.calls.get());
+
+		expectFailure();
+		assertEquals(THRESHOLD, this.crowd.calls.get());
+		assertEquals(1, this.breaker.getRejected());
+	}
+
+	/** Only consecutive failures open the circuit. */
+	@Test
+	public void testSuccessResetsFailures() throws Exception {
+		this.crowd.failing = true;
+		for (int i = 1; i < THRESHOLD; i++) {
+			expectFailure();
+		}
+		this.crowd.failing = false;
+		this.breaker.getClient().testConnection();
+		this.crowd.failing = true;
+		for (int i = 1; i < THRESHOLD; i++) {
+			expectFailure();
+		}
+		assertEquals(State.CLOSED, this.breaker.getState());
+	}
+
+	/** Answers of the server like an unknown user are no failures. */
+	@Test
+	public void testApplicationErrorsAreNoFailures() throws Exception {
+		for (int i = 0; i < THRESHOLD * 2; i++) {
+			try {
+				this.breaker.getClient().getUser("unknown");
+				fail("exception expected");
+			} catch (UserNotFoundException ex) {
+				// expected
+			}
+		}
+		assertEquals(State.CLOSED, this.breaker.getState());
+	}
+
+	/** A successful trial request after the retry interval closes it. */
+	@Test
+	public void testTrialSuccessCloses() throws Exception {
+		this.breaker = new CrowdCircuitBreaker(this.crowd.client, THRESHOLD,
+				RETRY_INTERVAL);
+		open();
+		Thread.sleep(RETRY_INTERVAL * 2);
+
+		this.crowd.failing = false;
+		this.breaker.getClient().testConnection();
+		assertEquals(State.CLOSED, this.breaker.getState());
+		this.breaker.getClient().testConnection();
+		assertEquals(THRESHOLD + 2, this.crowd.calls.get());
+	}
+
+	/** A failed trial request keeps it open for another retry interval. */
+	@Test
+	public void testTrialFailureReopens() throws Exception {
+		this.breaker = new CrowdCircuitBreaker(this.crowd.client, THRESHOLD,
+				RETRY_INTERVAL);
+		open();
+		Thread.sleep(RETRY_INTERVAL * 2);
+
+		expectFailure();
+		assertEquals(THRESHOLD + 1, this.crowd.calls.get());
+		assertEquals(State.OPEN, this.breaker.getState());
+
+		// the next trial is only let through after the retry interval
+		expectFailure();
+		assertEquals(THRESHOLD + 1, this.crowd.calls.get());
+	}
+
+	/** Only one trial request is let through at a time. */
+	@Test
+	public void testSingleTrial() throws Exception {
+		this.breaker = new CrowdCircuitBreaker(this.crowd.client, THRESHOLD,
+				RETRY_INTERVAL);
+		open();
+		Thread.sleep(RETRY_INTERVAL * 2);
+
+		this.crowd.failing = false;
+		this.crowd.entered = new CountDownLatch(1);
+		this.crowd.block = new CountDownLatch(1);
+		Thread trial = new Thread() {
+			@Override
+			public void run() {
+				try {
+					CrowdCircuitBreakerTest.this.breaker.getClient()
+							.testConnection();
+				} catch (Exception ex) {
+					// checked below via the state of the circuit
+				}
+			}
+		};
+		trial.start();
+		assertTrue(this.crowd.entered.await(5, TimeUnit.SECONDS));
+
+		assertEquals(State.HALF_OPEN, this.breaker.getState());
+		expectFailure();
+
+		this.crowd.block.countDown();
+		trial.join(5000);
+		assertEquals(State.CLOSED, this.breaker.getState());
+	}
+
+	/** Methods that don't talk to the server are never rejected. */
+	@Test
+	public void testLocalMethodsPass() {
+		open();
+		this.breaker.getClient().shutdown();
+		assertEquals(THRESHOLD + 1, this.crowd.calls.get());
+	}
+
+	/**
+	 * Opens the circuit.
+	 */
+	private void open() {
+		this.crowd.failing = true;
+		for (int i = 0; i < THRESHOLD; i++) {
+			expectFailure();
+		}
+		assertEquals(State.OPEN, this.breaker.getState());
+	}
+
+	/**
+	 * Sends a request that must fail with an {@link OperationFailedException}.
+	 */
+	private void expectFailure() {
+		try {
+			this.breaker.getClient().testConnection();
+			fail("exception expected");
+		} catch (OperationFailedException ex) {
+			// expected
+		} catch (Exception ex) {
+			throw new AssertionError(ex);
+		}
+	}
+
+	/**
+	 * A fake remote Crowd server that either fails or answers all requests.
+	 * Users are never found.
+	 */
+	private static final class FakeCrowd implements InvocationHandler {
+		/** The Crowd client that talks to the fake server. */
+		final CrowdClient client = (CrowdClient) Proxy.newProxyInstance(
+				CrowdClient.class.getClassLoader(),
+				new Class<?>[] { CrowdClient.class }, this);
+
+		/** The number of calls that reached the server. */
+		final AtomicInteger calls = new AtomicInteger();
+
+		/** Signalled when a call reached the server. */
+		volatile CountDownLatch entered = new CountDownLatch(1);
+
+		/** If set, calls wait for it before they answer. */
+		volatile CountDownLatch block;
+
+		/** <code>true</code> if the server is not available. */
+		volatile boolean failing;
+
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+		 *      java.lang.reflect.Method, java.lang.Object[])
+		 */
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			this.calls.incrementAndGet();
+			this.entered.countDown();
+			if (null != this.block) {
+				this.block.await();
+			}
+			if ("shutdown".equals(method.getName())) {
+				return null;
+			}
+			if (this.failing) {
+				throw new OperationFailedException("Connection refused");
+			}
+			if ("getUser".equals(method.getName())) {
+				throw new UserNotFoundException((String) args[0]);
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * @(#)CrowdConfigurationServiceTest.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.crowd.exception.UserNotFoundException;
+import com.atlassian.crowd.model.group.Group;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * Tests for {@link CrowdConfigurationService}.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 22.10.2011
+ * @version $Id$
+ */
+public class CrowdConfigurationServiceTest {
+	/** The fake remote Crowd server. */
+	private final FakeCrowd crowd = new FakeCrowd();
+
+	/** The service under test. */
+	private CrowdConfigurationService configuration;
+
+	/**
+	 * Creates the service around the fake Crowd server.
+	 */
+	@Before
+	public void setUp() {
+		this.configuration = new CrowdConfigurationService("hudson-users",
+				false);
+		this.configuration.crowdClient = this.crowd.client;
+		this.configuration.groupRefreshInterval = 60;
+		this.configuration.cacheTtl = 60;
+	}
+
+	/** A cached email address of a member needs no request. */
+	@Test
+	public void testEmailAddressCached() {
+		assertEquals("member@example.com",
+				this.configuration.getEmailAddress("member"));
+		int calls = this.crowd.calls.get();
+
+		assertEquals("member@example.com",
+				this.configuration.getEmailAddress("member"));
+		assertEquals(calls, this.crowd.calls.get());
+	}
+
+	/** Non-members are not resolved and remembered as such. */
+	@Test
+	public void testNonMemberCached() {
+		assertNull(this.configuration.getEmailAddress("other"));
+		int calls = this.crowd.calls.get();
+
+		assertNull(this.configuration.getEmailAddress("other"));
+		assertEquals(calls, this.crowd.calls.get());
+	}
+
+	/** The membership of a batch of users is checked at once. */
+	@Test
+	public void testBatchMembership() {
+		assertEquals(Collections.singletonMap("member", "member@example.com"),
+				this.configuration.getEmailAddresses(Arrays.asList("member",
+						"other", "unknown")));
+		assertEquals(0, this.crowd.membershipChecks.get());
+		int calls = this.crowd.calls.get();
+
+		// both the addresses and the non-members are cached
+		assertEquals("member@example.com",
+				this.configuration.getEmailAddress("member"));
+		assertNull(this.configuration.getEmailAddress("other"));
+		assertNull(this.configuration.getEmailAddress("unknown"));
+		assertEquals(calls, this.crowd.calls.get());
+	}
+
+	/**
+	 * Returns an active Crowd entity like a user or group.
+	 * 
+	 * @param type
+	 *            The interface of the entity.
+	 * @param name
+	 *            The name of the entity.
+	 * @return The entity.
+	 */
+	private static <T> T entity(Class<T> type, final String name) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if ("getName".equals(method.getName())) {
+							return name;
+						}
+						if ("getEmailAddress".equals(method.getName())) {
+							return name + "@example.com";
+						}
+						if ("isActive".equals(method.getName())) {
+							return Boolean.TRUE;
+						}
+						return null;
+					}
+				}));
+	}
+
+	/**
+	 * A fake remote Crowd server with an active Hudson user group whose only
+	 * member is the user "member". The user "other" exists but is not a
+	 * member.
+	 */
+	private static final class FakeCrowd implements InvocationHandler {
+		/** The Crowd client that talks to the fake server. */
+		final CrowdClient client = (CrowdClient) Proxy.newProxyInstance(
+				CrowdClient.class.getClassLoader(),
+				new Class<?>[] { CrowdClient.class }, this);
+
+		/** The number of calls that reached the server. */
+		final AtomicInteger calls = new AtomicInteger();
+
+		/** The number of membership checks of single users. */
+		final AtomicInteger membershipChecks = new AtomicInteger();
+
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+		 *      java.lang.reflect.Method, java.lang.Object[])
+		 */
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			this.calls.incrementAndGet();
+			String name = method.getName();
+			if ("getGroup".equals(name)) {
+				return entity(Group.class, (String) args[0]);
+			}
+			if ("getUser".equals(name)) {
+				if (!"member".equals(args[0]) && !"other".equals(args[0])) {
+					throw new UserNotFoundException((String) args[0]);
+				}
+				return entity(User.class, (String) args[0]);
+			}
+			if ("isUserDirectGroupMember".equals(name)) {
+				this.membershipChecks.incrementAndGet();
+				return Boolean.valueOf("member".equals(args[0]));
+			}
+			if ("getNamesOfUsersOfGroup".equals(name)) {
+				return 0 == ((Integer) args[1]).intValue() ? Collections
+						.singletonList("Member") : Collections.emptyList();
+			}
+			if ("searchUsers".equals(name)) {
+				return Collections.singletonList(entity(User.class, "member"));
+			}
+			if (boolean.class == method.getReturnType()) {
+				return Boolean.FALSE;
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,373 @@
+/*
+ * @(#)CrowdLoadBalancerTest.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.exception.UserNotFoundException;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * Tests for {@link CrowdLoadBalancer}.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 21.10.2011
+ * @version $Id$
+ */
+public class CrowdLoadBalancerTest {
+	/** If set, the next request that reaches a node is slow. */
+	private final AtomicBoolean stall = new AtomicBoolean();
+
+	/** The first fake Crowd node. */
+	private final FakeNode first = new FakeNode("first", this.stall);
+
+	/** The second fake Crowd node. */
+	private final FakeNode second = new FakeNode("second", this.stall);
+
+	/** The load balancer under test. */
+	private CrowdLoadBalancer balancer;
+
+	/**
+	 * Stops the threads of the load balancer.
+	 */
+	@After
+	public void tearDown() {
+		if (null != this.balancer) {
+			this.balancer.getClient().shutdown();
+		}
+	}
+
+	/** Only the whitelisted methods are read-only. */
+	@Test
+	public void testIsReadOnly() throws Exception {
+		assertTrue(CrowdLoadBalancer.isReadOnly(method("getUser")));
+		assertTrue(CrowdLoadBalancer.isReadOnly(method("testConnection")));
+		assertFalse(CrowdLoadBalancer.isReadOnly(method("authenticateUser")));
+		assertFalse(CrowdLoadBalancer.isReadOnly(method("updateUser")));
+	}
+
+	/** Only failed connection attempts count as not connected. */
+	@Test
+	public void testIsNotConnected() {
+		assertTrue(CrowdLoadBalancer.isNotConnected(new ConnectException()));
+		assertTrue(CrowdLoadBalancer
+				.isNotConnected(new OperationFailedException("refused",
+						new ConnectException())));
+		assertFalse(CrowdLoadBalancer
+				.isNotConnected(new OperationFailedException("timeout",
+						new SocketTimeoutException())));
+		assertFalse(CrowdLoadBalancer
+				.isNotConnected(new OperationFailedException("failed")));
+	}
+
+	/** Read-only requests are repeated on the next node. */
+	@Test
+	public void testReadOnlyFailover() throws Exception {
+		this.balancer = newBalancer(0);
+		this.first.mode = Mode.TIMEOUT;
+
+		assertEquals(Collections.singletonList("second"), groups());
+		assertEquals(1, this.first.calls.get());
+		assertEquals(1, this.second.calls.get());
+	}
+
+	/** Other requests are not repeated if they may have been executed. */
+	@Test
+	public void testNoFailoverAfterTimeout() throws Exception {
+		this.balancer = newBalancer(0);
+		this.first.mode = Mode.TIMEOUT;
+
+		try {
+			this.balancer.getClient().authenticateUser("user", "secret");
+			fail("exception expected");
+		} catch (OperationFailedException ex) {
+			// expected
+		}
+		assertEquals(1, this.first.calls.get());
+		assertEquals(0, this.second.calls.get());
+	}
+
+	/** Other requests are repeated if the node couldn't be connected. */
+	@Test
+	public void testFailoverIfNotConnected() throws Exception {
+		this.balancer = newBalancer(0);
+		this.first.mode = Mode.REFUSED;
+
+		this.balancer.getClient().authenticateUser("user", "secret");
+		assertEquals(1, this.first.calls.get());
+		assertEquals(1, this.second.calls.get());
+	}
+
+	/** Answers like an unknown user are no failures and not repeated. */
+	@Test
+	public void testApplicationErrors() throws Exception {
+		this.balancer = newBalancer(0);
+		this.first.mode = Mode.UNKNOWN_USER;
+		this.second.mode = Mode.UNKNOWN_USER;
+
+		for (int i = 0; i < 5; i++) {
+			try {
+				this.balancer.getClient().getUser("unknown");
+				fail("exception expected");
+			} catch (UserNotFoundException ex) {
+				// expected
+			}
+		}
+		assertEquals(5, this.first.calls.get() + this.second.calls.get());
+		assertFalse(this.balancer.getNodes().get(0).isEjected());
+		assertFalse(this.balancer.getNodes().get(1).isEjected());
+	}
+
+	/** A node is ejected after consecutive failures and then skipped. */
+	@Test
+	public void testEjection() throws Exception {
+		this.balancer = newBalancer(0);
+		this.first.mode = Mode.TIMEOUT;
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals(Collections.singletonList("second"), groups());
+		}
+		assertTrue(this.balancer.getNodes().get(0).isEjected());
+		assertFalse(this.balancer.getNodes().get(1).isEjected());
+
+		groups();
+		assertEquals(3, this.first.calls.get());
+		assertEquals(4, this.second.calls.get());
+	}
+
+	/** If all nodes are ejected, the one ejected first is still tried. */
+	@Test
+	public void testAllNodesEjected() throws Exception {
+		this.balancer = newBalancer(0);
+		this.first.mode = Mode.TIMEOUT;
+		this.second.mode = Mode.TIMEOUT;
+		for (int i = 0; i < 3; i++) {
+			expectFailure();
+		}
+		assertTrue(this.balancer.getNodes().get(0).isEjected());
+		assertTrue(this.balancer.getNodes().get(1).isEjected());
+
+		this.first.mode = Mode.OK;
+		assertEquals(Collections.singletonList("first"), groups());
+		assertFalse(this.balancer.getNodes().get(0).isEjected());
+	}
+
+	/** A slow read-only request is also sent to the second node. */
+	@Test
+	public void testHedging() throws Exception {
+		this.balancer = newBalancer(50);
+		// record enough response times to calculate the hedging delay; it
+		// must be long enough for the first request to reach its node
+		this.first.latency = 20;
+		this.second.latency = 20;
+		while (this.balancer.getHedgeDelay() < 0) {
+			groups();
+		}
+		assertEquals(0, this.balancer.getHedged());
+		int calls = this.first.calls.get() + this.second.calls.get();
+
+		// the node that gets the request is slow, the other one answers
+		this.stall.set(true);
+		groups();
+		assertEquals(1, this.balancer.getHedged());
+		assertEquals(1, this.balancer.getHedgeWins());
+		assertEquals(calls + 2, this.first.calls.get()
+				+ this.second.calls.get());
+
+		// the slow request is cancelled and stops soon
+		for (int i = 0; i < 100; i++) {
+			if (0 == this.balancer.getHedgesInFlight()) {
+				break;
+			}
+			Thread.sleep(10);
+		}
+		assertEquals(0, this.balancer.getHedgesInFlight());
+	}
+
+	/** Requests that change data are never hedged. */
+	@Test
+	public void testNoHedgingOfWrites() throws Exception {
+		this.balancer = newBalancer(50);
+		while (this.balancer.getHedgeDelay() < 0) {
+			groups();
+		}
+
+		int calls = this.first.calls.get() + this.second.calls.get();
+
+		this.first.delay = 200;
+		this.second.delay = 200;
+		this.stall.set(true);
+		this.balancer.getClient().authenticateUser("user", "secret");
+		assertEquals(0, this.balancer.getHedged());
+		assertEquals(calls + 1, this.first.calls.get()
+				+ this.second.calls.get());
+	}
+
+	/**
+	 * Creates a load balancer for both fake nodes.
+	 * 
+	 * @param hedgingPercentile
+	 *            The hedging percentile. <code>0</code> disables hedging.
+	 * @return The load balancer.
+	 */
+	private CrowdLoadBalancer newBalancer(int hedgingPercentile) {
+		return new CrowdLoadBalancer(Arrays.asList("http://first/",
+				"http://second/"), Arrays.asList(this.first.client,
+				this.second.client), hedgingPercentile, 4);
+	}
+
+	/**
+	 * Sends a read-only request.
+	 * 
+	 * @return The name of the node that answered as single group.
+	 * @throws Exception
+	 *             If the request failed.
+	 */
+	private List<String> groups() throws Exception {
+		return this.balancer.getClient().getNamesOfGroupsForUser("user", 0,
+				-1);
+	}
+
+	/**
+	 * Sends a read-only request that must fail.
+	 */
+	private void expectFailure() {
+		try {
+			groups();
+			fail("exception expected");
+		} catch (OperationFailedException ex) {
+			// expected
+		} catch (Exception ex) {
+			throw new AssertionError(ex);
+		}
+	}
+
+	/**
+	 * Returns the method of the Crowd client with the given name.
+	 * 
+	 * @param name
+	 *            The name of the method.
+	 * @return The method.
+	 */
+	private static Method method(String name) {
+		for (Method method : CrowdClient.class.getMethods()) {
+			if (name.equals(method.getName())) {
+				return method;
+			}
+		}
+		throw new IllegalArgumentException(name);
+	}
+
+	/**
+	 * The behaviour of a fake Crowd node.
+	 */
+	private enum Mode {
+		/** Answers all requests. */
+		OK,
+		/** Doesn't answer in time. */
+		TIMEOUT,
+		/** Cannot be connected. */
+		REFUSED,
+		/** Doesn't know any user. */
+		UNKNOWN_USER
+	}
+
+	/**
+	 * A fake Crowd node. Read-only requests return the name of the node as
+	 * single group.
+	 */
+	private static final class FakeNode implements InvocationHandler {
+		/** The Crowd client that talks to the fake node. */
+		final CrowdClient client = (CrowdClient) Proxy.newProxyInstance(
+				CrowdClient.class.getClassLoader(),
+				new Class<?>[] { CrowdClient.class }, this);
+
+		/** The name of the node. */
+		final String name;
+
+		/** The number of requests that reached the node. */
+		final AtomicInteger calls = new AtomicInteger();
+
+		/** If set, the next request that reaches a node is slow. */
+		final AtomicBoolean stall;
+
+		/** The behaviour of the node. */
+		volatile Mode mode = Mode.OK;
+
+		/** The response time in milliseconds. */
+		volatile long latency;
+
+		/** The delay in milliseconds of a slow request. */
+		volatile long delay = 5000;
+
+		/**
+		 * Creates a new fake node.
+		 * 
+		 * @param pName
+		 *            The name of the node.
+		 * @param pStall
+		 *            If set, the next request that reaches a node is slow.
+		 */
+		FakeNode(String pName, AtomicBoolean pStall) {
+			this.name = pName;
+			this.stall = pStall;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+		 *      java.lang.reflect.Method, java.lang.Object[])
+		 */
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			if ("shutdown".equals(method.getName())) {
+				return null;
+			}
+			this.calls.incrementAndGet();
+			if (this.stall.compareAndSet(true, false)) {
+				Thread.sleep(this.delay);
+			} else if (this.latency > 0) {
+				Thread.sleep(this.latency);
+			}
+			switch (this.mode) {
+			case TIMEOUT:
+				throw new OperationFailedException("Read timed out",
+						new SocketTimeoutException());
+			case REFUSED:
+				throw new OperationFailedException("Connection refused",
+						new ConnectException());
+			case UNKNOWN_USER:
+				throw new UserNotFoundException((String) args[0]);
+			default:
+				break;
+			}
+			if ("getNamesOfGroupsForUser".equals(method.getName())) {
+				return Collections.singletonList(this.name);
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * @(#)CrowdRequestClassifierTest.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import static de.theit.hudson.crowd.CrowdRequestClassifier.RequestClass.ANONYMOUS;
+import static de.theit.hudson.crowd.CrowdRequestClassifier.RequestClass.REMOTING;
+import static de.theit.hudson.crowd.CrowdRequestClassifier.RequestClass.SSO;
+import static de.theit.hudson.crowd.CrowdRequestClassifier.RequestClass.STATIC;
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link CrowdRequestClassifier}.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 17.10.2011
+ * @version $Id$
+ */
+public class CrowdRequestClassifierTest {
+	/** The name of the Crowd SSO cookie. */
+	private static final String COOKIE_NAME = "crowd.token_key";
+
+	/**
+	 * The request paths without a Crowd SSO cookie and their expected request
+	 * classes.
+	 */
+	private static final Object[][] PATHS = {
+			// Hudson's own static resources
+			{ "/images/16x16/blue.png", STATIC },
+			{ "/css/style.css", STATIC },
+			{ "/scripts/hudson-behavior.js", STATIC },
+			{ "/adjuncts/abc/lib/form.js", STATIC },
+			{ "/favicon.ico", STATIC },
+			{ "/robots.txt", STATIC },
+			{ "/images", STATIC },
+			{ "/static/8f3c2a1e/images/title.png", STATIC },
+			{ "/static/8f3c2a1e/css/style.css", STATIC },
+			// CLI and remoting
+			{ "/cli", REMOTING },
+			{ "/jnlpJars/slave.jar", REMOTING },
+			{ "/tcpSlaveAgentListener/", REMOTING },
+			// prefixes only match whole path segments
+			{ "/imagesFoo/logo.png", ANONYMOUS },
+			{ "/client/", ANONYMOUS },
+			{ "/cssx", ANONYMOUS },
+			// versioned URLs must point to a static resource
+			{ "/static/8f3c2a1e/job/secret/ws/app.js", ANONYMOUS },
+			{ "/static/8f3c2a1e/cli", ANONYMOUS },
+			{ "/static/8f3c2a1e", ANONYMOUS },
+			// file extensions don't make a request static
+			{ "/job/secret/ws/app.js", ANONYMOUS },
+			{ "/job/secret/lastBuild/artifact/logo.png", ANONYMOUS },
+			// paths the container may resolve differently
+			{ "/images/../job/secret/", ANONYMOUS },
+			{ "/images;x=1/../../job/secret/", ANONYMOUS },
+			{ "/images%2F..%2Fjob/secret/", ANONYMOUS },
+			// everything else
+			{ "/", ANONYMOUS }, { "/job/test/", ANONYMOUS } };
+
+	/** Checks the request classes of all paths without an SSO cookie. */
+	@Test
+	public void testClassifyPaths() {
+		CrowdRequestClassifier classifier = new CrowdRequestClassifier(
+				COOKIE_NAME);
+		for (Object[] row : PATHS) {
+			String path = (String) row[0];
+			assertEquals(path, row[1],
+					classifier.classify(request("", path, false)));
+		}
+	}
+
+	/** The context path is stripped before the path is classified. */
+	@Test
+	public void testContextPath() {
+		CrowdRequestClassifier classifier = new CrowdRequestClassifier(
+				COOKIE_NAME);
+		assertEquals(STATIC, classifier.classify(request("/hudson",
+				"/hudson/images/title.png", false)));
+		assertEquals(REMOTING, classifier.classify(request("/hudson",
+				"/hudson/cli", false)));
+		assertEquals(ANONYMOUS, classifier.classify(request("/hudson",
+				"/hudson/images2/title.png", false)));
+	}
+
+	/** Requests with an SSO cookie need the SSO checks unless static. */
+	@Test
+	public void testSSOCookie() {
+		CrowdRequestClassifier classifier = new CrowdRequestClassifier(
+				COOKIE_NAME);
+		assertEquals(SSO, classifier.classify(request("", "/job/test/", true)));
+		assertEquals(SSO,
+				classifier.classify(request("", "/job/x/ws/app.js", true)));
+		assertEquals(STATIC,
+				classifier.classify(request("", "/css/style.css", true)));
+	}
+
+	/** The classified requests are counted per request class. */
+	@Test
+	public void testRequestCount() {
+		CrowdRequestClassifier classifier = new CrowdRequestClassifier(
+				COOKIE_NAME);
+		classifier.classify(request("", "/css/style.css", false));
+		classifier.classify(request("", "/images/title.png", false));
+		classifier.classify(request("", "/job/test/", true));
+
+		assertEquals(2, classifier.getRequestCount(STATIC));
+		assertEquals(1, classifier.getRequestCount(SSO));
+		assertEquals(0, classifier.getRequestCount(REMOTING));
+	}
+
+	/**
+	 * Creates a request without an HTTP session.
+	 * 
+	 * @param contextPath
+	 *            The context path.
+	 * @param uri
+	 *            The request URI including the context path.
+	 * @param ssoCookie
+	 *            <code>true</code> if the request carries a Crowd SSO cookie.
+	 * @return The request.
+	 */
+	private static HttpServletRequest request(final String contextPath,
+			final String uri, final boolean ssoCookie) {
+		return (HttpServletRequest) Proxy.newProxyInstance(
+				HttpServletRequest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						String name = method.getName();
+						if ("getRequestURI".equals(name)) {
+							return uri;
+						}
+						if ("getContextPath".equals(name)) {
+							return contextPath;
+						}
+						if ("getCookies".equals(name)) {
+							return ssoCookie ? new Cookie[] { new Cookie(
+									COOKIE_NAME, "token") } : null;
+						}
+						if ("getSession".equals(name)) {
+							return null;
+						}
+						throw new UnsupportedOperationException(name);
+					}
+				});
+	}
+}
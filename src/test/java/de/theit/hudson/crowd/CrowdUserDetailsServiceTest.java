@@ -0,0 +1,170 @@
+/*
+ * @(#)CrowdUserDetailsServiceTest.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.acegisecurity.userdetails.UsernameNotFoundException;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataRetrievalFailureException;
+
+import com.atlassian.crowd.exception.UserNotFoundException;
+import com.atlassian.crowd.model.group.Group;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * Tests for {@link CrowdUserDetailsService}.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 22.10.2011
+ * @version $Id$
+ */
+public class CrowdUserDetailsServiceTest {
+	/** The fake remote Crowd server. */
+	private final FakeCrowd crowd = new FakeCrowd();
+
+	/** The service under test. */
+	private CrowdUserDetailsService service;
+
+	/**
+	 * Creates the service around the fake Crowd server.
+	 */
+	@Before
+	public void setUp() {
+		CrowdConfigurationService configuration = new CrowdConfigurationService(
+				"hudson-users", false);
+		configuration.crowdClient = this.crowd.client;
+		configuration.groupRefreshInterval = 60;
+		configuration.cacheTtl = 60;
+		this.service = new CrowdUserDetailsService(configuration);
+	}
+
+	/** A second lookup of a non-member doesn't ask the server again. */
+	@Test
+	public void testNonMemberRemembered() {
+		expectNonMember("user");
+		int calls = this.crowd.calls.get();
+		assertTrue(calls > 0);
+
+		expectNonMember("user");
+		assertEquals(calls, this.crowd.calls.get());
+	}
+
+	/** A second lookup of an unknown user doesn't ask the server again. */
+	@Test
+	public void testUnknownUserRemembered() {
+		expectUnknown("unknown");
+		int calls = this.crowd.calls.get();
+
+		expectUnknown("unknown");
+		assertEquals(calls, this.crowd.calls.get());
+	}
+
+	/**
+	 * Looks up a user that must be rejected as non-member.
+	 * 
+	 * @param username
+	 *            The name of the user.
+	 */
+	private void expectNonMember(String username) {
+		try {
+			this.service.loadUserByUsername(username);
+			fail("exception expected");
+		} catch (DataRetrievalFailureException ex) {
+			// expected
+		}
+	}
+
+	/**
+	 * Looks up a user that must be rejected as unknown.
+	 * 
+	 * @param username
+	 *            The name of the user.
+	 */
+	private void expectUnknown(String username) {
+		try {
+			this.service.loadUserByUsername(username);
+			fail("exception expected");
+		} catch (UsernameNotFoundException ex) {
+			// expected
+		}
+	}
+
+	/**
+	 * Returns an active Crowd entity like a user or group.
+	 * 
+	 * @param type
+	 *            The interface of the entity.
+	 * @param name
+	 *            The name of the entity.
+	 * @return The entity.
+	 */
+	private static <T> T entity(Class<T> type, final String name) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if ("getName".equals(method.getName())) {
+							return name;
+						}
+						if ("isActive".equals(method.getName())) {
+							return Boolean.TRUE;
+						}
+						return null;
+					}
+				}));
+	}
+
+	/**
+	 * A fake remote Crowd server with an active Hudson user group and one
+	 * known user that is not a member of it.
+	 */
+	private static final class FakeCrowd implements InvocationHandler {
+		/** The Crowd client that talks to the fake server. */
+		final CrowdClient client = (CrowdClient) Proxy.newProxyInstance(
+				CrowdClient.class.getClassLoader(),
+				new Class<?>[] { CrowdClient.class }, this);
+
+		/** The number of calls that reached the server. */
+		final AtomicInteger calls = new AtomicInteger();
+
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+		 *      java.lang.reflect.Method, java.lang.Object[])
+		 */
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			this.calls.incrementAndGet();
+			String name = method.getName();
+			if ("getGroup".equals(name)) {
+				return entity(Group.class, (String) args[0]);
+			}
+			if ("getUser".equals(name)) {
+				if (!"user".equals(args[0])) {
+					throw new UserNotFoundException((String) args[0]);
+				}
+				return entity(User.class, "user");
+			}
+			if (boolean.class == method.getReturnType()) {
+				return Boolean.FALSE;
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * @(#)LoginThrottleTest.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.acegisecurity.AuthenticationServiceException;
+import org.acegisecurity.BadCredentialsException;
+import org.acegisecurity.LockedException;
+import org.junit.Test;
+
+import com.atlassian.crowd.exception.ExpiredCredentialException;
+import com.atlassian.crowd.exception.InvalidAuthenticationException;
+
+/**
+ * Tests for {@link LoginThrottle}.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 21.10.2011
+ * @version $Id$
+ */
+public class LoginThrottleTest {
+	/** The number of failed logins of a user that are not penalised. */
+	private static final int FREE_USER_FAILURES = 3;
+
+	/** The number of failed logins from an address that are not penalised. */
+	private static final int FREE_ADDRESS_FAILURES = 20;
+
+	/** The first failed logins of a user are not penalised. */
+	@Test
+	public void testFreeFailures() {
+		LoginThrottle throttle = new LoginThrottle();
+		for (int i = 0; i < FREE_USER_FAILURES; i++) {
+			throttle.recordFailure("user", null);
+		}
+		throttle.check("user", null);
+		assertEquals(0, throttle.getRejected());
+	}
+
+	/** Further failed logins of a user reject the next login. */
+	@Test
+	public void testUserPenalised() {
+		LoginThrottle throttle = new LoginThrottle();
+		for (int i = 0; i <= FREE_USER_FAILURES; i++) {
+			throttle.recordFailure("user", "10.0.0.1");
+		}
+		assertLocked(throttle, "user", "10.0.0.2");
+		assertEquals(1, throttle.getRejected());
+
+		// other users from the same address are not affected
+		throttle.check("other", "10.0.0.1");
+	}
+
+	/** A successful login forgets the failed logins of the user. */
+	@Test
+	public void testSuccessResets() {
+		LoginThrottle throttle = new LoginThrottle();
+		for (int i = 0; i < FREE_USER_FAILURES; i++) {
+			throttle.recordFailure("user", null);
+		}
+		throttle.recordSuccess("user");
+		for (int i = 0; i < FREE_USER_FAILURES; i++) {
+			throttle.recordFailure("user", null);
+		}
+		throttle.check("user", null);
+	}
+
+	/** The failed logins of a user are counted regardless of the case. */
+	@Test
+	public void testUserCaseInsensitive() {
+		LoginThrottle throttle = new LoginThrottle();
+		for (int i = 0; i <= FREE_USER_FAILURES; i++) {
+			throttle.recordFailure(0 == i % 2 ? "user" : "USER", null);
+		}
+		assertLocked(throttle, "User", null);
+
+		throttle.recordSuccess("uSeR");
+		throttle.check("user", null);
+	}
+
+	/** Too many failed logins from an address reject all its users. */
+	@Test
+	public void testAddressPenalised() {
+		LoginThrottle throttle = new LoginThrottle();
+		for (int i = 0; i <= FREE_ADDRESS_FAILURES; i++) {
+			throttle.recordFailure("user" + i, "10.0.0.1");
+		}
+		assertLocked(throttle, "other", "10.0.0.1");
+		throttle.check("other", "10.0.0.2");
+	}
+
+	/** Concurrent failed logins are all counted. */
+	@Test
+	public void testConcurrentFailures() throws InterruptedException {
+		final LoginThrottle throttle = new LoginThrottle();
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors
+				.newFixedThreadPool(FREE_ADDRESS_FAILURES);
+		for (int i = 0; i < FREE_ADDRESS_FAILURES; i++) {
+			final String username = "user" + i;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException ex) {
+						return;
+					}
+					throttle.recordFailure(username, "10.0.0.1");
+				}
+			});
+		}
+		start.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+		throttle.check("other", "10.0.0.1");
+		throttle.recordFailure("other", "10.0.0.1");
+		assertLocked(throttle, "another", "10.0.0.1");
+	}
+
+	/** Only wrong user credentials count as failed logins. */
+	@Test
+	public void testIsCredentialFailure() {
+		assertTrue(LoginThrottle
+				.isCredentialFailure(new BadCredentialsException("wrong")));
+		assertFalse(LoginThrottle
+				.isCredentialFailure(new BadCredentialsException("expired",
+						new ExpiredCredentialException("expired"))));
+		assertFalse(LoginThrottle
+				.isCredentialFailure(new AuthenticationServiceException(
+						"invalid", new InvalidAuthenticationException(
+								"invalid"))));
+		assertFalse(LoginThrottle
+				.isCredentialFailure(new LockedException("locked")));
+	}
+
+	/**
+	 * Checks that a login is rejected.
+	 * 
+	 * @param throttle
+	 *            The login throttle.
+	 * @param username
+	 *            The name of the user.
+	 * @param address
+	 *            The source address of the login.
+	 */
+	private static void assertLocked(LoginThrottle throttle, String username,
+			String address) {
+		try {
+			throttle.check(username, address);
+			fail("login not rejected");
+		} catch (LockedException ex) {
+			// expected
+		}
+	}
+}
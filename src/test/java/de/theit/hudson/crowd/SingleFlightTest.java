@@ -0,0 +1,142 @@
+/*
+ * @(#)SingleFlightTest.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link SingleFlight}.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 18.10.2011
+ * @version $Id$
+ */
+public class SingleFlightTest {
+	/** Concurrent calls for the same key share one execution. */
+	@Test
+	public void testCoalescesConcurrentCalls() throws Exception {
+		final SingleFlight<String, String> flights = new SingleFlight<String, String>();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger calls = new AtomicInteger();
+		final Callable<String> call = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				calls.incrementAndGet();
+				started.countDown();
+				release.await();
+				return "result";
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Future<String> first = executor.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return flights.execute("user", call);
+				}
+			});
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+
+			Future<?>[] others = new Future<?>[3];
+			for (int i = 0; i < others.length; i++) {
+				others[i] = executor.submit(new Callable<String>() {
+					@Override
+					public String call() {
+						return flights.execute("user", call);
+					}
+				});
+			}
+			// wait until all other callers joined the call in progress
+			long deadline = System.currentTimeMillis() + 5000;
+			while (flights.getCoalesced() < others.length
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			release.countDown();
+
+			assertEquals("result", first.get(5, TimeUnit.SECONDS));
+			for (Future<?> other : others) {
+				assertEquals("result", other.get(5, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(1, calls.get());
+		assertEquals(1, flights.getExecuted());
+		assertEquals(3, flights.getCoalesced());
+	}
+
+	/** Calls that follow a completed call are executed again. */
+	@Test
+	public void testSequentialCallsAreExecuted() {
+		SingleFlight<String, Integer> flights = new SingleFlight<String, Integer>();
+		final AtomicInteger calls = new AtomicInteger();
+		Callable<Integer> call = new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return Integer.valueOf(calls.incrementAndGet());
+			}
+		};
+
+		assertEquals(Integer.valueOf(1), flights.execute("user", call));
+		assertEquals(Integer.valueOf(2), flights.execute("user", call));
+		assertEquals(2, flights.getExecuted());
+		assertEquals(0, flights.getCoalesced());
+	}
+
+	/** Runtime exceptions of the call are rethrown unchanged. */
+	@Test
+	public void testRethrowsRuntimeException() {
+		SingleFlight<String, String> flights = new SingleFlight<String, String>();
+		final IllegalArgumentException failure = new IllegalArgumentException();
+		try {
+			flights.execute("user", new Callable<String>() {
+				@Override
+				public String call() {
+					throw failure;
+				}
+			});
+			fail("exception expected");
+		} catch (IllegalArgumentException ex) {
+			assertSame(failure, ex);
+		}
+	}
+
+	/** Checked exceptions of the call are wrapped. */
+	@Test
+	public void testWrapsCheckedException() {
+		SingleFlight<String, String> flights = new SingleFlight<String, String>();
+		final IOException failure = new IOException();
+		try {
+			flights.execute("user", new Callable<String>() {
+				@Override
+				public String call() throws IOException {
+					throw failure;
+				}
+			});
+			fail("exception expected");
+		} catch (IllegalStateException ex) {
+			assertSame(failure, ex.getCause());
+		}
+	}
+}
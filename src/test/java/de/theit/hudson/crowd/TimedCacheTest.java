@@ -0,0 +1,114 @@
+/*
+ * @(#)TimedCacheTest.java
+ * Copyright (C)2011 Thorsten Heit.
+ * All rights reserved.
+ */
+package de.theit.hudson.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TimedCache}.
+ * 
+ * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
+ * @since 17.10.2011
+ * @version $Id$
+ */
+public class TimedCacheTest {
+	/** A cached value is returned until its lifetime has passed. */
+	@Test
+	public void testExpiresAfterLifetime() throws InterruptedException {
+		TimedCache<String, String> cache = new TimedCache<String, String>(10);
+		cache.put("user", "value", 50);
+		assertEquals("value", cache.get("user"));
+
+		Thread.sleep(80);
+		assertNull(cache.get("user"));
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	/** Values without a lifetime are not cached if nothing is retained. */
+	@Test
+	public void testZeroLifetimeNotCached() {
+		TimedCache<String, String> cache = new TimedCache<String, String>(10);
+		cache.put("user", "value", 0);
+		assertEquals(0, cache.size());
+		assertNull(cache.get("user"));
+	}
+
+	/** The least recently used entry is evicted when the cache is full. */
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		TimedCache<String, String> cache = new TimedCache<String, String>(2);
+		cache.put("a", "1", 10000);
+		cache.put("b", "2", 10000);
+		// touching "a" makes "b" the eldest entry
+		assertEquals("1", cache.get("a"));
+		cache.put("c", "3", 10000);
+
+		assertEquals(2, cache.size());
+		assertEquals("1", cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals("3", cache.get("c"));
+	}
+
+	/** Expired entries stay available as stale values during retention. */
+	@Test
+	public void testRetainsStaleValues() throws InterruptedException {
+		TimedCache<String, String> cache = new TimedCache<String, String>(10);
+		cache.setRetention(10000);
+		cache.put("user", "value", 20);
+
+		Thread.sleep(50);
+		assertNull(cache.get("user"));
+		assertEquals("value", cache.getStale("user"));
+	}
+
+	/** Stale values are discarded once the retention has passed, too. */
+	@Test
+	public void testDiscardsStaleValuesAfterRetention()
+			throws InterruptedException {
+		TimedCache<String, String> cache = new TimedCache<String, String>(10);
+		cache.setRetention(30);
+		cache.put("user", "value", 0);
+		assertEquals("value", cache.getStale("user"));
+
+		Thread.sleep(60);
+		assertNull(cache.getStale("user"));
+		assertEquals(0, cache.size());
+	}
+
+	/** An entry is due for refresh after the given part of its lifetime. */
+	@Test
+	public void testRefreshDue() throws InterruptedException {
+		TimedCache<String, String> cache = new TimedCache<String, String>(10);
+		cache.put("user", "value", 100);
+		assertFalse(cache.isRefreshDue("user", 0.5f));
+		assertFalse(cache.isRefreshDue("unknown", 0.5f));
+
+		Thread.sleep(70);
+		assertTrue(cache.isRefreshDue("user", 0.5f));
+	}
+
+	/** Removed and cleared entries are gone. */
+	@Test
+	public void testRemoveAndClear() {
+		TimedCache<String, String> cache = new TimedCache<String, String>(10);
+		cache.put("a", "1", 10000);
+		cache.put("b", "2", 10000);
+
+		cache.remove("a");
+		assertNull(cache.get("a"));
+		assertEquals("2", cache.get("b"));
+
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+}